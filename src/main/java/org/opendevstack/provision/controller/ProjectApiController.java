@@ -16,14 +16,22 @@ package org.opendevstack.provision.controller;
 
 import static java.lang.String.format;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
 import org.opendevstack.provision.adapter.IBugtrackerAdapter;
 import org.opendevstack.provision.adapter.ICollaborationAdapter;
 import org.opendevstack.provision.adapter.IJobExecutionAdapter;
@@ -37,23 +45,39 @@ import org.opendevstack.provision.adapter.IServiceAdapter.LIFECYCLE_STAGE;
 import org.opendevstack.provision.adapter.IServiceAdapter.PROJECT_TEMPLATE;
 import org.opendevstack.provision.model.ExecutionsData;
 import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectChanges;
+import org.opendevstack.provision.model.ProjectHistoryPage;
+import org.opendevstack.provision.model.ProjectSearchResult;
+import org.opendevstack.provision.model.ProjectUsage;
+import org.opendevstack.provision.model.ProjectVersion;
 import org.opendevstack.provision.model.rundeck.Job;
 import org.opendevstack.provision.services.MailAdapter;
+import org.opendevstack.provision.services.ProjectChangeFeed;
+import org.opendevstack.provision.services.ProjectSearchService;
 import org.opendevstack.provision.services.StorageAdapter;
 import org.opendevstack.provision.storage.IStorage;
+import org.opendevstack.provision.storage.ProjectLocks;
+import org.opendevstack.provision.storage.ProjectVersionStore;
+import org.opendevstack.provision.util.exception.BackendUnavailableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 /**
  * Rest Controller to handle the process of project creation
@@ -68,6 +92,25 @@ public class ProjectApiController {
 
   private static final String STR_LOGFILE_KEY = "loggerFileName";
 
+  static final int DEFAULT_PAGE_SIZE = 50;
+
+  static final int MAX_PAGE_SIZE = 500;
+
+  private static final int EXPORT_PAGE_SIZE = 100;
+
+  static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+  static final int DEFAULT_POLL_TIMEOUT = 30;
+
+  static final int MAX_POLL_TIMEOUT = 120;
+
+  static final String CHANGE_EVENT = "change";
+
+  static final String RESET_EVENT = "reset";
+
+  private static final ObjectMapper EXPORT_MAPPER =
+      new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
   @Autowired IBugtrackerAdapter jiraAdapter;
   @Autowired ICollaborationAdapter confluenceAdapter;
   @Autowired private ISCMAdapter bitbucketAdapter;
@@ -81,6 +124,21 @@ public class ProjectApiController {
 
   @Autowired private StorageAdapter filteredStorage;
 
+  @Autowired private ProjectLocks projectLocks;
+
+  @Autowired private ProjectSearchService searchService;
+
+  @Autowired private ProjectVersionStore versionStore;
+
+  @Autowired private ProjectChangeFeed changeFeed;
+
+  @Value("${project.changes.stream-timeout:1800}")
+  long changeStreamTimeout;
+
+  // open for testing
+  @Value("${project.update.lock-timeout:30}")
+  long updateLockTimeout;
+
   // open for testing
   @Autowired IODSAuthnzAdapter manager;
 
@@ -204,7 +262,7 @@ public class ProjectApiController {
                   newProject.projectKey, exProvisionNew.getMessage(), cleanupResults);
 
       logger.error(error, exProvisionNew);
-      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+      return errorResponse(exProvisionNew, error);
     } finally {
       MDC.remove(STR_LOGFILE_KEY);
     }
@@ -214,7 +272,8 @@ public class ProjectApiController {
    * Update a project, e.g. add new quickstarters, upgrade a bugtracker only project
    *
    * @param updatedProject the project containing the update data
-   * @return the updated project
+   * @return the updated project, or 409 in case another update of the project does not complete
+   *     within {@code project.update.lock-timeout} seconds
    */
   @RequestMapping(method = RequestMethod.PUT)
   public ResponseEntity<Object> updateProject(@RequestBody OpenProjectData updatedProject) {
@@ -225,6 +284,22 @@ public class ProjectApiController {
     MDC.put(STR_LOGFILE_KEY, updatedProject.projectKey);
 
     logger.debug("Update project {}", updatedProject.projectKey);
+    // serialize updates of the same project, so none of the merged changes gets lost
+    Lock projectLock = projectLocks.get(updatedProject.projectKey);
+    try {
+      if (!projectLock.tryLock(updateLockTimeout, TimeUnit.SECONDS)) {
+        MDC.remove(STR_LOGFILE_KEY);
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+            .body(
+                format(
+                    "Project %s is being updated by another request, please try again later",
+                    updatedProject.projectKey));
+      }
+    } catch (InterruptedException interruptedEx) {
+      Thread.currentThread().interrupt();
+      MDC.remove(STR_LOGFILE_KEY);
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
     try {
       logger.debug(
           "Project: {}",
@@ -323,12 +398,35 @@ public class ProjectApiController {
                   updatedProject.projectKey, exProvision.getMessage(), cleanupResults);
 
       logger.error(error);
-      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+      return errorResponse(exProvision, error);
     } finally {
+      projectLock.unlock();
       MDC.remove(STR_LOGFILE_KEY);
     }
   }
 
+  /**
+   * Build the response of a failed provisioning. A backend that rejected calls, since it is down or
+   * busy, is reported as 503, with the time after which it may accept calls again.
+   *
+   * @param ex the cause of the failure
+   * @param error the error message
+   * @return the response
+   */
+  private static ResponseEntity<Object> errorResponse(Exception ex, String error) {
+    for (Throwable cause : Throwables.getCausalChain(ex)) {
+      if (cause instanceof BackendUnavailableException) {
+        long retryAfter = ((BackendUnavailableException) cause).getRetryAfterMillis();
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE);
+        if (retryAfter > 0) {
+          response.header(HttpHeaders.RETRY_AFTER, Long.toString((retryAfter + 999) / 1000));
+        }
+        return response.body(error);
+      }
+    }
+    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+  }
+
   /**
    * Create the delivery chain within the platform in case {@link OpenProjectData#platformRuntime}
    * is set to true
@@ -424,6 +522,243 @@ public class ProjectApiController {
     return project;
   }
 
+  /**
+   * Get a page of the project history visible to the current user, ordered by creation date
+   *
+   * @param after the cursor returned with the previous page, omitted for the first page
+   * @param limit the max. number of projects of the page
+   * @param createdFrom only projects created at or after this instant, e.g. 2019-06-01T00:00:00Z
+   * @param createdTo only projects created before this instant
+   * @return Response with the {@link ProjectHistoryPage}, or 400 in case of an invalid cursor or
+   *     limit
+   */
+  @RequestMapping(method = RequestMethod.GET)
+  public ResponseEntity<ProjectHistoryPage> listProjects(
+      @RequestParam(value = "after", required = false) String after,
+      @RequestParam(value = "limit", defaultValue = "" + DEFAULT_PAGE_SIZE) int limit,
+      @RequestParam(value = "createdFrom", required = false) Instant createdFrom,
+      @RequestParam(value = "createdTo", required = false) Instant createdTo) {
+    if (limit < 1 || limit > MAX_PAGE_SIZE) {
+      return ResponseEntity.badRequest().build();
+    }
+    try {
+      return ResponseEntity.ok(
+          filteredStorage.listProjectHistory(
+              after, limit, createdFrom, createdTo, filteredStorage.getPermissionFilter()));
+    } catch (IllegalArgumentException invalidCursor) {
+      logger.debug("Invalid cursor {}: {}", after, invalidCursor.getMessage());
+      return ResponseEntity.badRequest().build();
+    }
+  }
+
+  /**
+   * Export the project history visible to the current user as newline delimited JSON, one project
+   * per line, ordered by creation date. The projects are streamed page by page, the history is
+   * never held in memory as a whole.
+   *
+   * @return Response streaming the projects
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/export")
+  public ResponseEntity<StreamingResponseBody> exportProjects() {
+    // resolved upon the request, the body is written on another thread
+    Predicate<OpenProjectData> permissionFilter = filteredStorage.getPermissionFilter();
+
+    StreamingResponseBody body =
+        out -> {
+          try (JsonGenerator generator = EXPORT_MAPPER.getFactory().createGenerator(out)) {
+            generator.setRootValueSeparator(null);
+            String after = null;
+            do {
+              ProjectHistoryPage page =
+                  filteredStorage.listProjectHistory(after, EXPORT_PAGE_SIZE, permissionFilter);
+              for (OpenProjectData project : page.projects) {
+                generator.writeObject(project);
+                generator.writeRaw('\n');
+              }
+              generator.flush();
+              after = page.next;
+            } while (after != null);
+          }
+        };
+    return ResponseEntity.ok().contentType(MediaType.valueOf(NDJSON_MEDIA_TYPE)).body(body);
+  }
+
+  /**
+   * Search the projects visible to the current user
+   *
+   * @param query terms, each of them needs to be a prefix of a word within the key, name or
+   *     description of the project
+   * @param projectType facet filter on {@link OpenProjectData#projectType}
+   * @param componentType facet filter on the type of the used quickstarters
+   * @param platformRuntime facet filter on {@link OpenProjectData#platformRuntime}
+   * @param bugtrackerSpace facet filter on {@link OpenProjectData#bugtrackerSpace}
+   * @param limit the max. number of projects returned
+   * @return Response with the {@link ProjectSearchResult}, or 400 in case of an invalid limit
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/search")
+  public ResponseEntity<ProjectSearchResult> searchProjects(
+      @RequestParam(value = "q", required = false) String query,
+      @RequestParam(value = ProjectSearchService.FACET_PROJECT_TYPE, required = false)
+          String projectType,
+      @RequestParam(value = ProjectSearchService.FACET_COMPONENT_TYPE, required = false)
+          String componentType,
+      @RequestParam(value = ProjectSearchService.FACET_PLATFORM_RUNTIME, required = false)
+          Boolean platformRuntime,
+      @RequestParam(value = ProjectSearchService.FACET_BUGTRACKER_SPACE, required = false)
+          Boolean bugtrackerSpace,
+      @RequestParam(value = "limit", defaultValue = "" + DEFAULT_PAGE_SIZE) int limit) {
+    if (limit < 0 || limit > MAX_PAGE_SIZE) {
+      return ResponseEntity.badRequest().build();
+    }
+    Map<String, String> facets = new HashMap<>();
+    if (projectType != null) {
+      facets.put(ProjectSearchService.FACET_PROJECT_TYPE, projectType);
+    }
+    if (componentType != null) {
+      facets.put(ProjectSearchService.FACET_COMPONENT_TYPE, componentType);
+    }
+    if (platformRuntime != null) {
+      facets.put(ProjectSearchService.FACET_PLATFORM_RUNTIME, platformRuntime.toString());
+    }
+    if (bugtrackerSpace != null) {
+      facets.put(ProjectSearchService.FACET_BUGTRACKER_SPACE, bugtrackerSpace.toString());
+    }
+    return ResponseEntity.ok(
+        searchService.search(query, facets, limit, filteredStorage.getPermissionFilter()));
+  }
+
+  /**
+   * Count the projects visible to the current user per quickstarter type
+   *
+   * @return Response with the number of projects by quickstarter type
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/usage/quickstarters")
+  public ResponseEntity<Map<String, Integer>> countQuickstarterUsage() {
+    return ResponseEntity.ok(
+        searchService.countComponentTypes(filteredStorage.getPermissionFilter()));
+  }
+
+  /**
+   * Find the projects visible to the current user that use a quickstarter type
+   *
+   * @param componentType the type of the quickstarter, see {@link
+   *     OpenProjectData#COMPONENT_TYPE_KEY}
+   * @return Response with the {@link ProjectUsage}
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/usage/quickstarters/{componentType}")
+  public ResponseEntity<ProjectUsage> findQuickstarterUsage(@PathVariable String componentType) {
+    return ResponseEntity.ok(
+        searchService.findByComponentType(componentType, filteredStorage.getPermissionFilter()));
+  }
+
+  /**
+   * Find the projects visible to the current user that have a repository
+   *
+   * @param repository the name of the repository, case insensitive
+   * @return Response with the {@link ProjectUsage}
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/usage/repositories/{repository}")
+  public ResponseEntity<ProjectUsage> findRepositoryUsage(@PathVariable String repository) {
+    return ResponseEntity.ok(
+        searchService.findByRepository(repository, filteredStorage.getPermissionFilter()));
+  }
+
+  /**
+   * Get the changes of the projects visible to the current user, waiting for the next change in
+   * case there is none yet (long poll)
+   *
+   * @param after the sequence returned with the previous response ({@link ProjectChanges#last}),
+   *     omitted to start with the next change
+   * @param limit the max. number of changes
+   * @param timeout seconds to wait for a change, 0 to return right away
+   * @return Response with the {@link ProjectChanges} - without changes in case the timeout passed -
+   *     or 400 in case of an invalid limit or timeout
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/changes")
+  public DeferredResult<ResponseEntity<ProjectChanges>> pollChanges(
+      @RequestParam(value = "after", defaultValue = "-1") long after,
+      @RequestParam(value = "limit", defaultValue = "" + DEFAULT_PAGE_SIZE) int limit,
+      @RequestParam(value = "timeout", defaultValue = "" + DEFAULT_POLL_TIMEOUT) int timeout) {
+    DeferredResult<ResponseEntity<ProjectChanges>> result;
+    if (limit < 1 || limit > MAX_PAGE_SIZE || timeout < 0 || timeout > MAX_POLL_TIMEOUT) {
+      result = new DeferredResult<>();
+      result.setResult(ResponseEntity.badRequest().build());
+      return result;
+    }
+    Predicate<OpenProjectData> permissionFilter = filteredStorage.getPermissionFilter();
+    ProjectChanges changes = changeFeed.changesAfter(after, limit, permissionFilter);
+    if (!changes.changes.isEmpty() || !changes.complete || timeout == 0) {
+      result = new DeferredResult<>();
+      result.setResult(ResponseEntity.ok(changes));
+      return result;
+    }
+
+    long last = changes.last;
+    result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(timeout), ResponseEntity.ok(changes));
+    DeferredResult<ResponseEntity<ProjectChanges>> pending = result;
+    ProjectChangeFeed.Subscription subscription =
+        changeFeed.subscribe(
+            last,
+            permissionFilter,
+            change ->
+                pending.setResult(
+                    ResponseEntity.ok(changeFeed.changesAfter(last, limit, permissionFilter))));
+    result.onCompletion(subscription::cancel);
+    return result;
+  }
+
+  /**
+   * Stream the changes of the projects visible to the current user as server-sent events. Every
+   * {@value #CHANGE_EVENT} event carries a {@link org.opendevstack.provision.model.ProjectChange},
+   * with its sequence as event id - so a reconnecting client continues after the last event it
+   * received. A {@value #RESET_EVENT} event tells that changes since the requested sequence are no
+   * longer available, and the history needs to be read again. A client falling behind the retained
+   * changes is disconnected, and told to reset once it reconnects.
+   *
+   * @param lastEventId the id of the last event received, sent by reconnecting clients
+   * @param after the sequence to continue after, omitted to start with the next change
+   * @return the stream of events
+   * @throws IOException in case the reset event cannot be sent
+   */
+  @RequestMapping(
+      method = RequestMethod.GET,
+      value = "/changes/stream",
+      produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter streamChanges(
+      @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId,
+      @RequestParam(value = "after", defaultValue = "-1") long after)
+      throws IOException {
+    Predicate<OpenProjectData> permissionFilter = filteredStorage.getPermissionFilter();
+    SseEmitter emitter = new SseEmitter(TimeUnit.SECONDS.toMillis(changeStreamTimeout));
+    long last = lastEventId != null ? lastEventId : after;
+    if (!changeFeed.changesAfter(last, 1, permissionFilter).complete) {
+      last = changeFeed.getSequence();
+      emitter.send(
+          SseEmitter.event().id(Long.toString(last)).name(RESET_EVENT).data(Long.toString(last)));
+    }
+
+    ProjectChangeFeed.Subscription subscription =
+        changeFeed.subscribe(
+            last,
+            permissionFilter,
+            change -> {
+              try {
+                emitter.send(
+                    SseEmitter.event()
+                        .id(Long.toString(change.sequence))
+                        .name(CHANGE_EVENT)
+                        .data(change, MediaType.APPLICATION_JSON));
+              } catch (IOException clientGoneEx) {
+                // cancels the subscription
+                throw new UncheckedIOException(clientGoneEx);
+              }
+            },
+            // the reconnecting client is told to reset
+            emitter::complete);
+    emitter.onCompletion(subscription::cancel);
+    return emitter;
+  }
+
   /**
    * Get a list with all projects in the ODS prov system defined by their key. In this case the
    * quickstarters {@link OpenProjectData#quickstarters} contain also the description of the
@@ -459,6 +794,66 @@ public class ProjectApiController {
     return ResponseEntity.ok(project);
   }
 
+  /**
+   * List the recorded versions of a project
+   *
+   * @param id the project's key
+   * @return Response with the {@link ProjectVersion}s, oldest first - or 404 in case the project
+   *     does not exist or is not visible to the user
+   * @throws IOException in case the versions cannot be read
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/{id}/versions")
+  public ResponseEntity<List<ProjectVersion>> listProjectVersions(@PathVariable String id)
+      throws IOException {
+    if (filteredStorage.getFilteredSingleProject(id) == null) {
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.ok(versionStore.listVersions(id));
+  }
+
+  /**
+   * Get a version of a project
+   *
+   * @param id the project's key
+   * @param version the number of the version, see {@link ProjectVersion#version}
+   * @return Response with the project as of the version, or 404 in case the project or version does
+   *     not exist, or the project is not visible to the user
+   * @throws IOException in case the versions cannot be read
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/{id}/versions/{version}")
+  public ResponseEntity<OpenProjectData> getProjectVersion(
+      @PathVariable String id, @PathVariable int version) throws IOException {
+    if (filteredStorage.getFilteredSingleProject(id) == null) {
+      return ResponseEntity.notFound().build();
+    }
+    OpenProjectData project = versionStore.getVersion(id, version);
+    return project == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(project);
+  }
+
+  /**
+   * Get the changes between two versions of a project
+   *
+   * @param id the project's key
+   * @param from the number of the former version
+   * @param to the number of the later version
+   * @return Response with the JSON Patch (RFC 6902) turning the former into the later version, or
+   *     404 in case the project or one of the versions does not exist, or the project is not
+   *     visible to the user
+   * @throws IOException in case the versions cannot be read
+   */
+  @RequestMapping(method = RequestMethod.GET, value = "/{id}/versions/diff")
+  public ResponseEntity<JsonNode> diffProjectVersions(
+      @PathVariable String id,
+      @RequestParam(value = "from") int from,
+      @RequestParam(value = "to") int to)
+      throws IOException {
+    if (filteredStorage.getFilteredSingleProject(id) == null) {
+      return ResponseEntity.notFound().build();
+    }
+    JsonNode patch = versionStore.diff(id, from, to);
+    return patch == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(patch);
+  }
+
   /**
    * Validate the project name. Duplicates are not allowed in most bugtrackers.
    *
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.model;
+
+/** A change of a project, as published by the change feed */
+public class ProjectChange {
+  /** The position of the change within the feed, ascending */
+  public long sequence;
+  /** When the change was published, in millis since the epoch */
+  public long timestamp;
+  /** The kind of change - STORED, UPDATED or DELETED */
+  public String changeType = null;
+  /** The key of the changed project */
+  public String projectKey = null;
+  /** The project as stored, null in case it was deleted */
+  public OpenProjectData project = null;
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A page of the change feed, ordered by sequence */
+public class ProjectChanges {
+  /** The changes of this page */
+  public List<ProjectChange> changes = new ArrayList<>();
+  /** The sequence to continue after with the next request */
+  public long last;
+  /**
+   * False in case changes since the requested sequence are no longer retained (or were made before
+   * a restart) - the history needs to be read again
+   */
+  public boolean complete = true;
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A page of the project history, ordered by creation date */
+public class ProjectHistoryPage {
+  /** The projects of this page */
+  public List<OpenProjectData> projects = new ArrayList<>();
+  /** The cursor to get the next page with, null in case this is the last page */
+  public String next = null;
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Result of a project search */
+public class ProjectSearchResult {
+  /** The number of matching projects */
+  public int total = 0;
+  /**
+   * The first matching projects, ordered by key. They contain the searched and faceted fields only,
+   * the complete project is available thru its key.
+   */
+  public List<OpenProjectData> projects = new ArrayList<>();
+  /** The number of matching projects per facet and value */
+  public Map<String, Map<String, Integer>> facets = new TreeMap<>();
+}
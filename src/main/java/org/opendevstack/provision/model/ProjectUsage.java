@@ -0,0 +1,26 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** The projects using a quickstarter type or repository */
+public class ProjectUsage {
+  /** The number of projects */
+  public int total = 0;
+  /** The keys of the projects, ordered */
+  public List<String> projects = new ArrayList<>();
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.model;
+
+/** A version of a project, as recorded upon every change of it */
+public class ProjectVersion {
+  /** The number of the version, starting with 1 */
+  public int version;
+  /** When the version was recorded, in millis since the epoch */
+  public long createdAt;
+  /** The kind of change - STORED, UPDATED or DELETED */
+  public String changeType = null;
+  /** True in case the complete project is kept, false in case only its changes are */
+  public boolean snapshot;
+  /** The number of JSON Patch operations from the previous version, 0 for snapshots */
+  public int changes;
+}
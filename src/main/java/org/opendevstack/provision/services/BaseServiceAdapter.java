@@ -96,7 +96,7 @@ public class BaseServiceAdapter {
   }
 
   public RestClientCall notAuthenticatedCall(HttpVerb verb) {
-    return RestClientCall.call(verb);
+    return RestClientCall.call(verb).backend(configurationPrefix);
   }
 
   public void setRestClient(RestClient restClient) {
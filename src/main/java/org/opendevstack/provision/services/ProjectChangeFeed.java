@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import javax.annotation.PreDestroy;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectChange;
+import org.opendevstack.provision.model.ProjectChanges;
+import org.opendevstack.provision.storage.ProjectCompactor;
+import org.opendevstack.provision.storage.ProjectStorageEvent;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * Feed of the stores, updates and deletes of projects, kept in sync thru the {@link
+ * ProjectStorageEvent}s of the storage. The latest changes are retained in memory, numbered by an
+ * ascending sequence - so consumers continue after the last change they have seen, instead of
+ * reading the history again. Changes retain a compacted copy of the project, so later changes of
+ * the stored instance do not leak into them.
+ *
+ * <p>The sequence starts with the startup time in millis, so it keeps ascending across restarts.
+ * Changes made before a restart are not retained, consumers continuing after an older sequence are
+ * told to read the history again.
+ *
+ * <p>Every subscription keeps its own position within the retained changes, and is notified on a
+ * task of its own - so a slow consumer never delays a change of the storage, nor another consumer.
+ * A consumer falling behind the retained changes is cancelled, instead of buffering changes for it.
+ */
+@Service
+public class ProjectChangeFeed {
+  private static final Logger logger = LoggerFactory.getLogger(ProjectChangeFeed.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private int capacity = 1000;
+
+  /** The retained changes, oldest first */
+  private final Deque<Change> changes = new ArrayDeque<>();
+
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  /** Delivers the changes, at most one task per subscription */
+  private final ExecutorService notifier =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "project-change-feed");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** The sequence of the latest change */
+  private long sequence = System.currentTimeMillis();
+
+  /**
+   * Add a change to the feed, and notify the subscribers
+   *
+   * @param event the change of a project
+   */
+  @EventListener
+  public synchronized void onProjectChanged(ProjectStorageEvent event) {
+    Change change = new Change(++sequence, event.getChangeType(), snapshotOf(event.getProject()));
+    changes.addLast(change);
+    while (changes.size() > capacity) {
+      changes.removeFirst();
+    }
+    for (Subscription subscription : subscriptions) {
+      subscription.schedule();
+    }
+  }
+
+  /**
+   * Get the retained changes after a sequence
+   *
+   * @param after the sequence of the last change seen, negative to start with the next change
+   * @param limit the max. number of changes
+   * @param permissionFilter the filter of projects visible to the consumer, see {@link
+   *     StorageAdapter#getPermissionFilter()}
+   * @return the changes visible to the consumer
+   */
+  public synchronized ProjectChanges changesAfter(
+      long after, int limit, Predicate<OpenProjectData> permissionFilter) {
+    Preconditions.checkArgument(limit > 0, "Limit must be positive");
+    Preconditions.checkNotNull(permissionFilter, "Permission filter cannot be null");
+    ProjectChanges page = new ProjectChanges();
+    if (after < 0 || after > sequence) {
+      page.last = sequence;
+      page.complete = after < 0;
+      return page;
+    }
+    page.last = after;
+    page.complete = after >= firstRetained() - 1;
+    for (Change change : changes) {
+      if (change.sequence <= after) {
+        continue;
+      }
+      if (page.changes.size() == limit) {
+        break;
+      }
+      page.last = change.sequence;
+      if (permissionFilter.test(change.project)) {
+        page.changes.add(change.toProjectChange());
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Subscribe to the changes after a sequence. The retained changes after it are delivered first,
+   * then every new change - one after the other, on a task of the subscription.
+   *
+   * @param after the sequence of the last change seen, negative to start with the next change
+   * @param permissionFilter the filter of projects visible to the consumer
+   * @param listener called with every change visible to the consumer
+   * @return the subscription, to be cancelled once the consumer is gone
+   */
+  public Subscription subscribe(
+      long after, Predicate<OpenProjectData> permissionFilter, Consumer<ProjectChange> listener) {
+    return subscribe(after, permissionFilter, listener, () -> {});
+  }
+
+  /**
+   * Subscribe to the changes after a sequence, see {@link #subscribe(long, Predicate, Consumer)}
+   *
+   * @param after the sequence of the last change seen, negative to start with the next change
+   * @param permissionFilter the filter of projects visible to the consumer
+   * @param listener called with every change visible to the consumer
+   * @param onLagging called once the subscription is cancelled, as the changes after the last one
+   *     delivered are no longer retained - e.g. to let the consumer continue from the history
+   * @return the subscription, to be cancelled once the consumer is gone
+   */
+  public synchronized Subscription subscribe(
+      long after,
+      Predicate<OpenProjectData> permissionFilter,
+      Consumer<ProjectChange> listener,
+      Runnable onLagging) {
+    Subscription subscription =
+        new Subscription(after < 0 ? sequence : after, permissionFilter, listener, onLagging);
+    subscriptions.add(subscription);
+    subscription.schedule();
+    return subscription;
+  }
+
+  /**
+   * Get the sequence of the latest change
+   *
+   * @return the sequence
+   */
+  public synchronized long getSequence() {
+    return sequence;
+  }
+
+  @PreDestroy
+  public void close() {
+    subscriptions.clear();
+    notifier.shutdownNow();
+  }
+
+  private long firstRetained() {
+    return changes.isEmpty() ? sequence + 1 : changes.getFirst().sequence;
+  }
+
+  @Value("${project.changes.capacity:1000}")
+  public synchronized void setCapacity(int capacity) {
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+    this.capacity = capacity;
+  }
+
+  private static OpenProjectData snapshotOf(OpenProjectData project) {
+    try {
+      return ProjectCompactor.compact(
+          MAPPER.readValue(MAPPER.writeValueAsBytes(project), OpenProjectData.class));
+    } catch (IOException ex) {
+      throw new IllegalStateException("Unable to copy project " + project.projectKey, ex);
+    }
+  }
+
+  /** A subscription to the feed */
+  public class Subscription {
+    private final Predicate<OpenProjectData> permissionFilter;
+
+    private final Consumer<ProjectChange> listener;
+
+    private final Runnable onLagging;
+
+    /** The sequence of the last change delivered, guarded by the feed */
+    private long delivered;
+
+    /** Whether a task delivers the changes of this subscription, guarded by the feed */
+    private boolean draining;
+
+    private volatile boolean cancelled;
+
+    private Subscription(
+        long delivered,
+        Predicate<OpenProjectData> permissionFilter,
+        Consumer<ProjectChange> listener,
+        Runnable onLagging) {
+      this.delivered = delivered;
+      this.permissionFilter = permissionFilter;
+      this.listener = listener;
+      this.onLagging = onLagging;
+    }
+
+    /** Stop the notifications, pending ones are dropped */
+    public void cancel() {
+      cancelled = true;
+      subscriptions.remove(this);
+    }
+
+    /** Needs to be called while holding the lock of the feed */
+    private void schedule() {
+      if (!draining && !cancelled) {
+        draining = true;
+        notifier.execute(this::drain);
+      }
+    }
+
+    /** Deliver the changes after the last one delivered, until there are none left */
+    private void drain() {
+      while (true) {
+        List<Change> pending = new ArrayList<>();
+        boolean lagging;
+        synchronized (ProjectChangeFeed.this) {
+          lagging = delivered < firstRetained() - 1;
+          if (!lagging && !cancelled) {
+            for (Change change : changes) {
+              if (change.sequence > delivered) {
+                pending.add(change);
+              }
+            }
+          }
+          if (pending.isEmpty()) {
+            draining = false;
+          } else {
+            delivered = pending.get(pending.size() - 1).sequence;
+          }
+        }
+        if (lagging && !cancelled) {
+          lagging();
+        }
+        if (pending.isEmpty()) {
+          return;
+        }
+        for (Change change : pending) {
+          if (!deliver(change)) {
+            return;
+          }
+        }
+      }
+    }
+
+    private boolean deliver(Change change) {
+      if (cancelled) {
+        return false;
+      }
+      if (!permissionFilter.test(change.project)) {
+        return true;
+      }
+      try {
+        listener.accept(change.toProjectChange());
+        return true;
+      } catch (RuntimeException listenerEx) {
+        logger.debug("Cancelling subscription, as delivery failed: {}", listenerEx.toString());
+        cancel();
+        return false;
+      }
+    }
+
+    private void lagging() {
+      logger.debug("Cancelling subscription, as it fell behind the retained changes");
+      cancel();
+      try {
+        onLagging.run();
+      } catch (RuntimeException callbackEx) {
+        logger.debug("Lagging subscription callback failed: {}", callbackEx.toString());
+      }
+    }
+  }
+
+  /** A retained change */
+  private static final class Change {
+    final long sequence;
+    final long timestamp = System.currentTimeMillis();
+    final ChangeType changeType;
+    /** A compacted copy of the project as stored, or as deleted - to filter on */
+    final OpenProjectData project;
+
+    Change(long sequence, ChangeType changeType, OpenProjectData project) {
+      this.sequence = sequence;
+      this.changeType = changeType;
+      this.project = project;
+    }
+
+    ProjectChange toProjectChange() {
+      ProjectChange change = new ProjectChange();
+      change.sequence = sequence;
+      change.timestamp = timestamp;
+      change.changeType = changeType.name();
+      change.projectKey = project.projectKey;
+      change.project = changeType == ChangeType.DELETED ? null : project;
+      return change;
+    }
+  }
+}
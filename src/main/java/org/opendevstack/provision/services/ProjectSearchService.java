@@ -0,0 +1,435 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.services;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import javax.annotation.PostConstruct;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectSearchResult;
+import org.opendevstack.provision.model.ProjectUsage;
+import org.opendevstack.provision.storage.IStorage;
+import org.opendevstack.provision.storage.ProjectStorageEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * In-memory search over the provisioned projects. Key, name and description are split into lower
+ * cased tokens, which are kept in a sorted inverted index, so every query term is a prefix range
+ * lookup. Facet values are kept in inverted indexes as well, as are the repository names - so the
+ * projects using a quickstarter type or repository are found without reading the history.
+ *
+ * <p>The index is built once upon startup, and then kept in sync thru the {@link
+ * ProjectStorageEvent}s of the storage.
+ */
+@Service
+public class ProjectSearchService {
+  private static final Logger logger = LoggerFactory.getLogger(ProjectSearchService.class);
+
+  public static final String FACET_PROJECT_TYPE = "projectType";
+
+  public static final String FACET_COMPONENT_TYPE = "componentType";
+
+  public static final String FACET_PLATFORM_RUNTIME = "platformRuntime";
+
+  public static final String FACET_BUGTRACKER_SPACE = "bugtrackerSpace";
+
+  private static final String TOKEN_SEPARATORS = "[^\\p{L}\\p{N}]+";
+
+  @Autowired IStorage storage;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Searchable summary per upper cased key */
+  private final Map<String, OpenProjectData> summaries = new HashMap<>();
+
+  private final NavigableMap<String, Set<String>> keysByToken = new TreeMap<>();
+
+  /** Facet -> value -> keys */
+  private final Map<String, Map<String, Set<String>>> keysByFacet = new HashMap<>();
+
+  /** Lower cased repository name -> keys */
+  private final Map<String, Set<String>> keysByRepository = new HashMap<>();
+
+  /** Key -> lower cased repository names, to remove a project from {@link #keysByRepository} */
+  private final Map<String, Set<String>> repositoriesByKey = new HashMap<>();
+
+  /** Build the index from all stored projects */
+  @PostConstruct
+  public void rebuild() {
+    long start = System.currentTimeMillis();
+    Map<String, OpenProjectData> history = storage.listProjectHistory();
+    lock.writeLock().lock();
+    try {
+      summaries.clear();
+      keysByToken.clear();
+      keysByFacet.clear();
+      keysByRepository.clear();
+      repositoriesByKey.clear();
+      for (OpenProjectData project : history.values()) {
+        add(project);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    logger.info(
+        "Indexed {} projects for search in {} ms",
+        history.size(),
+        System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Keep the index in sync with the storage
+   *
+   * @param event the change of a project
+   */
+  @EventListener
+  public void onProjectChanged(ProjectStorageEvent event) {
+    lock.writeLock().lock();
+    try {
+      remove(event.getProjectKey().toUpperCase());
+      if (event.getChangeType() != ProjectStorageEvent.ChangeType.DELETED) {
+        add(event.getProject());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Search the projects. Every term of the query needs to be a prefix of a token of the key, name
+   * or description of a project; every facet needs to have the given value.
+   *
+   * @param query the terms to search for, null or empty to match all projects
+   * @param facets the required value per facet, e.g. {@link #FACET_PROJECT_TYPE}
+   * @param limit the max. number of projects returned
+   * @param permissionFilter the filter of projects visible to the user, see {@link
+   *     StorageAdapter#getPermissionFilter()}
+   * @return the matching projects, and their facet counts
+   */
+  public ProjectSearchResult search(
+      String query,
+      Map<String, String> facets,
+      int limit,
+      Predicate<OpenProjectData> permissionFilter) {
+    Preconditions.checkArgument(limit >= 0, "Limit cannot be negative");
+    Preconditions.checkNotNull(permissionFilter, "Permission filter cannot be null");
+
+    ProjectSearchResult result = new ProjectSearchResult();
+    lock.readLock().lock();
+    try {
+      Set<String> candidates = null;
+      for (String term : tokenize(query)) {
+        candidates = retain(candidates, prefixMatches(term));
+      }
+      for (Map.Entry<String, String> facet : facets.entrySet()) {
+        Set<String> keys =
+            keysByFacet
+                .getOrDefault(facet.getKey(), Collections.emptyMap())
+                .getOrDefault(facet.getValue(), Collections.emptySet());
+        candidates = retain(candidates, keys);
+      }
+      if (candidates == null) {
+        candidates = summaries.keySet();
+      }
+
+      TreeSet<String> matches = new TreeSet<>();
+      for (String key : candidates) {
+        OpenProjectData summary = summaries.get(key);
+        if (permissionFilter.test(summary)) {
+          matches.add(key);
+          for (Map.Entry<String, Set<String>> facet : facetValues(summary).entrySet()) {
+            Map<String, Integer> counts =
+                result.facets.computeIfAbsent(facet.getKey(), f -> new TreeMap<>());
+            for (String value : facet.getValue()) {
+              counts.merge(value, 1, Integer::sum);
+            }
+          }
+        }
+      }
+
+      result.total = matches.size();
+      for (String key : matches) {
+        if (result.projects.size() == limit) {
+          break;
+        }
+        result.projects.add(summarize(summaries.get(key)));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  /**
+   * Count the projects per quickstarter type
+   *
+   * @param permissionFilter the filter of projects visible to the user
+   * @return the number of projects by {@link OpenProjectData#COMPONENT_TYPE_KEY}, ordered by type
+   */
+  public Map<String, Integer> countComponentTypes(Predicate<OpenProjectData> permissionFilter) {
+    Preconditions.checkNotNull(permissionFilter, "Permission filter cannot be null");
+    Map<String, Integer> counts = new TreeMap<>();
+    lock.readLock().lock();
+    try {
+      for (Map.Entry<String, Set<String>> componentType :
+          keysByFacet.getOrDefault(FACET_COMPONENT_TYPE, Collections.emptyMap()).entrySet()) {
+        int count = permitted(componentType.getValue(), permissionFilter).size();
+        if (count > 0) {
+          counts.put(componentType.getKey(), count);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return counts;
+  }
+
+  /**
+   * Find the projects using a quickstarter type
+   *
+   * @param componentType the {@link OpenProjectData#COMPONENT_TYPE_KEY} of the quickstarter
+   * @param permissionFilter the filter of projects visible to the user
+   * @return the projects using the quickstarter type
+   */
+  public ProjectUsage findByComponentType(
+      String componentType, Predicate<OpenProjectData> permissionFilter) {
+    Preconditions.checkNotNull(permissionFilter, "Permission filter cannot be null");
+    lock.readLock().lock();
+    try {
+      return usage(
+          keysByFacet
+              .getOrDefault(FACET_COMPONENT_TYPE, Collections.emptyMap())
+              .getOrDefault(componentType, Collections.emptySet()),
+          permissionFilter);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the projects with a repository
+   *
+   * @param repository the name of the repository, case insensitive
+   * @param permissionFilter the filter of projects visible to the user
+   * @return the projects with the repository
+   */
+  public ProjectUsage findByRepository(
+      String repository, Predicate<OpenProjectData> permissionFilter) {
+    Preconditions.checkNotNull(repository, "Repository cannot be null");
+    Preconditions.checkNotNull(permissionFilter, "Permission filter cannot be null");
+    lock.readLock().lock();
+    try {
+      return usage(
+          keysByRepository.getOrDefault(
+              repository.toLowerCase(Locale.ROOT), Collections.emptySet()),
+          permissionFilter);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  void setStorage(IStorage storage) {
+    this.storage = storage;
+  }
+
+  /** Needs to be called while holding the write lock */
+  private void add(OpenProjectData project) {
+    if (project.projectKey == null) {
+      return;
+    }
+    String key = project.projectKey.toUpperCase();
+    OpenProjectData summary = summarize(project);
+    summaries.put(key, summary);
+    for (String token : tokens(summary)) {
+      keysByToken.computeIfAbsent(token, t -> new HashSet<>()).add(key);
+    }
+    for (Map.Entry<String, Set<String>> facet : facetValues(summary).entrySet()) {
+      Map<String, Set<String>> values =
+          keysByFacet.computeIfAbsent(facet.getKey(), f -> new HashMap<>());
+      for (String value : facet.getValue()) {
+        values.computeIfAbsent(value, v -> new HashSet<>()).add(key);
+      }
+    }
+    if (project.repositories != null && !project.repositories.isEmpty()) {
+      Set<String> repositories = new HashSet<>();
+      for (String repository : project.repositories.keySet()) {
+        repositories.add(repository.toLowerCase(Locale.ROOT));
+      }
+      repositoriesByKey.put(key, repositories);
+      for (String repository : repositories) {
+        keysByRepository.computeIfAbsent(repository, r -> new HashSet<>()).add(key);
+      }
+    }
+  }
+
+  /** Needs to be called while holding the write lock */
+  private void remove(String key) {
+    OpenProjectData summary = summaries.remove(key);
+    if (summary == null) {
+      return;
+    }
+    for (String token : tokens(summary)) {
+      removeKey(keysByToken, token, key);
+    }
+    for (Map.Entry<String, Set<String>> facet : facetValues(summary).entrySet()) {
+      Map<String, Set<String>> values = keysByFacet.get(facet.getKey());
+      for (String value : facet.getValue()) {
+        removeKey(values, value, key);
+      }
+    }
+    Set<String> repositories = repositoriesByKey.remove(key);
+    if (repositories != null) {
+      for (String repository : repositories) {
+        removeKey(keysByRepository, repository, key);
+      }
+    }
+  }
+
+  /** Needs to be called while holding the read lock */
+  private Set<String> permitted(Set<String> keys, Predicate<OpenProjectData> permissionFilter) {
+    Set<String> permitted = new TreeSet<>();
+    for (String key : keys) {
+      if (permissionFilter.test(summaries.get(key))) {
+        permitted.add(key);
+      }
+    }
+    return permitted;
+  }
+
+  /** Needs to be called while holding the read lock */
+  private ProjectUsage usage(Set<String> keys, Predicate<OpenProjectData> permissionFilter) {
+    ProjectUsage usage = new ProjectUsage();
+    usage.projects.addAll(permitted(keys, permissionFilter));
+    usage.total = usage.projects.size();
+    return usage;
+  }
+
+  private Set<String> prefixMatches(String term) {
+    Set<String> keys = new HashSet<>();
+    for (Set<String> tokenKeys :
+        keysByToken.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+      keys.addAll(tokenKeys);
+    }
+    return keys;
+  }
+
+  private static Set<String> retain(Set<String> candidates, Set<String> keys) {
+    if (candidates == null) {
+      return new HashSet<>(keys);
+    }
+    candidates.retainAll(keys);
+    return candidates;
+  }
+
+  private static void removeKey(Map<String, Set<String>> index, String indexKey, String key) {
+    Set<String> keys = index.get(indexKey);
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        index.remove(indexKey);
+      }
+    }
+  }
+
+  private static Set<String> tokens(OpenProjectData summary) {
+    Set<String> tokens = new HashSet<>();
+    tokens.add(summary.projectKey.toLowerCase(Locale.ROOT));
+    tokens.addAll(tokenize(summary.projectKey));
+    tokens.addAll(tokenize(summary.projectName));
+    tokens.addAll(tokenize(summary.description));
+    return tokens;
+  }
+
+  static Set<String> tokenize(String text) {
+    Set<String> tokens = new LinkedHashSet<>();
+    if (text == null) {
+      return tokens;
+    }
+    for (String token : text.toLowerCase(Locale.ROOT).split(TOKEN_SEPARATORS)) {
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+    }
+    return tokens;
+  }
+
+  private static Map<String, Set<String>> facetValues(OpenProjectData summary) {
+    Map<String, Set<String>> facets = new HashMap<>();
+    if (summary.projectType != null) {
+      facets.put(FACET_PROJECT_TYPE, Collections.singleton(summary.projectType));
+    }
+    facets.put(
+        FACET_PLATFORM_RUNTIME, Collections.singleton(String.valueOf(summary.platformRuntime)));
+    facets.put(
+        FACET_BUGTRACKER_SPACE, Collections.singleton(String.valueOf(summary.bugtrackerSpace)));
+    if (summary.quickstarters != null) {
+      Set<String> componentTypes = new HashSet<>();
+      for (Map<String, String> quickstarter : summary.quickstarters) {
+        String componentType = quickstarter.get(OpenProjectData.COMPONENT_TYPE_KEY);
+        if (componentType != null) {
+          componentTypes.add(componentType);
+        }
+      }
+      if (!componentTypes.isEmpty()) {
+        facets.put(FACET_COMPONENT_TYPE, componentTypes);
+      }
+    }
+    return facets;
+  }
+
+  /** Copy the fields that are searched, faceted or needed for the permission check */
+  private static OpenProjectData summarize(OpenProjectData project) {
+    OpenProjectData summary = new OpenProjectData();
+    summary.projectKey = project.projectKey;
+    summary.projectName = project.projectName;
+    summary.description = project.description;
+    summary.projectType = project.projectType;
+    summary.platformRuntime = project.platformRuntime;
+    summary.bugtrackerSpace = project.bugtrackerSpace;
+    summary.specialPermissionSet = project.specialPermissionSet;
+    summary.projectAdminGroup = project.projectAdminGroup;
+    summary.projectUserGroup = project.projectUserGroup;
+    if (project.quickstarters != null) {
+      summary.quickstarters = new ArrayList<>();
+      for (Map<String, String> quickstarter : project.quickstarters) {
+        Map<String, String> component = new HashMap<>();
+        component.put(
+            OpenProjectData.COMPONENT_ID_KEY, quickstarter.get(OpenProjectData.COMPONENT_ID_KEY));
+        component.put(
+            OpenProjectData.COMPONENT_TYPE_KEY,
+            quickstarter.get(OpenProjectData.COMPONENT_TYPE_KEY));
+        summary.quickstarters.add(component);
+      }
+    }
+    return summary;
+  }
+}
@@ -15,14 +15,23 @@
 package org.opendevstack.provision.services;
 
 import com.google.common.base.Preconditions;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Predicate;
 import org.opendevstack.provision.adapter.IODSAuthnzAdapter;
 import org.opendevstack.provision.adapter.IServiceAdapter;
 import org.opendevstack.provision.model.AboutChangesData;
 import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectHistoryPage;
+import org.opendevstack.provision.storage.HistoryCursor;
 import org.opendevstack.provision.storage.IStorage;
+import org.opendevstack.provision.storage.ProjectGroupIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,35 +53,116 @@ public class StorageAdapter implements IServiceAdapter {
   private static final Logger logger = LoggerFactory.getLogger(StorageAdapter.class);
 
   public Map<String, OpenProjectData> listProjectHistory() {
-    Map<String, OpenProjectData> allProjects = storage.listProjectHistory();
-    Map<String, OpenProjectData> filteredProjects = new HashMap<>();
+    return storage.listPermittedProjects(getUserGroups());
+  }
 
-    Collection<? extends GrantedAuthority> authorities = authManager.getAuthorities();
-    logger.debug("User: {} Authorities: {}", authManager.getUserName(), authorities);
+  /**
+   * Get a page of the project history visible to the current user, ordered by creation date
+   *
+   * @param after the cursor of the previous page, null for the first page
+   * @param limit the max. number of projects
+   * @return the page, with the cursor of the next page
+   * @throws IllegalArgumentException in case the cursor is invalid
+   */
+  public ProjectHistoryPage listProjectHistory(String after, int limit) {
+    return listProjectHistory(after, limit, getPermissionFilter());
+  }
+
+  /**
+   * Get a page of the project history, ordered by creation date. Pages of the storage are read
+   * until the page is filled, or the end of the history is reached.
+   *
+   * @param after the cursor of the previous page, null for the first page
+   * @param limit the max. number of projects
+   * @param permissionFilter the filter of projects visible to the user, see {@link
+   *     #getPermissionFilter()}
+   * @return the page, with the cursor of the next page
+   * @throws IllegalArgumentException in case the cursor is invalid
+   */
+  public ProjectHistoryPage listProjectHistory(
+      String after, int limit, Predicate<OpenProjectData> permissionFilter) {
+    return listProjectHistory(after, limit, null, null, permissionFilter);
+  }
 
-    for (Map.Entry<String, OpenProjectData> project : allProjects.entrySet()) {
-      OpenProjectData projectData = project.getValue();
-      logger.debug(
-          "Project: {} groups: {},{} - permissioned? {}",
-          projectData.projectKey,
-          projectData.projectAdminGroup,
-          projectData.projectUserGroup,
-          projectData.specialPermissionSet);
-
-      if (!projectData.specialPermissionSet) {
-        filteredProjects.put(projectData.projectKey, projectData);
-      } else {
-        for (GrantedAuthority authority : authorities) {
-          if (authority.getAuthority().equalsIgnoreCase(projectData.projectAdminGroup)
-              || authority.getAuthority().equalsIgnoreCase(projectData.projectUserGroup)) {
-            filteredProjects.put(projectData.projectKey, projectData);
-            break;
+  /**
+   * Get a page of the projects created within a time range, e.g. within the current week, ordered
+   * by creation date. The storage is read starting at the creation date, not from the beginning of
+   * the history.
+   *
+   * @param after the cursor of the previous page, null for the first page
+   * @param limit the max. number of projects
+   * @param createdFrom the start of the range, inclusive - null for the beginning of the history
+   * @param createdTo the end of the range, exclusive - null for the end of the history
+   * @param permissionFilter the filter of projects visible to the user, see {@link
+   *     #getPermissionFilter()}
+   * @return the page, with the cursor of the next page
+   * @throws IllegalArgumentException in case the cursor is invalid
+   */
+  public ProjectHistoryPage listProjectHistory(
+      String after,
+      int limit,
+      Instant createdFrom,
+      Instant createdTo,
+      Predicate<OpenProjectData> permissionFilter) {
+    Preconditions.checkArgument(limit > 0, "Limit must be positive");
+
+    ProjectHistoryPage page = new ProjectHistoryPage();
+    HistoryCursor cursor = after == null ? null : HistoryCursor.decode(after);
+    if (createdFrom != null) {
+      HistoryCursor start = HistoryCursor.before(createdFrom.toEpochMilli());
+      if (cursor == null || cursor.compareTo(start) < 0) {
+        cursor = start;
+      }
+    }
+    long end = createdTo == null ? Long.MAX_VALUE : createdTo.toEpochMilli();
+    while (true) {
+      SortedMap<HistoryCursor, OpenProjectData> storagePage =
+          storage.listProjectHistory(cursor, limit);
+      if (storagePage.isEmpty()) {
+        return page;
+      }
+      for (Map.Entry<HistoryCursor, OpenProjectData> project : storagePage.entrySet()) {
+        if (project.getKey().getCreatedAt() >= end) {
+          return page;
+        }
+        if (permissionFilter.test(project.getValue())) {
+          page.projects.add(project.getValue());
+          if (page.projects.size() == limit) {
+            page.next = project.getKey().encode();
+            return page;
           }
         }
       }
+      cursor = storagePage.lastKey();
     }
+  }
 
-    return filteredProjects;
+  /**
+   * Get the filter of projects the current user is permitted to see - all projects without {@link
+   * OpenProjectData#specialPermissionSet}, and those with one of the user's authorities as admin or
+   * user group. The authorities are captured upon this call.
+   *
+   * @return the permission filter
+   */
+  public Predicate<OpenProjectData> getPermissionFilter() {
+    Set<String> groups = getUserGroups();
+    return projectData -> ProjectGroupIndex.isPermitted(projectData, groups);
+  }
+
+  /**
+   * Get the groups of the current user, i.e. the names of the granted authorities
+   *
+   * @return the lower cased groups
+   */
+  private Set<String> getUserGroups() {
+    Collection<? extends GrantedAuthority> authorities = authManager.getAuthorities();
+    logger.debug("User: {} Authorities: {}", authManager.getUserName(), authorities);
+
+    List<String> groups = new ArrayList<>();
+    for (GrantedAuthority authority : authorities) {
+      groups.add(authority.getAuthority());
+    }
+    return ProjectGroupIndex.normalize(groups);
   }
 
   public AboutChangesData listAboutChangesData() {
@@ -136,17 +226,25 @@ public class StorageAdapter implements IServiceAdapter {
     return leftovers;
   }
 
+  /**
+   * Get a single project, in case the current user is permitted to see it
+   *
+   * @param projectkey the project's key
+   * @return the project, or null in case it does not exist or is not permitted
+   */
   public OpenProjectData getFilteredSingleProject(String projectkey) {
     Preconditions.checkNotNull(projectkey, "Cannot find null project");
 
-    // we use the filtering here to enforce security
-    Collection<OpenProjectData> userProjects = listProjectHistory().values();
+    OpenProjectData project = storage.getProject(projectkey);
+    if (project == null) {
+      return null;
+    }
 
-    for (OpenProjectData fProject : userProjects) {
-      if (projectkey.equalsIgnoreCase(fProject.projectKey)) {
-        return fProject;
-      }
+    // we use the filtering here to enforce security
+    if (!ProjectGroupIndex.isPermitted(project, getUserGroups())) {
+      logger.debug("Project {} is not permitted to {}", projectkey, authManager.getUserName());
+      return null;
     }
-    return null;
+    return project;
   }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.google.common.base.Preconditions;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * Position of a project within the project history, which is ordered by creation date and - for
+ * projects created at the same time - by the upper cased project key. Handed to clients as an
+ * opaque string, to continue reading the history after this position.
+ */
+public final class HistoryCursor implements Comparable<HistoryCursor> {
+
+  private static final String SEPARATOR = ":";
+
+  private static final DateTimeFormatter HISTORY_DATE_FORMAT =
+      DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+
+  private final long createdAt;
+
+  private final String key;
+
+  /**
+   * @param createdAt the creation date of the project, in milliseconds since the epoch
+   * @param key the project key
+   */
+  public HistoryCursor(long createdAt, String key) {
+    Preconditions.checkNotNull(key, "Key cannot be null");
+    this.createdAt = createdAt;
+    this.key = key.toUpperCase();
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Create the position right before all projects created at the given time, e.g. to start reading
+   * the history at a creation date
+   *
+   * @param createdAt the creation date, in milliseconds since the epoch
+   * @return the cursor, sorting before all projects created at or after that time
+   */
+  public static HistoryCursor before(long createdAt) {
+    return new HistoryCursor(createdAt, "");
+  }
+
+  /**
+   * Format the key of the project within {@link IStorage#listProjectHistory()} - the creation date
+   * as shown in the history, followed by the project key to keep projects created within the same
+   * second apart
+   *
+   * @return the history key
+   */
+  public String toHistoryKey() {
+    LocalDateTime created =
+        LocalDateTime.ofInstant(Instant.ofEpochMilli(createdAt), ZoneId.systemDefault());
+    return created.format(HISTORY_DATE_FORMAT) + " " + key;
+  }
+
+  /**
+   * Encode the cursor for clients
+   *
+   * @return the url safe cursor
+   */
+  public String encode() {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString((createdAt + SEPARATOR + key).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decode a cursor created by {@link #encode()}
+   *
+   * @param encoded the encoded cursor
+   * @return the cursor
+   * @throws IllegalArgumentException in case the cursor is invalid
+   */
+  public static HistoryCursor decode(String encoded) {
+    Preconditions.checkNotNull(encoded, "Cursor cannot be null");
+    String decoded = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+    int separator = decoded.indexOf(SEPARATOR);
+    if (separator < 1 || separator == decoded.length() - 1) {
+      throw new IllegalArgumentException("Invalid cursor " + encoded);
+    }
+    return new HistoryCursor(
+        Long.parseLong(decoded.substring(0, separator)), decoded.substring(separator + 1));
+  }
+
+  @Override
+  public int compareTo(HistoryCursor other) {
+    int result = Long.compare(createdAt, other.createdAt);
+    return result != 0 ? result : key.compareTo(other.key);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof HistoryCursor)) {
+      return false;
+    }
+    HistoryCursor other = (HistoryCursor) obj;
+    return createdAt == other.createdAt && key.equals(other.key);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(createdAt, key);
+  }
+
+  @Override
+  public String toString() {
+    return createdAt + SEPARATOR + key;
+  }
+}
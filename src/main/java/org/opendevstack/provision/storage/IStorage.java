@@ -16,6 +16,8 @@ package org.opendevstack.provision.storage;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import org.opendevstack.provision.model.AboutChangesData;
 import org.opendevstack.provision.model.OpenProjectData;
 
@@ -30,12 +32,31 @@ public interface IStorage {
   String storeProject(OpenProjectData project) throws IOException;
 
   /**
-   * Get the project history, ordered by date
+   * Get the project history, newest first
    *
-   * @return the project history as map
+   * @return the projects by their {@link HistoryCursor#toHistoryKey()} - creation date and key
    */
   Map<String, OpenProjectData> listProjectHistory();
 
+  /**
+   * Get a page of the project history, ordered by creation date and key
+   *
+   * @param after the position to continue after, null to start with the oldest project
+   * @param limit the max. number of projects
+   * @return the projects by their position, empty in case the end of the history is reached
+   */
+  SortedMap<HistoryCursor, OpenProjectData> listProjectHistory(HistoryCursor after, int limit);
+
+  /**
+   * Get all projects permitted to a member of the groups - those without {@link
+   * OpenProjectData#specialPermissionSet}, and those with one of the groups as admin or user group
+   *
+   * @param groups the groups of the user, lower cased thru {@link
+   *     ProjectGroupIndex#normalize(java.util.Collection)}
+   * @return the permitted projects, keyed and ordered like {@link #listProjectHistory()}
+   */
+  Map<String, OpenProjectData> listPermittedProjects(Set<String> groups);
+
   /**
    * get a project by its key
    *
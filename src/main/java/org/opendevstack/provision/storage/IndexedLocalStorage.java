@@ -0,0 +1,465 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@link LocalStorage} that reads the storage path only once and keeps all projects in an in-memory
+ * index, keyed by the upper cased {@link OpenProjectData#projectKey}. The index is kept in sync on
+ * every store, update and delete, so lookups do not touch the filesystem anymore. The history is
+ * served from a {@link ProjectHistoryIndex}, ordered by creation date and key.
+ *
+ * <p>The index is loaded upon startup from the {@link ProjectIndexFile} written upon the last
+ * shutdown, in case the storage path did not change since. The project files are then parsed once
+ * accessed. Otherwise all project files are loaded thru the {@link ProjectHistoryLoader}. In case
+ * several instances share the storage path, a {@link LocalStorageWatcher} refreshes the index with
+ * changes made by the other instances.
+ *
+ * <p>Indexed projects are compacted thru the {@link ProjectCompactor}. The history and the
+ * permitted projects are listed as the indexed, immutable instances - without copying every project
+ * per listing. {@link #getProject(String)} hands out a copy, callers may change it without affecting
+ * the index.
+ */
+@Component
+@ConditionalOnProperty(name = "project.storage.type", havingValue = "indexed")
+public class IndexedLocalStorage extends LocalStorage {
+  private static final Logger logger = LoggerFactory.getLogger(IndexedLocalStorage.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /** Parsed projects, a subset of the entries in case the index was loaded from the index file */
+  private final Map<String, OpenProjectData> projectIndex = new ConcurrentHashMap<>();
+
+  /** Indexed data of all projects, changed together with the parsed projects */
+  private final Map<String, ProjectIndexFile.Entry> entries = new ConcurrentHashMap<>();
+
+  private final ProjectGroupIndex groupIndex = new ProjectGroupIndex();
+
+  private final ProjectHistoryIndex historyIndex = new ProjectHistoryIndex();
+
+  /** Last modification of every indexed file, keyed by its absolute path */
+  private final Map<String, Long> indexedModifications = new ConcurrentHashMap<>();
+
+  private volatile boolean indexLoaded = false;
+
+  @Value("${project.storage.local.loader.parallelism:0}")
+  private int loaderParallelism;
+
+  @Value("${project.storage.local.watch.enabled:false}")
+  private boolean watchEnabled;
+
+  @Value("${project.storage.local.watch.scan-interval:60}")
+  private long watchScanInterval;
+
+  @Value("${project.storage.local.index-file.enabled:true}")
+  private boolean indexFileEnabled = true;
+
+  private ProjectHistoryLoader.LoadResult lastLoadResult;
+
+  private LocalStorageWatcher watcher;
+
+  /**
+   * Load the index upon startup, so the first request does not pay for it. In case configured,
+   * start watching the storage path for changes of other instances.
+   */
+  @PostConstruct
+  public void afterPropertiesSet() throws IOException {
+    ensureIndexLoaded();
+    if (watchEnabled) {
+      watcher = new LocalStorageWatcher(this, watchScanInterval);
+      watcher.start();
+    }
+  }
+
+  /** Stop watching, and persist the index for the next startup */
+  @PreDestroy
+  public void destroy() {
+    if (watcher != null) {
+      watcher.stop();
+    }
+    saveIndexFile();
+  }
+
+  @Override
+  public Map<String, OpenProjectData> listProjectHistory() {
+    ensureIndexLoaded();
+    Map<String, OpenProjectData> history = new LinkedHashMap<>();
+    for (HistoryCursor cursor : historyIndex.newestFirst()) {
+      OpenProjectData project = indexed(cursor.getKey());
+      // null in case the project was deleted in the meantime
+      if (project != null) {
+        history.put(cursor.toHistoryKey(), project);
+      }
+    }
+    return history;
+  }
+
+  @Override
+  public SortedMap<HistoryCursor, OpenProjectData> listProjectHistory(
+      HistoryCursor after, int limit) {
+    ensureIndexLoaded();
+    SortedMap<HistoryCursor, OpenProjectData> page = new TreeMap<>();
+    for (HistoryCursor cursor : historyIndex.page(after, limit)) {
+      OpenProjectData project = indexed(cursor.getKey());
+      if (project != null) {
+        page.put(cursor, project);
+      }
+    }
+    return page;
+  }
+
+  @Override
+  public Map<String, OpenProjectData> listPermittedProjects(Set<String> groups) {
+    ensureIndexLoaded();
+    NavigableMap<HistoryCursor, OpenProjectData> permitted = new TreeMap<>();
+    for (String key : groupIndex.getPermittedKeys(groups)) {
+      OpenProjectData project = indexed(key);
+      HistoryCursor cursor = historyIndex.get(key);
+      // null in case the project was deleted in the meantime
+      if (project != null && cursor != null) {
+        permitted.put(cursor, project);
+      }
+    }
+    return ProjectHistoryIndex.toHistory(permitted);
+  }
+
+  @Override
+  public OpenProjectData getProject(String id) {
+    if (id == null) {
+      return null;
+    }
+    ensureIndexLoaded();
+    OpenProjectData project = indexed(id.toUpperCase());
+    if (project == null) {
+      logger.debug("Could not find project with id {}", id);
+      return null;
+    }
+    return copyOf(project);
+  }
+
+  /** Keep the index in sync with stores, updates and deletes, before the change is published */
+  @Override
+  void projectChanged(ChangeType changeType, OpenProjectData project) {
+    if (changeType == ChangeType.DELETED) {
+      ensureIndexLoaded();
+      unindex(project.projectKey.toUpperCase());
+      groupIndex.remove(project.projectKey);
+      historyIndex.remove(project.projectKey);
+      indexedModifications.remove(project.physicalLocation);
+    } else {
+      indexProject(project);
+    }
+    super.projectChanged(changeType, project);
+  }
+
+  /**
+   * Re-read a single project file into the index, in case it changed since it was indexed. A file
+   * that cannot be read (e.g. as it is still written) keeps its former index entry, and is retried
+   * upon the next refresh.
+   *
+   * @param file the created or modified file
+   */
+  void refreshFile(File file) {
+    if (!isProjectFile(file)) {
+      return;
+    }
+    String path = file.getAbsolutePath();
+    long lastModified = file.lastModified();
+    Long indexedModification = indexedModifications.get(path);
+    if (indexedModification != null && indexedModification == lastModified) {
+      return;
+    }
+    OpenProjectData project = readProjectFile(file);
+    if (project == null) {
+      return;
+    }
+    ensureIndexLoaded();
+    // the stores, updates and deletes of this instance index their file under the same lock
+    Lock lock = projectLock(project.projectKey);
+    lock.lock();
+    try {
+      indexedModification = indexedModifications.get(path);
+      if (indexedModification != null && indexedModification == lastModified) {
+        // written by this instance in the meantime
+        return;
+      }
+      if (file.lastModified() != lastModified) {
+        // changed again or deleted since it was read, refreshed upon its own change
+        return;
+      }
+      logger.debug("Refreshing project {} from {}", project.projectKey, path);
+      boolean known = entries.containsKey(project.projectKey.toUpperCase());
+      index(project, lastModified);
+      super.projectChanged(known ? ChangeType.UPDATED : ChangeType.STORED, project);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Remove the project stored in a file from the index
+   *
+   * @param file the deleted file
+   */
+  void removeFile(File file) {
+    String path = file.getAbsolutePath();
+    if (!indexedModifications.containsKey(path)) {
+      return;
+    }
+    boolean indexed = false;
+    for (ProjectIndexFile.Entry entry : entries.values()) {
+      if (!path.equals(entry.path)) {
+        continue;
+      }
+      indexed = true;
+      // the deletes of this instance unindex their file under the same lock
+      Lock lock = projectLock(entry.key);
+      lock.lock();
+      try {
+        if (file.exists() || indexedModifications.remove(path) == null) {
+          // written again, or deleted by this instance in the meantime
+          continue;
+        }
+        logger.debug("Removing project stored in {} from index", path);
+        OpenProjectData project = projectIndex.get(entry.key);
+        unindex(entry.key);
+        groupIndex.remove(entry.key);
+        historyIndex.remove(entry.key);
+        super.projectChanged(ChangeType.DELETED, project != null ? project : entry.toProject());
+      } finally {
+        lock.unlock();
+      }
+    }
+    if (!indexed) {
+      indexedModifications.remove(path);
+    }
+  }
+
+  @Override
+  Path quarantineFile(File file, Path quarantine) throws IOException {
+    Path target = super.quarantineFile(file, quarantine);
+    // a file that got unreadable keeps its former entry, see refreshFile
+    removeFile(file);
+    return target;
+  }
+
+  /**
+   * Compare the modification dates of all files in the storage path with the indexed ones, and
+   * refresh the changed files only. Used in case change events got lost, or are not delivered at
+   * all (e.g. on network filesystems).
+   */
+  void rescan() {
+    Set<String> deleted = new HashSet<>(indexedModifications.keySet());
+    for (File file : listProjectFiles()) {
+      deleted.remove(file.getAbsolutePath());
+      refreshFile(file);
+    }
+    for (String path : deleted) {
+      removeFile(new File(path));
+    }
+  }
+
+  /**
+   * Refresh the changed files, in case another instance changed the manifest of the sharded layout.
+   * The project files themselves are in subdirectories, which are not watched.
+   */
+  void refreshManifest() {
+    ShardedStorageLayout sharded = getShardedLayout();
+    if (sharded != null && sharded.reload()) {
+      rescan();
+    }
+  }
+
+  void ensureIndexLoaded() {
+    if (!indexLoaded) {
+      loadIndex();
+    }
+  }
+
+  private synchronized void loadIndex() {
+    if (indexLoaded) {
+      return;
+    }
+    if (indexFileEnabled && loadIndexFile()) {
+      indexLoaded = true;
+      return;
+    }
+    lastLoadResult = new ProjectHistoryLoader(this, loaderParallelism).load();
+    for (OpenProjectData project : lastLoadResult.getProjects()) {
+      index(project, new File(project.physicalLocation).lastModified());
+    }
+    indexLoaded = true;
+    // in case the instance is not shut down gracefully
+    saveIndexFile();
+  }
+
+  /**
+   * Load the index from the index file, without parsing any project file
+   *
+   * @return true in case the index file was valid
+   */
+  private boolean loadIndexFile() {
+    long start = System.currentTimeMillis();
+    List<ProjectIndexFile.Entry> indexed = indexFile().load();
+    if (indexed == null) {
+      return false;
+    }
+    for (ProjectIndexFile.Entry entry : indexed) {
+      entries.put(entry.key, entry);
+      groupIndex.update(entry.toProject());
+      historyIndex.put(new HistoryCursor(entry.createdAt, entry.key));
+      indexedModifications.put(entry.path, entry.lastModified);
+    }
+    lastLoadResult =
+        new ProjectHistoryLoader.LoadResult(
+            Collections.emptyList(), indexed.size(), 0, System.currentTimeMillis() - start);
+    logger.info(
+        "Loaded index of {} projects from index file in {} ms",
+        indexed.size(),
+        lastLoadResult.getLoadTimeMillis());
+    return true;
+  }
+
+  /**
+   * Persist the index, so the next startup does not need to parse all project files
+   *
+   * @return true in case the index file was written
+   */
+  boolean saveIndexFile() {
+    if (!indexFileEnabled || !indexLoaded) {
+      return false;
+    }
+    try {
+      return indexFile().save(new ArrayList<>(entries.values()));
+    } catch (IOException ioEx) {
+      logger.warn("Unable to write project index file", ioEx);
+      return false;
+    }
+  }
+
+  private ProjectIndexFile indexFile() {
+    return new ProjectIndexFile(Paths.get(getLocalStoragePath()));
+  }
+
+  /**
+   * Get a project from the index, parsing its file in case it was loaded from the index file
+   *
+   * @param key the upper cased project key
+   * @return the project, or null in case it is not indexed or cannot be read
+   */
+  private OpenProjectData indexed(String key) {
+    OpenProjectData project = projectIndex.get(key);
+    if (project != null) {
+      return project;
+    }
+    ProjectIndexFile.Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    OpenProjectData parsed = readProjectFile(new File(entry.path));
+    if (parsed == null) {
+      return null;
+    }
+    synchronized (entries) {
+      // unless the project changed while its file was parsed
+      if (entries.get(key) == entry) {
+        projectIndex.putIfAbsent(key, ProjectCompactor.compact(parsed));
+      }
+    }
+    return projectIndex.get(key);
+  }
+
+  private void index(OpenProjectData project, long lastModified) {
+    String key = project.projectKey.toUpperCase();
+    HistoryCursor cursor = historyCursorOf(project);
+    ProjectCompactor.compact(project);
+    synchronized (entries) {
+      projectIndex.put(key, project);
+      entries.put(key, ProjectIndexFile.Entry.of(project, cursor.getCreatedAt(), lastModified));
+    }
+    groupIndex.update(project);
+    historyIndex.put(cursor);
+    indexedModifications.put(project.physicalLocation, lastModified);
+  }
+
+  private void unindex(String key) {
+    synchronized (entries) {
+      projectIndex.remove(key);
+      entries.remove(key);
+    }
+  }
+
+  /**
+   * Get the statistics of the last index load
+   *
+   * @return the load result, or null in case the index was not loaded yet
+   */
+  public ProjectHistoryLoader.LoadResult getLastLoadResult() {
+    return lastLoadResult;
+  }
+
+  void setLoaderParallelism(int loaderParallelism) {
+    this.loaderParallelism = loaderParallelism;
+  }
+
+  void setIndexFileEnabled(boolean indexFileEnabled) {
+    this.indexFileEnabled = indexFileEnabled;
+  }
+
+  private void indexProject(OpenProjectData project) {
+    ensureIndexLoaded();
+    index(copyOf(project), new File(project.physicalLocation).lastModified());
+  }
+
+  /** Position by the creation date of the file, and the key of the project within */
+  private static HistoryCursor historyCursorOf(OpenProjectData project) {
+    return new HistoryCursor(
+        cursorOf(new File(project.physicalLocation)).getCreatedAt(), project.projectKey);
+  }
+
+  private static OpenProjectData copyOf(OpenProjectData project) {
+    try {
+      return MAPPER.readValue(MAPPER.writeValueAsBytes(project), OpenProjectData.class);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Unable to copy project " + project.projectKey, ex);
+    }
+  }
+}
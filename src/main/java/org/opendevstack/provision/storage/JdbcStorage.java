@@ -0,0 +1,478 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.opendevstack.provision.model.AboutChangesData;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.stereotype.Component;
+
+/**
+ * Storage on an embedded H2 database in file mode. Every project is a row with its full JSON
+ * document, key, name, admin and user group and creation date are indexed columns next to it, so
+ * lookups by key, group or creation date do not need to read all projects.
+ *
+ * <p>Upon first start, i.e. with an empty database, the projects of an existing {@link
+ * LocalStorage} directory are imported once.
+ */
+@Component
+@ConditionalOnProperty(name = "project.storage.type", havingValue = "jdbc")
+public class JdbcStorage implements IStorage, ApplicationEventPublisherAware {
+  private static final Logger logger = LoggerFactory.getLogger(JdbcStorage.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  static final String DATABASE_NAME = "projects";
+
+  private static final String[] SCHEMA = {
+    "CREATE TABLE IF NOT EXISTS project ("
+        + "project_key VARCHAR(255) PRIMARY KEY, "
+        + "project_name VARCHAR(255), "
+        + "admin_group VARCHAR(255), "
+        + "user_group VARCHAR(255), "
+        + "special_permission BOOLEAN NOT NULL, "
+        + "created_at TIMESTAMP(3) NOT NULL, "
+        + "document CLOB NOT NULL)",
+    "CREATE INDEX IF NOT EXISTS project_name_idx ON project(project_name)",
+    "CREATE INDEX IF NOT EXISTS project_admin_group_idx ON project(admin_group)",
+    "CREATE INDEX IF NOT EXISTS project_user_group_idx ON project(user_group)",
+    "CREATE INDEX IF NOT EXISTS project_special_permission_idx ON project(special_permission)",
+    "CREATE INDEX IF NOT EXISTS project_created_idx ON project(created_at, project_key)"
+  };
+
+  private static final String INSERT_PROJECT =
+      "INSERT INTO project (project_key, project_name, admin_group, user_group, "
+          + "special_permission, created_at, document) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+  /** Replaces projects imported before, the latest file of a project wins */
+  private static final String MERGE_PROJECT =
+      "MERGE INTO project (project_key, project_name, admin_group, user_group, "
+          + "special_permission, created_at, document) KEY (project_key) "
+          + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+  private static final String UPDATE_PROJECT =
+      "UPDATE project SET project_name = ?, admin_group = ?, user_group = ?, "
+          + "special_permission = ?, document = ? WHERE project_key = ?";
+
+  private static final String SELECT_PROJECT =
+      "SELECT created_at, document FROM project WHERE project_key = ?";
+
+  private static final String SELECT_HISTORY =
+      "SELECT created_at, project_key, document FROM project "
+          + "ORDER BY created_at DESC, project_key DESC";
+
+  private static final String SELECT_HISTORY_PAGE =
+      "SELECT created_at, project_key, document FROM project "
+          + "ORDER BY created_at, project_key LIMIT ?";
+
+  private static final String SELECT_HISTORY_PAGE_AFTER =
+      "SELECT created_at, project_key, document FROM project "
+          + "WHERE created_at > ? OR (created_at = ? AND project_key > ?) "
+          + "ORDER BY created_at, project_key LIMIT ?";
+
+  /**
+   * Groups are bound as one array parameter per column, to reuse the statement. The keys are
+   * selected per condition, as H2 does not use the indexes of conditions joined with OR.
+   */
+  private static final String SELECT_PERMITTED =
+      "SELECT created_at, project_key, document FROM project WHERE project_key IN ("
+          + "SELECT project_key FROM project WHERE special_permission = FALSE "
+          + "UNION SELECT project_key FROM project "
+          + "WHERE admin_group IN (SELECT * FROM TABLE(g VARCHAR = ?)) "
+          + "UNION SELECT project_key FROM project "
+          + "WHERE user_group IN (SELECT * FROM TABLE(g VARCHAR = ?))) "
+          + "ORDER BY created_at DESC, project_key DESC";
+
+  private static final String DELETE_PROJECT = "DELETE FROM project WHERE project_key = ?";
+
+  private static final String COUNT_PROJECTS = "SELECT COUNT(*) FROM project";
+
+  private String databasePath;
+
+  @Value("${project.storage.jdbc.import-path:${project.storage.local}}")
+  private String importPath;
+
+  @Value("${project.storage.local.layout:" + LocalStorage.LAYOUT_FLAT + "}")
+  private String importLayout = LocalStorage.LAYOUT_FLAT;
+
+  @Value("${project.storage.jdbc.pool-size:10}")
+  private int poolSize;
+
+  private JdbcConnectionPool connectionPool;
+
+  private ApplicationEventPublisher eventPublisher;
+
+  /**
+   * Open the database, create the schema, and import the projects of the local storage in case the
+   * database is empty
+   *
+   * @throws IOException in case the database cannot be opened
+   */
+  @PostConstruct
+  public void open() throws IOException {
+    connectionPool =
+        JdbcConnectionPool.create(
+            "jdbc:h2:file:" + new File(databasePath, DATABASE_NAME).getAbsolutePath(), "sa", "");
+    connectionPool.setMaxConnections(poolSize);
+
+    try (Connection connection = connectionPool.getConnection();
+        Statement statement = connection.createStatement()) {
+      for (String ddl : SCHEMA) {
+        statement.execute(ddl);
+      }
+    } catch (SQLException sqlEx) {
+      throw new IOException("Unable to open project database in " + databasePath, sqlEx);
+    }
+
+    if (importPath != null && !importPath.trim().isEmpty() && countProjects() == 0) {
+      importLocalStorage(importPath);
+    }
+  }
+
+  @PreDestroy
+  public void close() {
+    if (connectionPool != null) {
+      connectionPool.dispose();
+    }
+  }
+
+  @Override
+  public String storeProject(OpenProjectData project) throws IOException {
+    if (project == null || project.projectKey == null || project.projectKey.trim().length() == 0) {
+      throw new IOException("Can't store invalid, null or no key project");
+    }
+    try (Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(INSERT_PROJECT)) {
+      bindProject(statement, project, LocalDateTime.now());
+      statement.executeUpdate();
+    } catch (SQLIntegrityConstraintViolationException duplicateEx) {
+      // keeps the stored project and its creation date
+      throw new IOException("Project " + project.projectKey + " already exists", duplicateEx);
+    } catch (SQLException sqlEx) {
+      throw new IOException("Unable to store project " + project.projectKey, sqlEx);
+    }
+    logger.debug("Successfully stored project {}", project.projectKey);
+    projectChanged(ChangeType.STORED, project);
+    return project.physicalLocation;
+  }
+
+  @Override
+  public Map<String, OpenProjectData> listProjectHistory() {
+    Map<String, OpenProjectData> history = new LinkedHashMap<>();
+    try (Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SELECT_HISTORY);
+        ResultSet result = statement.executeQuery()) {
+      readHistory(result, history);
+    } catch (SQLException | IOException readEx) {
+      logger.error("Unable to read history", readEx);
+    }
+    return history;
+  }
+
+  @Override
+  public SortedMap<HistoryCursor, OpenProjectData> listProjectHistory(
+      HistoryCursor after, int limit) {
+    SortedMap<HistoryCursor, OpenProjectData> page = new TreeMap<>();
+    try (Connection connection = connectionPool.getConnection();
+        PreparedStatement statement =
+            connection.prepareStatement(
+                after == null ? SELECT_HISTORY_PAGE : SELECT_HISTORY_PAGE_AFTER)) {
+      if (after == null) {
+        statement.setInt(1, limit);
+      } else {
+        Timestamp createdAt = new Timestamp(after.getCreatedAt());
+        statement.setTimestamp(1, createdAt);
+        statement.setTimestamp(2, createdAt);
+        statement.setString(3, after.getKey());
+        statement.setInt(4, limit);
+      }
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          page.put(
+              new HistoryCursor(result.getTimestamp(1).getTime(), result.getString(2)),
+              readProject(result.getString(3)));
+        }
+      }
+    } catch (SQLException | IOException readEx) {
+      logger.error("Unable to read history after " + after, readEx);
+    }
+    return page;
+  }
+
+  @Override
+  public Map<String, OpenProjectData> listPermittedProjects(Set<String> groups) {
+    List<String> normalized = new ArrayList<>();
+    for (String group : groups) {
+      normalized.add(normalizeGroup(group));
+    }
+    Object[] groupParameter = normalized.toArray();
+
+    Map<String, OpenProjectData> permitted = new LinkedHashMap<>();
+    try (Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SELECT_PERMITTED)) {
+      statement.setObject(1, groupParameter);
+      statement.setObject(2, groupParameter);
+      try (ResultSet result = statement.executeQuery()) {
+        readHistory(result, permitted);
+      }
+    } catch (SQLException | IOException readEx) {
+      logger.error("Unable to read projects of groups " + groups, readEx);
+      return Collections.emptyMap();
+    }
+    return permitted;
+  }
+
+  @Override
+  public OpenProjectData getProject(String key) {
+    if (key == null) {
+      return null;
+    }
+    try (Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SELECT_PROJECT)) {
+      statement.setString(1, key.toUpperCase());
+      try (ResultSet result = statement.executeQuery()) {
+        if (result.next()) {
+          return readProject(result.getString(2));
+        }
+      }
+    } catch (SQLException | IOException readEx) {
+      logger.error("Unable to read project " + key, readEx);
+      return null;
+    }
+    logger.debug("Could not find project with id {}", key);
+    return null;
+  }
+
+  @Override
+  public boolean updateStoredProject(OpenProjectData project) throws IOException {
+    if (project == null || project.projectKey == null || project.projectKey.trim().length() == 0) {
+      throw new IOException("Can't update invalid, null or no key project");
+    }
+    try (Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(UPDATE_PROJECT)) {
+      project.physicalLocation = getStoragePath();
+      statement.setString(1, project.projectName);
+      statement.setString(2, normalizeGroup(project.projectAdminGroup));
+      statement.setString(3, normalizeGroup(project.projectUserGroup));
+      statement.setBoolean(4, project.specialPermissionSet);
+      statement.setString(5, MAPPER.writeValueAsString(project));
+      statement.setString(6, project.projectKey.toUpperCase());
+      if (statement.executeUpdate() == 0) {
+        return false;
+      }
+    } catch (SQLException sqlEx) {
+      logger.error("Unable to update project " + project.projectKey, sqlEx);
+      return false;
+    }
+    projectChanged(ChangeType.UPDATED, project);
+    return true;
+  }
+
+  @Override
+  public boolean deleteProject(OpenProjectData project) {
+    Preconditions.checkNotNull(project, "cannot delete null project");
+    Preconditions.checkNotNull(project.projectKey, "cannot delete project without key");
+
+    logger.debug("Deleting project {}", project.projectKey);
+    try (Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(DELETE_PROJECT)) {
+      statement.setString(1, project.projectKey.toUpperCase());
+      if (statement.executeUpdate() == 0) {
+        return false;
+      }
+    } catch (SQLException sqlEx) {
+      logger.error("Unable to delete project " + project.projectKey, sqlEx);
+      return false;
+    }
+    projectChanged(ChangeType.DELETED, project);
+    return true;
+  }
+
+  private void projectChanged(ChangeType changeType, OpenProjectData project) {
+    if (eventPublisher != null) {
+      eventPublisher.publishEvent(new ProjectStorageEvent(this, changeType, project));
+    }
+  }
+
+  @Override
+  public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+    this.eventPublisher = eventPublisher;
+  }
+
+  /**
+   * Import all projects of a {@link LocalStorage} directory, keeping their creation date. Legacy
+   * files are upgraded on the fly, the directory itself is left untouched - unless it is in the
+   * flat layout while the sharded one is configured, then it is migrated first. A directory with a
+   * manifest is always read in the sharded layout.
+   *
+   * @param path the local storage path
+   * @return the number of imported projects
+   * @throws IOException in case the projects cannot be written
+   */
+  public int importLocalStorage(String path) throws IOException {
+    LocalStorage source = new LocalStorage();
+    source.setLocalStoragePath(path);
+    source.setLayout(
+        new File(path, ShardedStorageLayout.MANIFEST_FILE).exists()
+            ? LocalStorage.LAYOUT_SHARDED
+            : importLayout);
+
+    long start = System.currentTimeMillis();
+    int imported = 0;
+    try (Connection connection = connectionPool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(MERGE_PROJECT)) {
+      connection.setAutoCommit(false);
+      for (File file : source.listProjectFiles()) {
+        OpenProjectData project = source.readProjectFile(file);
+        if (project == null) {
+          continue;
+        }
+        bindProject(statement, project, creationDate(file));
+        statement.addBatch();
+        imported++;
+      }
+      statement.executeBatch();
+      connection.commit();
+    } catch (SQLException sqlEx) {
+      throw new IOException("Unable to import projects from " + path, sqlEx);
+    }
+    logger.info(
+        "Imported {} projects from {} in {} ms",
+        imported,
+        path,
+        System.currentTimeMillis() - start);
+    return imported;
+  }
+
+  /** Test Impl only */
+  @Override
+  public String storeAboutChangesData(AboutChangesData aboutData) throws IOException {
+    return LocalStorage.writeAboutChangesData(aboutData);
+  }
+
+  @Override
+  public AboutChangesData listAboutChangesData() {
+    return LocalStorage.readAboutChangesData();
+  }
+
+  @Override
+  public String getStoragePath() {
+    return databasePath;
+  }
+
+  @Value("${project.storage.jdbc.path:${project.storage.local}}")
+  public void setDatabasePath(String databasePath) {
+    this.databasePath = databasePath;
+  }
+
+  void setImportPath(String importPath) {
+    this.importPath = importPath;
+  }
+
+  void setImportLayout(String importLayout) {
+    this.importLayout = importLayout;
+  }
+
+  void setPoolSize(int poolSize) {
+    this.poolSize = poolSize;
+  }
+
+  private int countProjects() throws IOException {
+    try (Connection connection = connectionPool.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet result = statement.executeQuery(COUNT_PROJECTS)) {
+      result.next();
+      return result.getInt(1);
+    } catch (SQLException sqlEx) {
+      throw new IOException("Unable to count projects", sqlEx);
+    }
+  }
+
+  private void bindProject(
+      PreparedStatement statement, OpenProjectData project, LocalDateTime created)
+      throws SQLException, IOException {
+    project.physicalLocation = getStoragePath();
+    statement.setString(1, project.projectKey.toUpperCase());
+    statement.setString(2, project.projectName);
+    statement.setString(3, normalizeGroup(project.projectAdminGroup));
+    statement.setString(4, normalizeGroup(project.projectUserGroup));
+    statement.setBoolean(5, project.specialPermissionSet);
+    // at the precision of the history cursor, which continues after the row it points at
+    statement.setTimestamp(6, Timestamp.valueOf(created.truncatedTo(ChronoUnit.MILLIS)));
+    statement.setString(7, MAPPER.writeValueAsString(project));
+  }
+
+  private static OpenProjectData readProject(String document) throws IOException {
+    return MAPPER.readValue(document, OpenProjectData.class);
+  }
+
+  /** Read rows of creation date, key and document, keyed by {@link HistoryCursor#toHistoryKey()} */
+  private static void readHistory(ResultSet result, Map<String, OpenProjectData> history)
+      throws SQLException, IOException {
+    while (result.next()) {
+      HistoryCursor cursor =
+          new HistoryCursor(result.getTimestamp(1).getTime(), result.getString(2));
+      history.put(cursor.toHistoryKey(), readProject(result.getString(3)));
+    }
+  }
+
+  /** Groups are matched case insensitive, hence stored upper cased to use the index */
+  static String normalizeGroup(String group) {
+    return group == null ? null : group.toUpperCase();
+  }
+
+  private static LocalDateTime creationDate(File file) {
+    try {
+      return LocalStorage.parseCreationDate(file);
+    } catch (DateTimeParseException | StringIndexOutOfBoundsException parseEx) {
+      logger.debug("File {} has no creation date prefix, using its modification date", file);
+      return LocalDateTime.ofInstant(
+          Instant.ofEpochMilli(file.lastModified()), ZoneId.systemDefault());
+    }
+  }
+}
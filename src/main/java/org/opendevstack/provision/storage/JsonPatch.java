@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON Patch (RFC 6902) support, limited to the <em>add</em>, <em>remove</em> and
+ * <em>replace</em> operations. Objects are diffed per field, arrays per index - so appending a
+ * quickstarter results in a single <em>add</em> of the new element.
+ */
+final class JsonPatch {
+
+  static final String OP = "op";
+  static final String PATH = "path";
+  static final String VALUE = "value";
+
+  static final String OP_ADD = "add";
+  static final String OP_REMOVE = "remove";
+  static final String OP_REPLACE = "replace";
+
+  private JsonPatch() {}
+
+  /**
+   * Create the patch turning one document into another
+   *
+   * @param source the former document
+   * @param target the new document
+   * @return the operations, empty in case both documents are equal
+   */
+  static ArrayNode diff(JsonNode source, JsonNode target) {
+    Preconditions.checkNotNull(source, "Source cannot be null");
+    Preconditions.checkNotNull(target, "Target cannot be null");
+    ArrayNode patch = JsonNodeFactory.instance.arrayNode();
+    diff(patch, "", source, target);
+    return patch;
+  }
+
+  /**
+   * Apply a patch, leaving the document untouched
+   *
+   * @param document the document to patch
+   * @param patch the operations, as created by {@link #diff(JsonNode, JsonNode)}
+   * @return the patched copy of the document
+   * @throws IllegalArgumentException in case an operation is unsupported or does not fit the
+   *     document
+   */
+  static JsonNode apply(JsonNode document, JsonNode patch) {
+    Preconditions.checkNotNull(document, "Document cannot be null");
+    Preconditions.checkArgument(patch != null && patch.isArray(), "Patch needs to be an array");
+    JsonNode result = document.deepCopy();
+    for (JsonNode operation : patch) {
+      result = applyOperation(result, operation);
+    }
+    return result;
+  }
+
+  private static void diff(ArrayNode patch, String path, JsonNode source, JsonNode target) {
+    if (source.equals(target)) {
+      return;
+    }
+    if (source.isObject() && target.isObject()) {
+      Iterator<String> sourceFields = source.fieldNames();
+      while (sourceFields.hasNext()) {
+        String field = sourceFields.next();
+        if (!target.has(field)) {
+          patch.add(operation(OP_REMOVE, path + "/" + escape(field), null));
+        }
+      }
+      Iterator<Map.Entry<String, JsonNode>> targetFields = target.fields();
+      while (targetFields.hasNext()) {
+        Map.Entry<String, JsonNode> field = targetFields.next();
+        String fieldPath = path + "/" + escape(field.getKey());
+        JsonNode former = source.get(field.getKey());
+        if (former == null) {
+          patch.add(operation(OP_ADD, fieldPath, field.getValue()));
+        } else {
+          diff(patch, fieldPath, former, field.getValue());
+        }
+      }
+    } else if (source.isArray() && target.isArray()) {
+      int common = Math.min(source.size(), target.size());
+      for (int i = 0; i < common; i++) {
+        diff(patch, path + "/" + i, source.get(i), target.get(i));
+      }
+      // remove from the end, so the indexes of the remaining elements stay valid
+      for (int i = source.size() - 1; i >= common; i--) {
+        patch.add(operation(OP_REMOVE, path + "/" + i, null));
+      }
+      for (int i = common; i < target.size(); i++) {
+        patch.add(operation(OP_ADD, path + "/" + i, target.get(i)));
+      }
+    } else {
+      patch.add(operation(OP_REPLACE, path, target));
+    }
+  }
+
+  private static JsonNode applyOperation(JsonNode document, JsonNode operation) {
+    String op = operation.path(OP).asText();
+    String path = operation.path(PATH).asText();
+    JsonNode value = operation.get(VALUE);
+    if (!OP_REMOVE.equals(op) && value == null) {
+      throw new IllegalArgumentException("Operation " + op + " @ " + path + " lacks a value");
+    }
+    if (path.isEmpty()) {
+      if (OP_REMOVE.equals(op)) {
+        throw new IllegalArgumentException("Cannot remove the whole document");
+      }
+      return value.deepCopy();
+    }
+
+    List<String> tokens = parse(path);
+    String last = tokens.remove(tokens.size() - 1);
+    JsonNode parent = document;
+    for (String token : tokens) {
+      parent = parent.isArray() ? parent.get(index(token, parent.size())) : parent.get(token);
+      if (parent == null) {
+        throw new IllegalArgumentException("Path " + path + " does not exist");
+      }
+    }
+
+    if (parent.isObject()) {
+      ObjectNode object = (ObjectNode) parent;
+      switch (op) {
+        case OP_ADD:
+          object.set(last, value.deepCopy());
+          break;
+        case OP_REPLACE:
+        case OP_REMOVE:
+          if (!object.has(last)) {
+            throw new IllegalArgumentException("Path " + path + " does not exist");
+          }
+          if (OP_REMOVE.equals(op)) {
+            object.remove(last);
+          } else {
+            object.set(last, value.deepCopy());
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported operation " + op);
+      }
+    } else if (parent.isArray()) {
+      ArrayNode array = (ArrayNode) parent;
+      switch (op) {
+        case OP_ADD:
+          int position = "-".equals(last) ? array.size() : index(last, array.size() + 1);
+          array.insert(position, value.deepCopy());
+          break;
+        case OP_REPLACE:
+          array.set(index(last, array.size()), value.deepCopy());
+          break;
+        case OP_REMOVE:
+          array.remove(index(last, array.size()));
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported operation " + op);
+      }
+    } else {
+      throw new IllegalArgumentException("Path " + path + " does not point into a container");
+    }
+    return document;
+  }
+
+  private static List<String> parse(String path) {
+    if (!path.startsWith("/")) {
+      throw new IllegalArgumentException("Invalid JSON pointer " + path);
+    }
+    List<String> tokens = new ArrayList<>();
+    for (String token : path.substring(1).split("/", -1)) {
+      tokens.add(token.replace("~1", "/").replace("~0", "~"));
+    }
+    return tokens;
+  }
+
+  private static String escape(String field) {
+    return field.replace("~", "~0").replace("/", "~1");
+  }
+
+  private static int index(String token, int size) {
+    try {
+      int index = Integer.parseInt(token);
+      if (index >= 0 && index < size) {
+        return index;
+      }
+    } catch (NumberFormatException notAnIndexEx) {
+      // reported below
+    }
+    throw new IllegalArgumentException("Invalid array index " + token);
+  }
+
+  private static ObjectNode operation(String op, String path, JsonNode value) {
+    ObjectNode operation = JsonNodeFactory.instance.objectNode();
+    operation.put(OP, op);
+    operation.put(PATH, path);
+    if (value != null) {
+      operation.set(VALUE, value);
+    }
+    return operation;
+  }
+}
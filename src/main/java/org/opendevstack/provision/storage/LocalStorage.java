@@ -14,29 +14,56 @@
 
 package org.opendevstack.provision.storage;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.exc.PropertyBindingException;
 import com.google.common.base.Preconditions;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.comparator.LastModifiedFileComparator;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import org.opendevstack.provision.model.AboutChangesData;
 import org.opendevstack.provision.model.OpenProjectData;
 import org.opendevstack.provision.model.ProjectData;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.stereotype.Component;
 
 /**
@@ -45,7 +72,8 @@ import org.springframework.stereotype.Component;
  * @author Torsten Jaeschke
  */
 @Component
-public class LocalStorage implements IStorage {
+@ConditionalOnProperty(name = "project.storage.type", havingValue = "local", matchIfMissing = true)
+public class LocalStorage implements IStorage, ApplicationEventPublisherAware {
   private static final Logger logger = LoggerFactory.getLogger(LocalStorage.class);
 
   private String localStoragePath;
@@ -56,6 +84,47 @@ public class LocalStorage implements IStorage {
 
   private static final ObjectMapper MAPPER = new ObjectMapper();
 
+  private static final String PROJECT_KEY_FIELD = "projectKey";
+
+  private static final String LEGACY_KEY_FIELD = "key";
+
+  /** Millis within which modification dates may not differ, e.g. on network filesystems */
+  private static final long MODIFICATION_GRANULARITY = 2000;
+
+  /** All project files in the storage path */
+  static final String LAYOUT_FLAT = "flat";
+
+  /** Project files in subdirectories, see {@link ShardedStorageLayout} */
+  static final String LAYOUT_SHARDED = "sharded";
+
+  private String layout = LAYOUT_FLAT;
+
+  private ShardedStorageLayout shardedLayout;
+
+  private long tombstoneRetention = 86400;
+
+  private ProjectTombstones tombstones;
+
+  private String encoding = ProjectFileFormat.ENCODING_JSON;
+
+  private String compression = ProjectFileFormat.COMPRESSION_NONE;
+
+  private ProjectFileFormat fileFormat = ProjectFileFormat.DEFAULT;
+
+  private ApplicationEventPublisher eventPublisher;
+
+  private ProjectLocks projectLocks = new ProjectLocks();
+
+  /** The positions of the project files, null until the history is paged */
+  private volatile FilePositions filePositions;
+
+  /**
+   * Modification date of the files which could not be parsed, by path - so they are not parsed
+   * again on every lookup, until they are changed or quarantined by the {@link
+   * StorageIntegrityScanner}
+   */
+  private final Map<String, Long> unreadableFiles = new ConcurrentHashMap<>();
+
   /**
    * Store the project in the injected storage path Saves the raw JSON data
    *
@@ -68,65 +137,263 @@ public class LocalStorage implements IStorage {
     if (project == null || project.projectKey == null || project.projectKey.trim().length() == 0) {
       throw new IOException("Can't store invalid, null or no key project");
     }
-    return writeFile(project, null);
+    Lock lock = projectLocks.get(project.projectKey);
+    lock.lock();
+    try {
+      String filePath = writeFile(project, null);
+      projectChanged(ChangeType.STORED, project);
+      return filePath;
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
    * Load all files from the defined storage path and map them to the corresponding object
    *
-   * <p>TODO Fix comparator, because it does not sort in the correct order
-   *
-   * @return a desc date sorted list of projects
+   * @return the projects by creation date and key, newest first
    */
   @Override
   public Map<String, OpenProjectData> listProjectHistory() {
-    HashMap<String, OpenProjectData> history = new HashMap<>();
+    NavigableMap<HistoryCursor, OpenProjectData> projects = new TreeMap<>();
+    for (File file : listProjectFiles()) {
+      OpenProjectData data = readProjectFile(file);
+      if (data != null) {
+        projects.put(cursorOf(file), data);
+      }
+    }
+    return ProjectHistoryIndex.toHistory(projects);
+  }
+
+  @Override
+  public SortedMap<HistoryCursor, OpenProjectData> listProjectHistory(
+      HistoryCursor after, int limit) {
+    // the position is part of the file name, only the files of the page need to be read
+    NavigableMap<HistoryCursor, File> files = filePositions();
+    SortedMap<HistoryCursor, OpenProjectData> page = new TreeMap<>();
+    for (Map.Entry<HistoryCursor, File> file :
+        (after == null ? files : files.tailMap(after, false)).entrySet()) {
+      if (page.size() == limit) {
+        break;
+      }
+      OpenProjectData data = readProjectFile(file.getValue());
+      if (data != null) {
+        page.put(file.getKey(), data);
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Get the project files by their position. The positions are kept until the storage path is
+   * changed - files are added, moved or removed by this or another instance - so paging thru the
+   * history does not list the directory per page.
+   *
+   * @return the files, ordered by their position
+   */
+  NavigableMap<HistoryCursor, File> filePositions() {
+    long now = System.currentTimeMillis();
+    long directoryModified = new File(localStoragePath).lastModified();
+    FilePositions positions = filePositions;
+    if (positions == null
+        || positions.directoryModified != directoryModified
+        // changes within the granularity of the modification date are not told apart
+        || now - directoryModified < MODIFICATION_GRANULARITY) {
+      TreeMap<HistoryCursor, File> files = new TreeMap<>();
+      for (File file : listProjectFiles()) {
+        files.put(cursorOf(file), file);
+      }
+      positions = new FilePositions(directoryModified, Collections.unmodifiableNavigableMap(files));
+      filePositions = positions;
+    }
+    return positions.files;
+  }
+
+  @Override
+  public Map<String, OpenProjectData> listPermittedProjects(Set<String> groups) {
+    Map<String, OpenProjectData> permitted = new LinkedHashMap<>();
+    for (Map.Entry<String, OpenProjectData> project : listProjectHistory().entrySet()) {
+      if (ProjectGroupIndex.isPermitted(project.getValue(), groups)) {
+        permitted.put(project.getKey(), project.getValue());
+      }
+    }
+    return permitted;
+  }
+
+  /**
+   * List all project files within the storage path
+   *
+   * @return the project files, sorted by last modification date in the flat layout, and by creation
+   *     date in the sharded one
+   */
+  List<File> listProjectFiles() {
+    ShardedStorageLayout sharded = getShardedLayout();
+    if (sharded != null) {
+      return sharded.listFiles();
+    }
+    List<File> projectFiles = new ArrayList<>();
+    File folder = new File(localStoragePath);
+    if (!folder.isDirectory()) {
+      return projectFiles;
+    }
+    // read every modification date once, rather than twice per comparison
+    Map<File, Long> lastModified = new HashMap<>();
+    for (File file : folder.listFiles()) {
+      if (isProjectFile(file)) {
+        lastModified.put(file, file.lastModified());
+        projectFiles.add(file);
+      }
+    }
+    projectFiles.sort(Comparator.comparing(lastModified::get));
+    return projectFiles;
+  }
+
+  boolean isProjectFile(File file) {
+    return !file.isDirectory() && !file.isHidden() && file.getName().endsWith(".txt");
+  }
+
+  /**
+   * Read and map a single project file, upgrading legacy {@link ProjectData} on the fly
+   *
+   * @param file the file to read
+   * @return the project, or null in case the file cannot be read
+   */
+  OpenProjectData readProjectFile(File file) {
+    return readProjectFile(file, false);
+  }
+
+  /**
+   * Read and map a single project file. The format is detected once, based on the key field -
+   * {@link OpenProjectData#projectKey} for the current format, {@link ProjectData#key} for the
+   * legacy one.
+   *
+   * @param file the file to read
+   * @param rewriteLegacy if true, a legacy file is rewritten in the current format
+   * @return the project, or null in case the file cannot be read
+   */
+  OpenProjectData readProjectFile(File file, boolean rewriteLegacy) {
+    logger.debug("File {}:", file);
+    String path = file.getAbsolutePath();
+    long lastModified = file.lastModified();
+    Long unreadable = unreadableFiles.get(path);
+    if (unreadable != null && unreadable == lastModified) {
+      logger.debug("Project {} is known to be unreadable - skipping", file.getName());
+      return null;
+    }
+    byte[] content;
     try {
-      File folder = new File(localStoragePath);
-      if (folder.isDirectory()) {
-        File[] fileList = folder.listFiles();
-        Arrays.sort(fileList, LastModifiedFileComparator.LASTMODIFIED_COMPARATOR);
-        for (File file : fileList) {
-          if (!file.isDirectory() && !file.isHidden() && file.getName().endsWith(".txt")) {
-            logger.debug("File {}:", file);
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
-            DateTimeFormatter targetDt = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
-            String project = FileUtils.readFileToString(file);
-            LocalDateTime dt = LocalDateTime.parse(file.getName().substring(0, 14), formatter);
-
-            ProjectData temp = null;
-
-            try {
-              temp = MAPPER.readValue(project, ProjectData.class);
-            } catch (Exception MapperEx) {
-              // legacy :)
-            }
-
-            OpenProjectData data = null;
-
-            if (temp != null && temp.key != null) {
-              data = ProjectData.toOpenProjectData((ProjectData) temp);
-              logger.debug("Project {} is in legacy format, upgrading.", data.projectKey);
-            } else {
-              try {
-                data = MAPPER.readValue(project, OpenProjectData.class);
-                logger.debug("Project {} is in std format", data.projectKey);
-              } catch (PropertyBindingException crackedFileEx) {
-                logger.error("Project {} is CRACKED - skipping", file.getName());
-                continue;
-              }
-            }
-            data.physicalLocation = file.getAbsolutePath();
-
-            history.put(dt.format(targetDt), data);
-          }
-        }
+      content = Files.readAllBytes(file.toPath());
+    } catch (IOException accessEx) {
+      // e.g. deleted in the meantime, or not accessible - the file itself may be fine
+      logger.error("Unable to read project file {}: {}", file.getName(), accessEx.toString());
+      return null;
+    }
+
+    OpenProjectData data;
+    boolean legacy;
+    try {
+      JsonNode project = ProjectFileFormat.read(content);
+      if (project != null && project.hasNonNull(PROJECT_KEY_FIELD)) {
+        data = MAPPER.treeToValue(project, OpenProjectData.class);
+        legacy = false;
+        logger.debug("Project {} is in std format", data.projectKey);
+      } else if (project != null && project.hasNonNull(LEGACY_KEY_FIELD)) {
+        data = ProjectData.toOpenProjectData(MAPPER.treeToValue(project, ProjectData.class));
+        legacy = true;
+        logger.debug("Project {} is in legacy format, upgrading.", data.projectKey);
+      } else {
+        logger.error("Project {} has no key - skipping", file.getName());
+        unreadableFiles.put(path, lastModified);
+        return null;
+      }
+    } catch (IOException crackedFileEx) {
+      // parse errors, but also truncated or garbled compressed files and unknown headers
+      logger.error(
+          "Project {} is CRACKED - skipping: {}", file.getName(), crackedFileEx.toString());
+      unreadableFiles.put(path, lastModified);
+      return null;
+    }
+    if (unreadable != null) {
+      unreadableFiles.remove(path);
+    }
+    if (legacy && rewriteLegacy) {
+      try {
+        writeFile(data, file.getAbsolutePath());
+      } catch (IOException writeEx) {
+        logger.error("Unable to upgrade legacy project file " + file.getName(), writeEx);
+      }
+    }
+    data.physicalLocation = path;
+    return data;
+  }
+
+  /**
+   * Check whether a project file could not be parsed when it was read last, and was not changed
+   * since
+   *
+   * @param file the project file
+   * @return true in case the file is unreadable
+   */
+  boolean isUnreadable(File file) {
+    Long unreadable = unreadableFiles.get(file.getAbsolutePath());
+    return unreadable != null && unreadable == file.lastModified();
+  }
+
+  /**
+   * Move an unreadable project file out of the storage, so it is no longer listed
+   *
+   * @param file the project file
+   * @param quarantine the directory to move the file to
+   * @return the moved file
+   * @throws IOException in case the file cannot be moved
+   */
+  Path quarantineFile(File file, Path quarantine) throws IOException {
+    Files.createDirectories(quarantine);
+    Path target = quarantine.resolve(file.getName());
+    if (Files.exists(target)) {
+      target = quarantine.resolve(System.currentTimeMillis() + "-" + file.getName());
+    }
+    Files.move(file.toPath(), target);
+    unreadableFiles.remove(file.getAbsolutePath());
+
+    ShardedStorageLayout sharded = getShardedLayout();
+    if (sharded != null) {
+      String key = cursorOf(file).getKey();
+      if (file.getAbsoluteFile().equals(sharded.getFile(key))) {
+        sharded.remove(key);
       }
-    } catch (IOException ex) {
-      logger.error("Unable to read history", ex);
     }
+    logger.warn("Moved unreadable project file {} to {}", file, target);
+    return target;
+  }
 
-    return history;
+  /**
+   * Get the creation date of a project file from the timestamp prefix of its name
+   *
+   * @param file the project file
+   * @return the creation date
+   */
+  static LocalDateTime parseCreationDate(File file) {
+    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    return LocalDateTime.parse(file.getName().substring(0, 14), formatter);
+  }
+
+  /**
+   * Get the position of a project file within the history, based on its name
+   *
+   * @param file the project file
+   * @return the cursor of the file
+   */
+  static HistoryCursor cursorOf(File file) {
+    String name = file.getName();
+    long createdAt;
+    try {
+      createdAt = parseCreationDate(file).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    } catch (DateTimeParseException | StringIndexOutOfBoundsException noDateEx) {
+      return new HistoryCursor(file.lastModified(), name);
+    }
+    int keyEnd = name.endsWith(".txt") ? name.length() - 4 : name.length();
+    return new HistoryCursor(createdAt, name.substring(Math.min(15, keyEnd), keyEnd));
   }
 
   @Override
@@ -134,6 +401,15 @@ public class LocalStorage implements IStorage {
     if (id == null) {
       return null;
     }
+    ShardedStorageLayout sharded = getShardedLayout();
+    if (sharded != null) {
+      File file = sharded.getFile(id);
+      OpenProjectData project = file == null ? null : readProjectFile(file);
+      if (project == null) {
+        logger.debug("Could not find project with id {}", id);
+      }
+      return project;
+    }
     Collection<OpenProjectData> allProjects = listProjectHistory().values();
 
     for (OpenProjectData project : allProjects) {
@@ -154,66 +430,258 @@ public class LocalStorage implements IStorage {
       throw new IOException("Can't update invalid, null or no key project");
     }
 
-    OpenProjectData data = getProject(projectNew.projectKey);
+    Lock lock = projectLocks.get(projectNew.projectKey);
+    lock.lock();
+    try {
+      OpenProjectData data = getProject(projectNew.projectKey);
 
-    if (data == null) {
-      return false;
-    }
+      if (data == null) {
+        return false;
+      }
 
-    try {
       logger.debug("Updating existing project {} @ {}", data.projectKey, data.physicalLocation);
       writeFile(projectNew, data.physicalLocation);
+      projectChanged(ChangeType.UPDATED, projectNew);
       return true;
     } catch (IOException ex) {
       logger.error("Unable to read/write files", ex);
       return false;
+    } finally {
+      lock.unlock();
     }
   }
 
   @Value("${project.storage.local}")
   public void setLocalStoragePath(String localStoragePath) {
     this.localStoragePath = localStoragePath + File.separator;
+    this.shardedLayout = null;
+    this.tombstones = null;
+    this.filePositions = null;
+  }
+
+  /**
+   * Set the layout of the project files within the storage path
+   *
+   * @param layout {@value #LAYOUT_FLAT} or {@value #LAYOUT_SHARDED}
+   */
+  @Value("${project.storage.local.layout:" + LAYOUT_FLAT + "}")
+  public void setLayout(String layout) {
+    Preconditions.checkArgument(
+        LAYOUT_FLAT.equals(layout) || LAYOUT_SHARDED.equals(layout),
+        "Unknown storage layout '%s'",
+        layout);
+    this.layout = layout;
+    this.shardedLayout = null;
+  }
+
+  /**
+   * Set the encoding of written project files. Files of every encoding are read, see {@link
+   * ProjectFileFormat}.
+   *
+   * @param encoding {@value ProjectFileFormat#ENCODING_JSON} or {@value
+   *     ProjectFileFormat#ENCODING_SMILE}
+   */
+  @Value("${project.storage.local.format:" + ProjectFileFormat.ENCODING_JSON + "}")
+  public void setEncoding(String encoding) {
+    this.fileFormat = ProjectFileFormat.of(encoding, compression);
+    this.encoding = encoding;
+  }
+
+  /**
+   * Set the compression of written project files. Files of every compression are read, see {@link
+   * ProjectFileFormat}.
+   *
+   * @param compression {@value ProjectFileFormat#COMPRESSION_NONE} or {@value
+   *     ProjectFileFormat#COMPRESSION_GZIP}
+   */
+  @Value("${project.storage.local.compression:" + ProjectFileFormat.COMPRESSION_NONE + "}")
+  public void setCompression(String compression) {
+    this.fileFormat = ProjectFileFormat.of(encoding, compression);
+    this.compression = compression;
+  }
+
+  /**
+   * Set how long deleted project files are kept as tombstones, see {@link ProjectTombstones}
+   *
+   * @param tombstoneRetention the retention in seconds, 0 to purge right away
+   */
+  @Value("${project.storage.local.tombstone-retention:86400}")
+  public void setTombstoneRetention(long tombstoneRetention) {
+    Preconditions.checkArgument(tombstoneRetention >= 0, "Retention cannot be negative");
+    this.tombstoneRetention = tombstoneRetention;
+    this.tombstones = null;
+  }
+
+  /** Schedule the purge of the tombstones of projects deleted before the last shutdown */
+  @PostConstruct
+  public void schedulePendingPurges() {
+    getTombstones().schedulePending();
+  }
+
+  @PreDestroy
+  public void stopPurges() {
+    getTombstones().close();
+  }
+
+  /**
+   * Get the tombstones of deleted projects
+   *
+   * @return the tombstones
+   */
+  synchronized ProjectTombstones getTombstones() {
+    if (tombstones == null) {
+      tombstones =
+          new ProjectTombstones(
+              Paths.get(localStoragePath), TimeUnit.SECONDS.toMillis(tombstoneRetention));
+    }
+    return tombstones;
+  }
+
+  /**
+   * Get the sharded layout of the storage path
+   *
+   * @return the layout, or null in case of the flat layout
+   */
+  synchronized ShardedStorageLayout getShardedLayout() {
+    if (shardedLayout == null && LAYOUT_SHARDED.equals(layout)) {
+      shardedLayout = new ShardedStorageLayout(this, Paths.get(localStoragePath));
+    }
+    return shardedLayout;
+  }
+
+  /**
+   * Check whether a file is the manifest of the sharded layout
+   *
+   * @param file the file to check
+   * @return true in case the file is the manifest
+   */
+  boolean isManifest(File file) {
+    ShardedStorageLayout sharded = getShardedLayout();
+    return sharded != null && sharded.isManifest(file);
   }
 
   public String getLocalStoragePath() {
     return this.localStoragePath;
   }
 
+  /**
+   * Get the lock held while the file of a project is written, and the change is published
+   *
+   * @param projectKey the key of the project
+   * @return the lock
+   */
+  Lock projectLock(String projectKey) {
+    return projectLocks.get(projectKey);
+  }
+
+  /**
+   * Share the project locks with the callers merging changes into stored projects
+   *
+   * @param projectLocks the locks per project key
+   */
+  @Autowired(required = false)
+  public void setProjectLocks(ProjectLocks projectLocks) {
+    this.projectLocks = projectLocks;
+  }
+
+  /**
+   * Write a project to its file. The file is replaced atomically, so readers never see a partially
+   * written project.
+   *
+   * @param project the project to write
+   * @param fileName the file to replace, null to create a new one
+   * @return the absolute path of the file
+   * @throws IOException in case the file cannot be written
+   */
   String writeFile(OpenProjectData project, String fileName) throws IOException {
+    ShardedStorageLayout sharded = null;
     if (fileName == null) {
       LocalDateTime dateTime = LocalDateTime.now();
+      sharded = getShardedLayout();
       fileName =
-          String.format(
-              FILE_PATH_PATTERN,
-              localStoragePath,
-              dateTime.format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss")),
-              project.projectKey);
+          sharded != null
+              ? sharded.newFile(project.projectKey, dateTime).toString()
+              : String.format(
+                  FILE_PATH_PATTERN,
+                  localStoragePath,
+                  dateTime.format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss")),
+                  project.projectKey);
     }
-    ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
-    String json = ow.writeValueAsString(project);
-    try (FileWriter file = new FileWriter(fileName, false)) {
-      file.write(json);
-      file.close();
-      logger.debug("Successfully copied project {} to {}", project.projectKey, fileName);
-      logger.debug("JSON Object: {}", json);
+    byte[] content = fileFormat.write(project);
+    Path target = Paths.get(fileName).toAbsolutePath();
+    writeAtomically(target, content);
+    if (sharded != null) {
+      sharded.add(project.projectKey, target);
+    }
+    logger.debug("Successfully copied project {} to {}", project.projectKey, target);
+
+    fileName = target.toString();
+    project.physicalLocation = fileName;
+    return fileName;
+  }
+
+  /**
+   * Write the content to a hidden temp file next to the target, force it to disk, and move it over
+   * the target. A crash leaves either the former or the new content, plus at most a stale temp file
+   * - which is ignored, as it is no project file.
+   *
+   * @param target the file to create or replace
+   * @param content the new content
+   * @throws IOException in case the content cannot be written
+   */
+  static void writeAtomically(Path target, byte[] content) throws IOException {
+    Path directory = target.getParent();
+    Path temp = directory.resolve("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    try {
+      try (FileChannel channel =
+          FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      try {
+        Files.move(
+            temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException noAtomicMoveEx) {
+        logger.debug("Atomic move not supported in {}, replacing {}", directory, target);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    syncDirectory(directory);
+  }
 
-      fileName = new File(fileName).getAbsolutePath();
-      project.physicalLocation = fileName;
-      return fileName;
+  /** Make the rename durable - not possible on all platforms, e.g. windows */
+  private static void syncDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException notSupportedEx) {
+      logger.trace("Cannot sync directory {}: {}", directory, notSupportedEx.getMessage());
     }
   }
 
   /** Test Impl only */
   @Override
   public String storeAboutChangesData(AboutChangesData aboutData) throws IOException {
+    return writeAboutChangesData(aboutData);
+  }
+
+  @Override
+  public AboutChangesData listAboutChangesData() {
+    return readAboutChangesData();
+  }
+
+  static String writeAboutChangesData(AboutChangesData aboutData) throws IOException {
     ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
     StringWriter writer = new StringWriter();
     ow.writeValue(writer, aboutData);
     return writer.getBuffer().toString();
   }
 
-  @Override
-  public AboutChangesData listAboutChangesData() {
+  static AboutChangesData readAboutChangesData() {
     InputStream aboutChangesStream =
         Thread.currentThread()
             .getContextClassLoader()
@@ -245,6 +713,65 @@ public class LocalStorage implements IStorage {
     Preconditions.checkNotNull(project.physicalLocation);
 
     logger.debug("Deleting project {}, location {}", project.projectKey, project.physicalLocation);
-    return new File(project.physicalLocation).delete();
+    Lock lock = projectLocks.get(project.projectKey);
+    lock.lock();
+    try {
+      boolean deleted;
+      try {
+        // purged in the background, once the retention is over
+        getTombstones().bury(new File(project.physicalLocation));
+        deleted = true;
+      } catch (NoSuchFileException ex) {
+        logger.warn("Project file {} does not exist", project.physicalLocation);
+        deleted = false;
+      } catch (IOException ex) {
+        logger.error("Unable to delete project " + project.projectKey, ex);
+        deleted = false;
+      }
+      if (deleted) {
+        ShardedStorageLayout sharded = getShardedLayout();
+        if (sharded != null) {
+          try {
+            sharded.remove(project.projectKey);
+          } catch (IOException ex) {
+            logger.error("Unable to remove project " + project.projectKey + " from manifest", ex);
+          }
+        }
+        projectChanged(ChangeType.DELETED, project);
+      }
+      return deleted;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Called after a project was stored, updated or deleted - publishes the {@link
+   * ProjectStorageEvent}
+   *
+   * @param changeType the kind of change
+   * @param project the changed project
+   */
+  void projectChanged(ChangeType changeType, OpenProjectData project) {
+    filePositions = null;
+    if (eventPublisher != null) {
+      eventPublisher.publishEvent(new ProjectStorageEvent(this, changeType, project));
+    }
+  }
+
+  @Override
+  public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+    this.eventPublisher = eventPublisher;
+  }
+
+  /** The project files by their position, as of a modification date of the storage path */
+  private static final class FilePositions {
+    final long directoryModified;
+    final NavigableMap<HistoryCursor, File> files;
+
+    FilePositions(long directoryModified, NavigableMap<HistoryCursor, File> files) {
+      this.directoryModified = directoryModified;
+      this.files = files;
+    }
   }
 }
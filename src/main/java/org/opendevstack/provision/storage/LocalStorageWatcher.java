@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the storage path of an {@link IndexedLocalStorage} and refreshes its index with files
+ * created, modified or deleted by other instances sharing the path. Only the affected file is
+ * re-read. With the sharded layout, the manifest in the storage path is watched instead, and the
+ * changed files are found by their modification date.
+ *
+ * <p>As events can get lost (overflow), or are not delivered at all on network filesystems, the
+ * storage path is additionally scanned periodically for files whose modification date changed.
+ */
+public class LocalStorageWatcher {
+  private static final Logger logger = LoggerFactory.getLogger(LocalStorageWatcher.class);
+
+  private final IndexedLocalStorage storage;
+
+  private final long scanIntervalSeconds;
+
+  private WatchService watchService;
+
+  private ScheduledExecutorService scanExecutor;
+
+  private Thread watchThread;
+
+  /**
+   * @param storage the storage to refresh
+   * @param scanIntervalSeconds interval of the full modification date scan, 0 to disable it
+   */
+  public LocalStorageWatcher(IndexedLocalStorage storage, long scanIntervalSeconds) {
+    Preconditions.checkNotNull(storage, "Storage cannot be null");
+    this.storage = storage;
+    this.scanIntervalSeconds = scanIntervalSeconds;
+  }
+
+  /**
+   * Start watching the storage path
+   *
+   * @throws IOException in case the storage path cannot be watched
+   */
+  public synchronized void start() throws IOException {
+    Path storagePath = Paths.get(storage.getLocalStoragePath());
+    watchService = FileSystems.getDefault().newWatchService();
+    storagePath.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+    watchThread = new Thread(() -> watch(storagePath), "storage-watcher");
+    watchThread.setDaemon(true);
+    watchThread.start();
+
+    if (scanIntervalSeconds > 0) {
+      scanExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "storage-scanner");
+                thread.setDaemon(true);
+                return thread;
+              });
+      scanExecutor.scheduleWithFixedDelay(
+          this::rescan, scanIntervalSeconds, scanIntervalSeconds, TimeUnit.SECONDS);
+    }
+    logger.info(
+        "Watching storage path {}, full scan every {} seconds", storagePath, scanIntervalSeconds);
+  }
+
+  /** Stop watching the storage path */
+  public synchronized void stop() {
+    if (scanExecutor != null) {
+      scanExecutor.shutdownNow();
+    }
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException closeEx) {
+        logger.warn("Could not close storage watcher: {}", closeEx.getMessage());
+      }
+    }
+  }
+
+  private void watch(Path storagePath) {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == OVERFLOW) {
+            logger.debug("Storage watcher overflow, rescanning {}", storagePath);
+            rescan();
+            continue;
+          }
+          Path changed = storagePath.resolve((Path) event.context());
+          try {
+            if (storage.isManifest(changed.toFile())) {
+              storage.refreshManifest();
+            } else if (event.kind() == ENTRY_DELETE) {
+              storage.removeFile(changed.toFile());
+            } else {
+              storage.refreshFile(changed.toFile());
+            }
+          } catch (RuntimeException refreshEx) {
+            logger.error("Could not refresh project from " + changed, refreshEx);
+          }
+        }
+        if (!key.reset()) {
+          logger.error("Storage path {} cannot be watched anymore", storagePath);
+          return;
+        }
+      }
+    } catch (InterruptedException interrupted) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException closed) {
+      logger.debug("Storage watcher closed");
+    }
+  }
+
+  private void rescan() {
+    try {
+      storage.rescan();
+    } catch (RuntimeException rescanEx) {
+      logger.error("Could not rescan storage path", rescanEx);
+    }
+  }
+
+  boolean isRunning() {
+    return watchThread != null && watchThread.isAlive();
+  }
+}
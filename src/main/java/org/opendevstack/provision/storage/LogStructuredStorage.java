@@ -0,0 +1,723 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.opendevstack.provision.model.AboutChangesData;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.stereotype.Component;
+
+/**
+ * Append-only storage, writing projects as length prefixed, checksummed records into segment files.
+ * An in-memory index points to the latest record of every project, so a lookup is one positioned
+ * read. Updates and deletes append a new record, superseded records are dropped by a background
+ * compaction of the older segments.
+ *
+ * <p>A record that was not completely written (e.g. due to a crash) fails its checksum and is cut
+ * off upon the next start, the former state of the project stays readable.
+ *
+ * <p>Record layout: {@code [int body length][int crc32 of body][body]}, with body {@code [long
+ * sequence][long creation date][byte operation][short key length][key][json document]}
+ */
+@Component
+@ConditionalOnProperty(name = "project.storage.type", havingValue = "log")
+public class LogStructuredStorage implements IStorage, ApplicationEventPublisherAware {
+  private static final Logger logger = LoggerFactory.getLogger(LogStructuredStorage.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  static final String SEGMENT_FILE_PATTERN = "segment-%010d.log";
+
+  private static final String COMPACTION_MARKER = "segments.compacted";
+
+  private static final byte OP_STORE = 1;
+
+  private static final byte OP_DELETE = 2;
+
+  /** body length and checksum */
+  private static final int RECORD_PREFIX_SIZE = 8;
+
+  /** sequence, creation date, operation and key length */
+  private static final int BODY_HEADER_SIZE = 8 + 8 + 1 + 2;
+
+  private String storagePath;
+
+  @Value("${project.storage.log.segment-size:8388608}")
+  private long maxSegmentSize;
+
+  @Value("${project.storage.log.compaction-interval:300}")
+  private long compactionInterval;
+
+  @Value("${project.storage.log.fsync:true}")
+  private boolean fsync;
+
+  /** Location of the latest record per upper cased project key */
+  private final Map<String, RecordLocation> index = new ConcurrentHashMap<>();
+
+  private final ProjectGroupIndex groupIndex = new ProjectGroupIndex();
+
+  private final ProjectHistoryIndex historyIndex = new ProjectHistoryIndex();
+
+  private final Map<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+
+  /** Read lock for record reads, write lock to remove compacted segments */
+  private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+  /** Guards appends, segment rolling and the sequence */
+  private final Object appendLock = new Object();
+
+  private long sequence = 0;
+
+  private volatile int activeSegment;
+
+  private int nextSegment;
+
+  private ScheduledExecutorService compactionExecutor;
+
+  private ApplicationEventPublisher eventPublisher;
+
+  /**
+   * Open all segments and rebuild the index from them, and start the background compaction
+   *
+   * @throws IOException in case the segments cannot be read
+   */
+  @PostConstruct
+  public void open() throws IOException {
+    Files.createDirectories(Paths.get(storagePath));
+    recover();
+
+    if (compactionInterval > 0) {
+      compactionExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "storage-compaction");
+                thread.setDaemon(true);
+                return thread;
+              });
+      compactionExecutor.scheduleWithFixedDelay(
+          this::compactQuietly, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void close() {
+    if (compactionExecutor != null) {
+      compactionExecutor.shutdownNow();
+    }
+    segmentLock.writeLock().lock();
+    try {
+      for (FileChannel channel : segments.values()) {
+        closeQuietly(channel);
+      }
+      segments.clear();
+    } finally {
+      segmentLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public String storeProject(OpenProjectData project) throws IOException {
+    if (project == null || project.projectKey == null || project.projectKey.trim().length() == 0) {
+      throw new IOException("Can't store invalid, null or no key project");
+    }
+    String location = write(project, false);
+    projectChanged(ChangeType.STORED, project);
+    return location;
+  }
+
+  @Override
+  public Map<String, OpenProjectData> listProjectHistory() {
+    Map<String, OpenProjectData> history = new LinkedHashMap<>();
+    for (HistoryCursor cursor : historyIndex.newestFirst()) {
+      OpenProjectData project = getProject(cursor.getKey());
+      // null in case the project was deleted in the meantime
+      if (project != null) {
+        history.put(cursor.toHistoryKey(), project);
+      }
+    }
+    return history;
+  }
+
+  @Override
+  public SortedMap<HistoryCursor, OpenProjectData> listProjectHistory(
+      HistoryCursor after, int limit) {
+    SortedMap<HistoryCursor, OpenProjectData> page = new TreeMap<>();
+    for (HistoryCursor cursor : historyIndex.page(after, limit)) {
+      OpenProjectData project = getProject(cursor.getKey());
+      if (project != null) {
+        page.put(cursor, project);
+      }
+    }
+    return page;
+  }
+
+  @Override
+  public Map<String, OpenProjectData> listPermittedProjects(Set<String> groups) {
+    NavigableMap<HistoryCursor, OpenProjectData> permitted = new TreeMap<>();
+    for (String key : groupIndex.getPermittedKeys(groups)) {
+      HistoryCursor cursor = historyIndex.get(key);
+      OpenProjectData project = getProject(key);
+      if (cursor != null && project != null) {
+        permitted.put(cursor, project);
+      }
+    }
+    return ProjectHistoryIndex.toHistory(permitted);
+  }
+
+  @Override
+  public OpenProjectData getProject(String key) {
+    if (key == null) {
+      return null;
+    }
+    String indexKey = key.toUpperCase();
+    RecordLocation location = index.get(indexKey);
+    while (location != null) {
+      segmentLock.readLock().lock();
+      try {
+        FileChannel channel = segments.get(location.segment);
+        if (channel != null) {
+          Record record = readRecord(channel, location.offset);
+          OpenProjectData project = MAPPER.readValue(record.document, OpenProjectData.class);
+          project.physicalLocation = segmentPath(location.segment).toString();
+          return project;
+        }
+      } catch (IOException readEx) {
+        logger.error("Unable to read project " + key, readEx);
+        return null;
+      } finally {
+        segmentLock.readLock().unlock();
+      }
+      // the segment was just compacted - the index refers to the moved record then, otherwise the
+      // storage is closed
+      RecordLocation moved = index.get(indexKey);
+      if (moved == location) {
+        logger.debug("Segment {} of project {} is closed", location.segment, key);
+        return null;
+      }
+      location = moved;
+    }
+    logger.debug("Could not find project with id {}", key);
+    return null;
+  }
+
+  @Override
+  public boolean updateStoredProject(OpenProjectData project) throws IOException {
+    if (project == null || project.projectKey == null || project.projectKey.trim().length() == 0) {
+      throw new IOException("Can't update invalid, null or no key project");
+    }
+    if (write(project, true) == null) {
+      return false;
+    }
+    projectChanged(ChangeType.UPDATED, project);
+    return true;
+  }
+
+  @Override
+  public boolean deleteProject(OpenProjectData project) {
+    Preconditions.checkNotNull(project, "cannot delete null project");
+    Preconditions.checkNotNull(project.projectKey, "cannot delete project without key");
+
+    String key = project.projectKey.toUpperCase();
+    logger.debug("Deleting project {}", key);
+    try {
+      synchronized (appendLock) {
+        if (!index.containsKey(key)) {
+          return false;
+        }
+        append(OP_DELETE, key, new byte[0], 0);
+        index.remove(key);
+        groupIndex.remove(key);
+        historyIndex.remove(key);
+      }
+    } catch (IOException deleteEx) {
+      logger.error("Unable to delete project " + key, deleteEx);
+      return false;
+    }
+    projectChanged(ChangeType.DELETED, project);
+    return true;
+  }
+
+  private void projectChanged(ChangeType changeType, OpenProjectData project) {
+    if (eventPublisher != null) {
+      eventPublisher.publishEvent(new ProjectStorageEvent(this, changeType, project));
+    }
+  }
+
+  @Override
+  public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+    this.eventPublisher = eventPublisher;
+  }
+
+  /** Test Impl only */
+  @Override
+  public String storeAboutChangesData(AboutChangesData aboutData) throws IOException {
+    return LocalStorage.writeAboutChangesData(aboutData);
+  }
+
+  @Override
+  public AboutChangesData listAboutChangesData() {
+    return LocalStorage.readAboutChangesData();
+  }
+
+  @Override
+  public String getStoragePath() {
+    return storagePath;
+  }
+
+  @Value("${project.storage.log.path:${project.storage.local}}")
+  public void setStoragePath(String storagePath) {
+    this.storagePath = storagePath;
+  }
+
+  /**
+   * Append a project, checking its existence under the append lock - so a concurrent delete is not
+   * undone by an update, and a concurrent store is not overwritten
+   *
+   * @param project the project
+   * @param update true to update a stored project, keeping its creation date
+   * @return the path of the segment, null in case the project to update does not exist
+   * @throws IOException in case the project cannot be written, or is to be stored but exists
+   */
+  private String write(OpenProjectData project, boolean update) throws IOException {
+    String key = project.projectKey.toUpperCase();
+    project.physicalLocation = null;
+    byte[] document = MAPPER.writeValueAsBytes(project);
+    synchronized (appendLock) {
+      RecordLocation existing = index.get(key);
+      if (update && existing == null) {
+        return null;
+      }
+      if (!update && existing != null) {
+        // keeps the stored project and its creation date, like the other storages
+        throw new IOException("Project " + project.projectKey + " already exists");
+      }
+      long createdAt = update ? existing.createdAt : System.currentTimeMillis();
+      RecordLocation location = append(OP_STORE, key, document, createdAt);
+      index.put(key, location);
+      groupIndex.update(project);
+      historyIndex.put(new HistoryCursor(createdAt, key));
+      project.physicalLocation = segmentPath(location.segment).toString();
+    }
+    logger.debug("Successfully stored project {} to {}", key, project.physicalLocation);
+    return project.physicalLocation;
+  }
+
+  /** Needs to be called while holding the append lock */
+  private RecordLocation append(byte operation, String key, byte[] document, long createdAt)
+      throws IOException {
+    if (segments.get(activeSegment).size() >= maxSegmentSize) {
+      rollSegment();
+    }
+    long recordSequence = ++sequence;
+    ByteBuffer record = encode(recordSequence, createdAt, operation, key, document);
+    FileChannel channel = segments.get(activeSegment);
+    long offset = channel.size();
+    while (record.hasRemaining()) {
+      channel.write(record, offset + record.position());
+    }
+    if (fsync) {
+      channel.force(false);
+    }
+    return new RecordLocation(activeSegment, offset, record.limit(), recordSequence, createdAt);
+  }
+
+  private void rollSegment() throws IOException {
+    int segment = nextSegment++;
+    segments.put(segment, openSegment(segment));
+    activeSegment = segment;
+    logger.debug("Rolled to new segment {}", segment);
+  }
+
+  /**
+   * Rewrite the live records of all segments but the active one into a new segment, and remove the
+   * compacted segments. Skipped in case there is a single older segment with mostly live records.
+   *
+   * @throws IOException in case the new segment cannot be written
+   */
+  void compact() throws IOException {
+    Set<Integer> compacted = new HashSet<>();
+    int target;
+    synchronized (appendLock) {
+      for (Integer segment : segments.keySet()) {
+        if (segment != activeSegment) {
+          compacted.add(segment);
+        }
+      }
+      if (compacted.isEmpty()) {
+        return;
+      }
+      target = nextSegment++;
+    }
+
+    Map<String, RecordLocation> live = new HashMap<>();
+    for (Map.Entry<String, RecordLocation> entry : index.entrySet()) {
+      if (compacted.contains(entry.getValue().segment)) {
+        live.put(entry.getKey(), entry.getValue());
+      }
+    }
+    long totalSize = 0;
+    for (Integer segment : compacted) {
+      totalSize += segments.get(segment).size();
+    }
+    long liveSize = 0;
+    for (RecordLocation location : live.values()) {
+      liveSize += location.size;
+    }
+    if (compacted.size() == 1 && liveSize * 2 > totalSize) {
+      return;
+    }
+
+    FileChannel targetChannel = openSegment(target);
+    Map<RecordLocation, RecordLocation> moved = new HashMap<>();
+    long position = 0;
+    for (RecordLocation location : live.values()) {
+      Record record = readRecord(segments.get(location.segment), location.offset);
+      ByteBuffer buffer =
+          encode(record.sequence, record.createdAt, OP_STORE, record.key, record.document);
+      while (buffer.hasRemaining()) {
+        targetChannel.write(buffer, position + buffer.position());
+      }
+      moved.put(
+          location,
+          new RecordLocation(target, position, record.size, record.sequence, record.createdAt));
+      position += buffer.limit();
+    }
+    targetChannel.force(true);
+    segments.put(target, targetChannel);
+
+    // dropped tombstones must not revive a project, hence the compacted segments are either all
+    // removed or none - in case of a crash, recovery finishes the removal based on this marker
+    writeCompactionMarker(compacted);
+
+    segmentLock.writeLock().lock();
+    try {
+      for (Map.Entry<String, RecordLocation> entry : live.entrySet()) {
+        // only in case the project was not changed in the meantime
+        index.replace(entry.getKey(), entry.getValue(), moved.get(entry.getValue()));
+      }
+      for (Integer segment : compacted) {
+        closeQuietly(segments.remove(segment));
+      }
+    } finally {
+      segmentLock.writeLock().unlock();
+    }
+    removeCompactedSegments();
+    logger.info(
+        "Compacted segments {} into segment {} - {} live records, {} of {} bytes",
+        compacted,
+        target,
+        live.size(),
+        position,
+        totalSize);
+  }
+
+  private void compactQuietly() {
+    try {
+      compact();
+    } catch (IOException | RuntimeException compactionEx) {
+      logger.error("Unable to compact segments", compactionEx);
+    }
+  }
+
+  /**
+   * Rebuild the index from all segments. A record that is incomplete or fails its checksum ends the
+   * segment, the segment is cut off there.
+   */
+  private void recover() throws IOException {
+    removeCompactedSegments();
+
+    TreeMap<Integer, Path> segmentFiles = new TreeMap<>();
+    File[] files = new File(storagePath).listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Integer segment = parseSegment(file.getName());
+        if (segment != null) {
+          segmentFiles.put(segment, file.toPath());
+        }
+      }
+    }
+
+    Map<String, RecordLocation> latest = new HashMap<>();
+    Set<String> deleted = new HashSet<>();
+    long start = System.currentTimeMillis();
+    int records = 0;
+    for (Map.Entry<Integer, Path> segmentFile : segmentFiles.entrySet()) {
+      int segment = segmentFile.getKey();
+      FileChannel channel = openSegment(segment);
+      segments.put(segment, channel);
+
+      long offset = 0;
+      long size = channel.size();
+      while (offset < size) {
+        Record record;
+        try {
+          record = readRecord(channel, offset);
+        } catch (IOException corruptEx) {
+          logger.error(
+              "Segment {} is corrupt at offset {} - cutting off {} bytes: {}",
+              segment,
+              offset,
+              size - offset,
+              corruptEx.getMessage());
+          channel.truncate(offset);
+          break;
+        }
+        records++;
+        sequence = Math.max(sequence, record.sequence);
+        RecordLocation current = latest.get(record.key);
+        if (current == null || current.sequence < record.sequence) {
+          latest.put(
+              record.key,
+              new RecordLocation(segment, offset, record.size, record.sequence, record.createdAt));
+          if (record.operation == OP_DELETE) {
+            deleted.add(record.key);
+          } else {
+            deleted.remove(record.key);
+          }
+        }
+        offset += record.size;
+      }
+    }
+
+    for (Map.Entry<String, RecordLocation> entry : latest.entrySet()) {
+      if (!deleted.contains(entry.getKey())) {
+        index.put(entry.getKey(), entry.getValue());
+        historyIndex.put(new HistoryCursor(entry.getValue().createdAt, entry.getKey()));
+      }
+    }
+    for (String key : index.keySet()) {
+      OpenProjectData project = getProject(key);
+      if (project != null) {
+        groupIndex.update(project);
+      }
+    }
+
+    if (segmentFiles.isEmpty()) {
+      nextSegment = 0;
+      rollSegment();
+    } else {
+      activeSegment = segmentFiles.lastKey();
+      nextSegment = activeSegment + 1;
+    }
+    logger.info(
+        "Recovered {} projects from {} records in {} segments of {} in {} ms",
+        index.size(),
+        records,
+        segmentFiles.size(),
+        storagePath,
+        System.currentTimeMillis() - start);
+  }
+
+  private void writeCompactionMarker(Set<Integer> compacted) throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (Integer segment : compacted) {
+      lines.add(String.valueOf(segment));
+    }
+    Path marker = compactionMarkerPath();
+    Path temp = Paths.get(marker.toString() + ".tmp");
+    Files.write(temp, lines, StandardCharsets.UTF_8);
+    Files.move(temp, marker, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Delete the segments listed in the compaction marker, and the marker itself */
+  private void removeCompactedSegments() throws IOException {
+    Path marker = compactionMarkerPath();
+    if (!Files.exists(marker)) {
+      return;
+    }
+    for (String segment : Files.readAllLines(marker, StandardCharsets.UTF_8)) {
+      if (!segment.trim().isEmpty()) {
+        Files.deleteIfExists(segmentPath(Integer.parseInt(segment.trim())));
+      }
+    }
+    Files.delete(marker);
+  }
+
+  private Path compactionMarkerPath() {
+    return Paths.get(storagePath, COMPACTION_MARKER);
+  }
+
+  private static ByteBuffer encode(
+      long sequence, long createdAt, byte operation, String key, byte[] document) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int bodyLength = BODY_HEADER_SIZE + keyBytes.length + document.length;
+    ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX_SIZE + bodyLength);
+    record.putInt(bodyLength);
+    record.putInt(0);
+    record.putLong(sequence);
+    record.putLong(createdAt);
+    record.put(operation);
+    record.putShort((short) keyBytes.length);
+    record.put(keyBytes);
+    record.put(document);
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), RECORD_PREFIX_SIZE, bodyLength);
+    record.putInt(4, (int) crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  private static Record readRecord(FileChannel channel, long offset) throws IOException {
+    ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_SIZE);
+    readFully(channel, prefix, offset);
+    int bodyLength = prefix.getInt(0);
+    int checksum = prefix.getInt(4);
+    if (bodyLength < BODY_HEADER_SIZE
+        || offset + RECORD_PREFIX_SIZE + bodyLength > channel.size()) {
+      throw new IOException("Invalid record length " + bodyLength);
+    }
+
+    ByteBuffer body = ByteBuffer.allocate(bodyLength);
+    readFully(channel, body, offset + RECORD_PREFIX_SIZE);
+    CRC32 crc = new CRC32();
+    crc.update(body.array(), 0, bodyLength);
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Checksum mismatch");
+    }
+
+    body.flip();
+    Record record = new Record();
+    record.size = RECORD_PREFIX_SIZE + bodyLength;
+    record.sequence = body.getLong();
+    record.createdAt = body.getLong();
+    record.operation = body.get();
+    byte[] key = new byte[body.getShort()];
+    body.get(key);
+    record.key = new String(key, StandardCharsets.UTF_8);
+    record.document = new byte[body.remaining()];
+    body.get(record.document);
+    return record;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long offset)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of segment");
+      }
+    }
+  }
+
+  private FileChannel openSegment(int segment) throws IOException {
+    return FileChannel.open(
+        segmentPath(segment),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  Path segmentPath(int segment) {
+    return Paths.get(storagePath, String.format(SEGMENT_FILE_PATTERN, segment));
+  }
+
+  List<Integer> listSegments() {
+    return new ArrayList<>(new TreeMap<>(segments).keySet());
+  }
+
+  private static Integer parseSegment(String fileName) {
+    if (!fileName.matches("segment-\\d{10}\\.log")) {
+      return null;
+    }
+    return Integer.valueOf(fileName.substring(8, 18));
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException closeEx) {
+      logger.warn("Could not close segment: {}", closeEx.getMessage());
+    }
+  }
+
+  void setMaxSegmentSize(long maxSegmentSize) {
+    this.maxSegmentSize = maxSegmentSize;
+  }
+
+  void setCompactionInterval(long compactionInterval) {
+    this.compactionInterval = compactionInterval;
+  }
+
+  void setFsync(boolean fsync) {
+    this.fsync = fsync;
+  }
+
+  /** Position of a record within the segments */
+  private static final class RecordLocation {
+    final int segment;
+    final long offset;
+    final int size;
+    final long sequence;
+    final long createdAt;
+
+    RecordLocation(int segment, long offset, int size, long sequence, long createdAt) {
+      this.segment = segment;
+      this.offset = offset;
+      this.size = size;
+      this.sequence = sequence;
+      this.createdAt = createdAt;
+    }
+  }
+
+  /** A decoded record */
+  private static final class Record {
+    int size;
+    long sequence;
+    long createdAt;
+    byte operation;
+    String key;
+    byte[] document;
+  }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.opendevstack.provision.adapter.ISCMAdapter.URL_TYPE;
+import org.opendevstack.provision.model.OpenProjectData;
+
+/**
+ * Compact in-memory representation of projects that are kept for a long time, e.g. within the index
+ * of {@link IndexedLocalStorage}. Thousands of projects repeat the same groups, quickstarter types
+ * and repository URL patterns:
+ *
+ * <ul>
+ *   <li>groups, users, project types and quickstarter types are taken from a pool of strings
+ *   <li>the URLs of a repository are kept as parts shared with the other repositories (e.g. {@code
+ *       https://bitbucket/scm/odsdemo/}, the repository name, and {@code .git}), in arrays indexed
+ *       by {@link URL_TYPE} like an {@link java.util.EnumMap}. The git URLs of a quickstarter refer
+ *       to the ones of its repository.
+ *   <li>lists and maps are immutable copies, sized to their content - maps of quickstarters share
+ *       their keys
+ * </ul>
+ *
+ * Compacted projects are immutable, callers hand out copies.
+ */
+public final class ProjectCompactor {
+
+  private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+  /** Keys of the maps within projects, e.g. of quickstarters */
+  private static final Interner<List<String>> KEYS = Interners.newWeakInterner();
+
+  private static final URL_TYPE[] URL_TYPES = URL_TYPE.values();
+
+  /** Quickstarter values repeated across projects */
+  private static final Set<String> SHARED_QUICKSTARTER_KEYS =
+      ImmutableSet.of(
+          OpenProjectData.COMPONENT_ID_KEY,
+          OpenProjectData.COMPONENT_TYPE_KEY,
+          OpenProjectData.COMPONENT_DESC_KEY);
+
+  private ProjectCompactor() {}
+
+  /**
+   * Compact a project in place
+   *
+   * @param project the project, not to be modified afterwards
+   * @return the project
+   */
+  public static OpenProjectData compact(OpenProjectData project) {
+    if (project == null) {
+      return null;
+    }
+    project.projectAdminGroup = intern(project.projectAdminGroup);
+    project.projectUserGroup = intern(project.projectUserGroup);
+    project.projectReadonlyGroup = intern(project.projectReadonlyGroup);
+    project.projectAdminUser = intern(project.projectAdminUser);
+    project.projectType = intern(project.projectType);
+    // the URLs of the repositories, by URL - referred to by the quickstarters
+    Map<String, RepositoryUrl> urls = new HashMap<>();
+    project.repositories = compactRepositories(project.repositories, urls);
+    project.quickstarters = compactQuickstarters(project.quickstarters, urls);
+    project.lastExecutionJobs = compactList(project.lastExecutionJobs);
+    return project;
+  }
+
+  /**
+   * Get the pooled instance of a string
+   *
+   * @param value the string
+   * @return the pooled string equal to it, null in case of null
+   */
+  public static String intern(String value) {
+    return value == null ? null : STRINGS.intern(value);
+  }
+
+  private static List<Map<String, String>> compactQuickstarters(
+      List<Map<String, String>> quickstarters, Map<String, RepositoryUrl> urls) {
+    if (quickstarters == null) {
+      return null;
+    }
+    List<Map<String, String>> compacted = new ArrayList<>(quickstarters.size());
+    for (Map<String, String> quickstarter : quickstarters) {
+      if (quickstarter == null) {
+        return Collections.unmodifiableList(new ArrayList<>(quickstarters));
+      }
+      List<String> keys = new ArrayList<>(quickstarter.size());
+      Object[] values = new Object[quickstarter.size()];
+      for (Map.Entry<String, String> entry : quickstarter.entrySet()) {
+        String value = entry.getValue();
+        if (SHARED_QUICKSTARTER_KEYS.contains(entry.getKey())) {
+          values[keys.size()] = intern(value);
+        } else {
+          // e.g. the git URLs, which are the ones of the repository of the quickstarter
+          RepositoryUrl url = value == null ? null : urls.get(value);
+          values[keys.size()] = url != null ? url : value;
+        }
+        keys.add(intern(entry.getKey()));
+      }
+      compacted.add(new ArrayMap<>(KEYS.intern(Collections.unmodifiableList(keys)), values));
+    }
+    return compactList(compacted);
+  }
+
+  private static Map<String, Map<URL_TYPE, String>> compactRepositories(
+      Map<String, Map<URL_TYPE, String>> repositories, Map<String, RepositoryUrl> urls) {
+    if (repositories == null) {
+      return null;
+    }
+    // the prefixes contain the project key, and are shared within the project only
+    Map<String, String> prefixes = new HashMap<>();
+    List<String> names = new ArrayList<>(repositories.size());
+    Object[] values = new Object[repositories.size()];
+    for (Map.Entry<String, Map<URL_TYPE, String>> repository : repositories.entrySet()) {
+      Map<URL_TYPE, String> repositoryUrls = repository.getValue();
+      if (repository.getKey() != null
+          && repositoryUrls != null
+          && !repositoryUrls.containsKey(null)) {
+        RepositoryUrls compacted =
+            new RepositoryUrls(repository.getKey(), repositoryUrls, prefixes);
+        for (Map.Entry<URL_TYPE, String> url : compacted.entrySet()) {
+          urls.putIfAbsent(url.getValue(), new RepositoryUrl(compacted, url.getKey()));
+        }
+        repositoryUrls = compacted;
+      } else if (repositoryUrls != null) {
+        repositoryUrls = Collections.unmodifiableMap(repositoryUrls);
+      }
+      values[names.size()] = repositoryUrls;
+      names.add(repository.getKey());
+    }
+    return new ArrayMap<>(Collections.unmodifiableList(names), values);
+  }
+
+  private static <T> List<T> compactList(List<T> list) {
+    if (list == null) {
+      return null;
+    }
+    if (list.contains(null)) {
+      return Collections.unmodifiableList(new ArrayList<>(list));
+    }
+    return ImmutableList.copyOf(list);
+  }
+
+  /**
+   * Immutable map of a few entries, kept in insertion order as an array of values. The list of keys
+   * is shared by maps with the same keys, e.g. by the quickstarters of all projects. A value may
+   * refer to the URL of a repository instead.
+   */
+  static final class ArrayMap<V> extends AbstractMap<String, V> {
+    private final List<String> keys;
+
+    private final Object[] values;
+
+    ArrayMap(List<String> keys, Object[] values) {
+      this.keys = keys;
+      this.values = values;
+    }
+
+    @Override
+    public V get(Object key) {
+      int index = keys.indexOf(key);
+      return index < 0 ? null : value(index);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return keys.contains(key);
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+      return new AbstractSet<Entry<String, V>>() {
+        @Override
+        public Iterator<Entry<String, V>> iterator() {
+          return new Iterator<Entry<String, V>>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+              return next < values.length;
+            }
+
+            @Override
+            public Entry<String, V> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              Entry<String, V> entry = new SimpleImmutableEntry<>(keys.get(next), value(next));
+              next++;
+              return entry;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return values.length;
+        }
+      };
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int index) {
+      Object value = values[index];
+      return (V) (value instanceof RepositoryUrl ? ((RepositoryUrl) value).get() : value);
+    }
+  }
+
+  /** The URL of a repository, of one {@link URL_TYPE} */
+  private static final class RepositoryUrl {
+    private final RepositoryUrls urls;
+
+    private final URL_TYPE type;
+
+    RepositoryUrl(RepositoryUrls urls, URL_TYPE type) {
+      this.urls = urls;
+      this.type = type;
+    }
+
+    String get() {
+      return urls.get(type);
+    }
+  }
+
+  /**
+   * The URLs of a repository, by {@link URL_TYPE}. A URL containing the repository name is kept as
+   * the part before and after it.
+   */
+  static final class RepositoryUrls extends AbstractMap<URL_TYPE, String> {
+    private final String name;
+
+    /** The part before the name, or the whole URL in case it does not contain the name */
+    private final String[] prefixes = new String[URL_TYPES.length];
+
+    /** The part after the name, null in case the prefix is the whole URL */
+    private final String[] suffixes = new String[URL_TYPES.length];
+
+    private final int size;
+
+    RepositoryUrls(String name, Map<URL_TYPE, String> urls, Map<String, String> sharedPrefixes) {
+      this.name = name;
+      int count = 0;
+      for (URL_TYPE type : URL_TYPES) {
+        String url = urls.get(type);
+        if (url == null) {
+          continue;
+        }
+        count++;
+        int start = url.lastIndexOf(name);
+        if (start < 0) {
+          prefixes[type.ordinal()] = url;
+        } else {
+          String prefix = url.substring(0, start);
+          String existing = sharedPrefixes.putIfAbsent(prefix, prefix);
+          prefixes[type.ordinal()] = existing != null ? existing : prefix;
+          suffixes[type.ordinal()] = intern(url.substring(start + name.length()));
+        }
+      }
+      this.size = count;
+    }
+
+    @Override
+    public String get(Object key) {
+      if (!(key instanceof URL_TYPE)) {
+        return null;
+      }
+      int ordinal = ((URL_TYPE) key).ordinal();
+      String prefix = prefixes[ordinal];
+      String suffix = suffixes[ordinal];
+      return suffix == null ? prefix : prefix + name + suffix;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return key instanceof URL_TYPE && prefixes[((URL_TYPE) key).ordinal()] != null;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public Set<Entry<URL_TYPE, String>> entrySet() {
+      return new AbstractSet<Entry<URL_TYPE, String>>() {
+        @Override
+        public Iterator<Entry<URL_TYPE, String>> iterator() {
+          return new Iterator<Entry<URL_TYPE, String>>() {
+            private int next = advance(0);
+
+            @Override
+            public boolean hasNext() {
+              return next < URL_TYPES.length;
+            }
+
+            @Override
+            public Entry<URL_TYPE, String> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              URL_TYPE type = URL_TYPES[next];
+              next = advance(next + 1);
+              return new SimpleImmutableEntry<>(type, get(type));
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return size;
+        }
+      };
+    }
+
+    private int advance(int from) {
+      int ordinal = from;
+      while (ordinal < URL_TYPES.length && prefixes[ordinal] == null) {
+        ordinal++;
+      }
+      return ordinal;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding of the project files of a {@link LocalStorage}. Plain JSON is written as before - pretty
+ * printed, without header. All other formats start with a header, so files of every format can be
+ * read no matter which one is configured:
+ *
+ * <pre>
+ * 'O' 'D' 'S' 'P' | version (1) | encoding (0 = JSON, 1 = Smile) | compression (0 = none, 1 = gzip)
+ * </pre>
+ *
+ * <p>Smile is the binary form of JSON; with shared string values, the URLs repeated within the
+ * repositories of a project are written once.
+ */
+final class ProjectFileFormat {
+
+  static final String ENCODING_JSON = "json";
+
+  static final String ENCODING_SMILE = "smile";
+
+  static final String COMPRESSION_NONE = "none";
+
+  static final String COMPRESSION_GZIP = "gzip";
+
+  static final ProjectFileFormat DEFAULT = of(ENCODING_JSON, COMPRESSION_NONE);
+
+  private static final byte[] MAGIC = {'O', 'D', 'S', 'P'};
+
+  private static final byte VERSION = 1;
+
+  private static final int HEADER_LENGTH = MAGIC.length + 3;
+
+  private static final byte JSON = 0;
+
+  private static final byte SMILE = 1;
+
+  private static final byte NONE = 0;
+
+  private static final byte GZIP = 1;
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+  private static final ObjectWriter PRETTY_JSON_WRITER =
+      JSON_MAPPER.writer().withDefaultPrettyPrinter();
+
+  private static final ObjectMapper SMILE_MAPPER =
+      new ObjectMapper(
+          new SmileFactory().enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES));
+
+  private final byte encoding;
+
+  private final byte compression;
+
+  private ProjectFileFormat(byte encoding, byte compression) {
+    this.encoding = encoding;
+    this.compression = compression;
+  }
+
+  /**
+   * Get a format
+   *
+   * @param encoding {@link #ENCODING_JSON} or {@link #ENCODING_SMILE}
+   * @param compression {@link #COMPRESSION_NONE} or {@link #COMPRESSION_GZIP}
+   * @return the format
+   * @throws IllegalArgumentException in case the encoding or compression is unknown
+   */
+  static ProjectFileFormat of(String encoding, String compression) {
+    Preconditions.checkNotNull(encoding, "Encoding cannot be null");
+    Preconditions.checkNotNull(compression, "Compression cannot be null");
+    byte encodingId;
+    if (ENCODING_JSON.equalsIgnoreCase(encoding)) {
+      encodingId = JSON;
+    } else if (ENCODING_SMILE.equalsIgnoreCase(encoding)) {
+      encodingId = SMILE;
+    } else {
+      throw new IllegalArgumentException("Unknown project file encoding " + encoding);
+    }
+    byte compressionId;
+    if (COMPRESSION_NONE.equalsIgnoreCase(compression)) {
+      compressionId = NONE;
+    } else if (COMPRESSION_GZIP.equalsIgnoreCase(compression)) {
+      compressionId = GZIP;
+    } else {
+      throw new IllegalArgumentException("Unknown project file compression " + compression);
+    }
+    return new ProjectFileFormat(encodingId, compressionId);
+  }
+
+  /**
+   * Encode a project
+   *
+   * @param value the project to encode
+   * @return the content of the project file
+   * @throws IOException in case the project cannot be encoded
+   */
+  byte[] write(Object value) throws IOException {
+    if (encoding == JSON && compression == NONE) {
+      return PRETTY_JSON_WRITER.writeValueAsBytes(value);
+    }
+    ByteArrayOutputStream content = new ByteArrayOutputStream(1024);
+    content.write(MAGIC);
+    content.write(VERSION);
+    content.write(encoding);
+    content.write(compression);
+    OutputStream payload = compression == GZIP ? new GZIPOutputStream(content) : content;
+    (encoding == SMILE ? SMILE_MAPPER : JSON_MAPPER).writeValue(payload, value);
+    payload.close();
+    return content.toByteArray();
+  }
+
+  /**
+   * Decode a project file of any format
+   *
+   * @param content the content of the file
+   * @return the decoded tree
+   * @throws JsonParseException in case the content cannot be parsed
+   * @throws IOException in case the content cannot be decompressed, or has an unknown header
+   */
+  static JsonNode read(byte[] content) throws IOException {
+    if (!hasHeader(content)) {
+      return JSON_MAPPER.readTree(content);
+    }
+    if (content[MAGIC.length] != VERSION) {
+      throw new IOException("Unsupported project file version " + content[MAGIC.length]);
+    }
+    byte encoding = content[MAGIC.length + 1];
+    byte compression = content[MAGIC.length + 2];
+    InputStream payload =
+        new ByteArrayInputStream(content, HEADER_LENGTH, content.length - HEADER_LENGTH);
+    if (compression == GZIP) {
+      payload = new GZIPInputStream(payload);
+    } else if (compression != NONE) {
+      throw new IOException("Unsupported project file compression " + compression);
+    }
+    try (InputStream in = payload) {
+      if (encoding == SMILE) {
+        return SMILE_MAPPER.readTree(in);
+      } else if (encoding == JSON) {
+        return JSON_MAPPER.readTree(in);
+      }
+      throw new IOException("Unsupported project file encoding " + encoding);
+    }
+  }
+
+  private static boolean hasHeader(byte[] content) {
+    if (content.length < HEADER_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (content[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.opendevstack.provision.model.OpenProjectData;
+
+/**
+ * Inverted index from the lower cased admin and user groups of projects with {@link
+ * OpenProjectData#specialPermissionSet} to their keys, plus the keys of all unrestricted projects.
+ * The projects permitted to a user are the union of a lookup per group of the user, instead of a
+ * comparison of every project with every group.
+ *
+ * <p>Keys are kept upper cased, like the indexes of the storages.
+ */
+public class ProjectGroupIndex {
+
+  private final Map<String, Set<String>> keysByGroup = new HashMap<>();
+
+  private final Set<String> unrestrictedKeys = new HashSet<>();
+
+  /** The indexed groups per key, to remove them upon updates */
+  private final Map<String, List<String>> groupsByKey = new HashMap<>();
+
+  /**
+   * Index a project, replacing its former groups
+   *
+   * @param project the stored project
+   */
+  public synchronized void update(OpenProjectData project) {
+    String key = project.projectKey.toUpperCase();
+    remove(key);
+    if (!project.specialPermissionSet) {
+      unrestrictedKeys.add(key);
+      return;
+    }
+    List<String> groups = new ArrayList<>();
+    for (String group : new String[] {project.projectAdminGroup, project.projectUserGroup}) {
+      if (group != null) {
+        String normalized = normalize(group);
+        keysByGroup.computeIfAbsent(normalized, g -> new HashSet<>()).add(key);
+        groups.add(normalized);
+      }
+    }
+    groupsByKey.put(key, groups);
+  }
+
+  /**
+   * Remove a project from the index
+   *
+   * @param key the key of the deleted project
+   */
+  public synchronized void remove(String key) {
+    String indexKey = key.toUpperCase();
+    unrestrictedKeys.remove(indexKey);
+    List<String> groups = groupsByKey.remove(indexKey);
+    if (groups == null) {
+      return;
+    }
+    for (String group : groups) {
+      Set<String> keys = keysByGroup.get(group);
+      if (keys != null) {
+        keys.remove(indexKey);
+        if (keys.isEmpty()) {
+          keysByGroup.remove(group);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the keys of all projects permitted to a member of the groups
+   *
+   * @param groups the groups, lower cased thru {@link #normalize(Collection)}
+   * @return the upper cased keys
+   */
+  public synchronized Set<String> getPermittedKeys(Set<String> groups) {
+    Set<String> keys = new HashSet<>(unrestrictedKeys);
+    for (String group : groups) {
+      Set<String> groupKeys = keysByGroup.get(group);
+      if (groupKeys != null) {
+        keys.addAll(groupKeys);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Check whether a project is permitted to a member of the groups - it has no {@link
+   * OpenProjectData#specialPermissionSet}, or one of the groups as admin or user group
+   *
+   * @param project the project
+   * @param groups the groups, lower cased thru {@link #normalize(Collection)}
+   * @return true in case the project is permitted
+   */
+  public static boolean isPermitted(OpenProjectData project, Set<String> groups) {
+    return !project.specialPermissionSet
+        || (project.projectAdminGroup != null
+            && groups.contains(normalize(project.projectAdminGroup)))
+        || (project.projectUserGroup != null
+            && groups.contains(normalize(project.projectUserGroup)));
+  }
+
+  /**
+   * Lower case groups, as they are matched case insensitive
+   *
+   * @param groups the groups, e.g. the authorities of a user
+   * @return the lower cased groups
+   */
+  public static Set<String> normalize(Collection<String> groups) {
+    Set<String> normalized = new HashSet<>();
+    for (String group : groups) {
+      normalized.add(normalize(group));
+    }
+    return normalized;
+  }
+
+  private static String normalize(String group) {
+    return group.toLowerCase(Locale.ROOT);
+  }
+}
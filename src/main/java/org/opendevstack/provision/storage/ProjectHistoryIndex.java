@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.opendevstack.provision.model.OpenProjectData;
+
+/**
+ * Time ordered index of the project history, keyed by creation date and project key - so projects
+ * created at the same time never replace each other. Pages - also those starting at a creation
+ * date, see {@link HistoryCursor#before(long)} - and newest first iteration are served from a
+ * concurrent skip list, without sorting. Reads do not block, and see changes made while iterating
+ * or not.
+ */
+class ProjectHistoryIndex {
+
+  private final NavigableSet<HistoryCursor> history = new ConcurrentSkipListSet<>();
+
+  /** Position per upper cased project key */
+  private final Map<String, HistoryCursor> positions = new ConcurrentHashMap<>();
+
+  /**
+   * Add a project, or move it in case its creation date changed
+   *
+   * @param cursor the position of the project
+   */
+  synchronized void put(HistoryCursor cursor) {
+    Preconditions.checkNotNull(cursor, "Cursor cannot be null");
+    HistoryCursor former = positions.put(cursor.getKey(), cursor);
+    if (former != null && !former.equals(cursor)) {
+      history.remove(former);
+    }
+    history.add(cursor);
+  }
+
+  /**
+   * Remove a project
+   *
+   * @param projectKey the key of the project, case insensitive
+   */
+  synchronized void remove(String projectKey) {
+    HistoryCursor former = positions.remove(projectKey.toUpperCase());
+    if (former != null) {
+      history.remove(former);
+    }
+  }
+
+  synchronized void clear() {
+    positions.clear();
+    history.clear();
+  }
+
+  /**
+   * Get the position of a project
+   *
+   * @param projectKey the key of the project, case insensitive
+   * @return the position, or null in case the project is not indexed
+   */
+  HistoryCursor get(String projectKey) {
+    return positions.get(projectKey.toUpperCase());
+  }
+
+  int size() {
+    return positions.size();
+  }
+
+  /**
+   * Get a page of the history
+   *
+   * @param after the position to continue after, null to start with the oldest project
+   * @param limit the max. number of positions
+   * @return the positions, oldest first
+   */
+  List<HistoryCursor> page(HistoryCursor after, int limit) {
+    List<HistoryCursor> page = new ArrayList<>(Math.min(limit, 64));
+    for (HistoryCursor cursor : after == null ? history : history.tailSet(after, false)) {
+      if (page.size() == limit) {
+        break;
+      }
+      page.add(cursor);
+    }
+    return page;
+  }
+
+  /**
+   * Get the whole history, e.g. to show it in the UI
+   *
+   * @return a view of all positions, newest first
+   */
+  NavigableSet<HistoryCursor> newestFirst() {
+    return history.descendingSet();
+  }
+
+  /**
+   * Convert projects by their position into the form of {@link IStorage#listProjectHistory()}
+   *
+   * @param projects the projects, sorted by their position
+   * @return the projects by their {@link HistoryCursor#toHistoryKey()}, newest first
+   */
+  static Map<String, OpenProjectData> toHistory(
+      NavigableMap<HistoryCursor, OpenProjectData> projects) {
+    Map<String, OpenProjectData> history = new LinkedHashMap<>();
+    for (Map.Entry<HistoryCursor, OpenProjectData> project : projects.descendingMap().entrySet()) {
+      history.put(project.getKey().toHistoryKey(), project.getValue());
+    }
+    return history;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.google.common.base.Preconditions;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads all project files of a {@link LocalStorage} in parallel, thru a dedicated fork/join pool.
+ * Every file is read exactly once, legacy files are rewritten in the current format.
+ */
+public class ProjectHistoryLoader {
+  private static final Logger logger = LoggerFactory.getLogger(ProjectHistoryLoader.class);
+
+  /** Below this amount of files a task reads sequentially instead of splitting further */
+  static final int FILES_PER_TASK = 16;
+
+  private final LocalStorage storage;
+
+  private final int parallelism;
+
+  public ProjectHistoryLoader(LocalStorage storage, int parallelism) {
+    Preconditions.checkNotNull(storage, "Storage cannot be null");
+    this.storage = storage;
+    this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Load all projects from the storage path
+   *
+   * @return the result, containing the loaded projects and statistics
+   */
+  public LoadResult load() {
+    long start = System.currentTimeMillis();
+    List<File> files = storage.listProjectFiles();
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    List<OpenProjectData> projects;
+    try {
+      projects = pool.invoke(new LoadTask(files));
+    } finally {
+      pool.shutdown();
+    }
+
+    LoadResult result =
+        new LoadResult(
+            projects,
+            files.size(),
+            files.size() - projects.size(),
+            System.currentTimeMillis() - start);
+    logger.info(
+        "Loaded {} projects from {} in {} ms - files: {}, failures: {}",
+        projects.size(),
+        storage.getLocalStoragePath(),
+        result.getLoadTimeMillis(),
+        result.getFileCount(),
+        result.getFailureCount());
+    return result;
+  }
+
+  private class LoadTask extends RecursiveTask<List<OpenProjectData>> {
+    private final List<File> files;
+
+    LoadTask(List<File> files) {
+      this.files = files;
+    }
+
+    @Override
+    protected List<OpenProjectData> compute() {
+      if (files.size() <= FILES_PER_TASK) {
+        List<OpenProjectData> projects = new ArrayList<>(files.size());
+        for (File file : files) {
+          OpenProjectData project = storage.readProjectFile(file, true);
+          if (project != null) {
+            projects.add(project);
+          }
+        }
+        return projects;
+      }
+      int middle = files.size() / 2;
+      LoadTask left = new LoadTask(files.subList(0, middle));
+      left.fork();
+      List<OpenProjectData> right = new LoadTask(files.subList(middle, files.size())).compute();
+      List<OpenProjectData> projects = left.join();
+      projects.addAll(right);
+      return projects;
+    }
+  }
+
+  /** Result of a {@link ProjectHistoryLoader#load()} */
+  public static class LoadResult {
+    private final List<OpenProjectData> projects;
+    private final int fileCount;
+    private final int failureCount;
+    private final long loadTimeMillis;
+
+    LoadResult(List<OpenProjectData> projects, int fileCount, int failureCount, long loadTime) {
+      this.projects = projects;
+      this.fileCount = fileCount;
+      this.failureCount = failureCount;
+      this.loadTimeMillis = loadTime;
+    }
+
+    public List<OpenProjectData> getProjects() {
+      return projects;
+    }
+
+    public int getFileCount() {
+      return fileCount;
+    }
+
+    public int getFailureCount() {
+      return failureCount;
+    }
+
+    public long getLoadTimeMillis() {
+      return loadTimeMillis;
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of the projects of an {@link IndexedLocalStorage}, so a restart does not need to
+ * parse every project file. Per project it keeps the key, the file, creation and modification date,
+ * and the permission relevant groups - enough to answer lookups and filtered listings, while the
+ * project files themselves are parsed once accessed.
+ *
+ * <p>The index is written to {@code .index/projects.idx} within the storage path, and read thru a
+ * memory mapping. It is only trusted in case its checksum matches, the storage path was not
+ * modified since it was written - every store and delete of the flat layout replaces a file (or the
+ * manifest of the sharded layout) within the storage path, and thus changes its modification date -
+ * and every indexed file still has its indexed modification date. The latter catches updates of the
+ * sharded layout, which replace the file within its subdirectory only.
+ */
+class ProjectIndexFile {
+  private static final Logger logger = LoggerFactory.getLogger(ProjectIndexFile.class);
+
+  static final String INDEX_DIRECTORY = ".index";
+
+  static final String INDEX_FILE = "projects.idx";
+
+  /** 'ODSI' */
+  private static final int MAGIC = 0x4f445349;
+
+  private static final int VERSION = 1;
+
+  /** magic, version, directory modification, entry count, checksum */
+  private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 8;
+
+  private static final byte FLAG_SPECIAL_PERMISSION_SET = 1;
+
+  /**
+   * Modifications of the storage path within this time are not persisted, as a later change within
+   * the same tick of a coarse filesystem clock would go unnoticed
+   */
+  static final long MIN_DIRECTORY_AGE_MILLIS = 2000;
+
+  private final Path root;
+
+  private final Path indexFile;
+
+  ProjectIndexFile(Path root) {
+    Preconditions.checkNotNull(root, "Root cannot be null");
+    this.root = root.toAbsolutePath();
+    this.indexFile = this.root.resolve(INDEX_DIRECTORY).resolve(INDEX_FILE);
+  }
+
+  /**
+   * Read the index
+   *
+   * @return the entries, or null in case there is no valid index for the current state of the
+   *     storage path
+   */
+  List<Entry> load() {
+    if (!Files.isRegularFile(indexFile)) {
+      logger.debug("No project index file {}", indexFile);
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_LENGTH || channel.size() > Integer.MAX_VALUE) {
+        logger.warn("Project index file {} has an invalid size - ignoring it", indexFile);
+        return null;
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        logger.warn("Project index file {} has an unknown format - ignoring it", indexFile);
+        return null;
+      }
+      long directoryModified = buffer.getLong();
+      int count = buffer.getInt();
+      long checksum = buffer.getLong();
+      if (directoryModified != directoryModified()) {
+        logger.info("Storage path {} changed since the project index was written", root);
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(buffer.duplicate());
+      if (crc.getValue() != checksum) {
+        logger.warn("Project index file {} is CRACKED - ignoring it", indexFile);
+        return null;
+      }
+      List<Entry> entries = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        Entry entry = readEntry(buffer);
+        // 0 in case the file is gone
+        if (new File(entry.path).lastModified() != entry.lastModified) {
+          logger.info("Project file {} changed since the project index was written", entry.path);
+          return null;
+        }
+        entries.add(entry);
+      }
+      return entries;
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException ex) {
+      logger.warn("Unable to read project index file {} - ignoring it", indexFile, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Write the index, in case the storage path was not modified recently
+   *
+   * @param entries the entries of all projects
+   * @return true in case the index was written
+   * @throws IOException in case the index cannot be written
+   */
+  boolean save(Collection<Entry> entries) throws IOException {
+    // created beforehand, as creating it modifies the storage path
+    Files.createDirectories(indexFile.getParent());
+    long directoryModified = directoryModified();
+    if (System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(directoryModified)
+        < MIN_DIRECTORY_AGE_MILLIS) {
+      logger.debug("Storage path {} was just modified, not writing project index", root);
+      return false;
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream(entries.size() * 128);
+    DataOutputStream out = new DataOutputStream(body);
+    for (Entry entry : entries) {
+      writeEntry(out, entry);
+    }
+    out.flush();
+    CRC32 crc = new CRC32();
+    crc.update(body.toByteArray());
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.putInt(MAGIC).putInt(VERSION).putLong(directoryModified).putInt(entries.size());
+    header.putLong(crc.getValue());
+    ByteArrayOutputStream content = new ByteArrayOutputStream(HEADER_LENGTH + body.size());
+    content.write(header.array());
+    body.writeTo(content);
+    LocalStorage.writeAtomically(indexFile, content.toByteArray());
+    logger.info("Wrote project index of {} projects to {}", entries.size(), indexFile);
+    return true;
+  }
+
+  private long directoryModified() throws IOException {
+    return Files.getLastModifiedTime(root).to(TimeUnit.NANOSECONDS);
+  }
+
+  private void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+    writeString(out, entry.key);
+    writeString(out, root.relativize(new File(entry.path).toPath().toAbsolutePath()).toString());
+    out.writeLong(entry.createdAt);
+    out.writeLong(entry.lastModified);
+    out.writeByte(entry.specialPermissionSet ? FLAG_SPECIAL_PERMISSION_SET : 0);
+    writeString(out, entry.adminGroup);
+    writeString(out, entry.userGroup);
+  }
+
+  private Entry readEntry(ByteBuffer buffer) {
+    String key = readString(buffer);
+    String path = root.resolve(readString(buffer)).toString();
+    long createdAt = buffer.getLong();
+    long lastModified = buffer.getLong();
+    boolean specialPermissionSet = (buffer.get() & FLAG_SPECIAL_PERMISSION_SET) != 0;
+    return new Entry(
+        key,
+        path,
+        createdAt,
+        lastModified,
+        specialPermissionSet,
+        readString(buffer),
+        readString(buffer));
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > buffer.remaining()) {
+      throw new IllegalArgumentException("Invalid string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** The indexed data of a project */
+  static final class Entry {
+    /** Upper cased project key */
+    final String key;
+    /** Absolute path of the project file */
+    final String path;
+
+    final long createdAt;
+    final long lastModified;
+    final boolean specialPermissionSet;
+    final String adminGroup;
+    final String userGroup;
+
+    Entry(
+        String key,
+        String path,
+        long createdAt,
+        long lastModified,
+        boolean specialPermissionSet,
+        String adminGroup,
+        String userGroup) {
+      this.key = key.toUpperCase();
+      this.path = path;
+      this.createdAt = createdAt;
+      this.lastModified = lastModified;
+      this.specialPermissionSet = specialPermissionSet;
+      this.adminGroup = adminGroup;
+      this.userGroup = userGroup;
+    }
+
+    static Entry of(OpenProjectData project, long createdAt, long lastModified) {
+      return new Entry(
+          project.projectKey,
+          project.physicalLocation,
+          createdAt,
+          lastModified,
+          project.specialPermissionSet,
+          project.projectAdminGroup,
+          project.projectUserGroup);
+    }
+
+    /**
+     * Get the indexed data as project, e.g. to update the {@link ProjectGroupIndex}
+     *
+     * @return the project, containing the indexed fields only
+     */
+    OpenProjectData toProject() {
+      OpenProjectData project = new OpenProjectData();
+      project.projectKey = key;
+      project.physicalLocation = path;
+      project.specialPermissionSet = specialPermissionSet;
+      project.projectAdminGroup = adminGroup;
+      project.projectUserGroup = userGroup;
+      return project;
+    }
+  }
+}
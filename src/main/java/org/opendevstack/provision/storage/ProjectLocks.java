@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.stereotype.Component;
+
+/**
+ * A lock per upper cased project key, to serialize the read - merge - write cycles of a single
+ * project, while changes of different projects proceed in parallel - projects never share a lock.
+ * The locks are reentrant, so a caller holding the lock of a project can still call the storage,
+ * which takes the same lock. Locks are only weakly referenced, so unused ones are collected.
+ */
+@Component
+public class ProjectLocks {
+
+  private final LoadingCache<String, Lock> locks =
+      CacheBuilder.newBuilder().weakValues().build(CacheLoader.from(key -> new ReentrantLock()));
+
+  /**
+   * Get the lock of a project
+   *
+   * @param projectKey the key of the project, case insensitive
+   * @return the lock guarding changes of the project
+   */
+  public Lock get(String projectKey) {
+    Preconditions.checkNotNull(projectKey, "Project key cannot be null");
+    return locks.getUnchecked(projectKey.toUpperCase());
+  }
+}
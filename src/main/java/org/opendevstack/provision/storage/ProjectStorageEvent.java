@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.google.common.base.Preconditions;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published by the {@link IStorage} implementations after a project was stored, updated or deleted,
+ * to keep derived data (e.g. search indexes) in sync without reading the storage again. Changes
+ * made by other instances sharing a storage are published as well, as far as the storage notices
+ * them.
+ */
+public class ProjectStorageEvent extends ApplicationEvent {
+
+  /** The kind of change */
+  public enum ChangeType {
+    STORED,
+    UPDATED,
+    DELETED
+  }
+
+  private final ChangeType changeType;
+
+  private final OpenProjectData project;
+
+  /**
+   * @param storage the storage the project changed in
+   * @param changeType the kind of change
+   * @param project the project as stored, or as passed to delete
+   */
+  public ProjectStorageEvent(IStorage storage, ChangeType changeType, OpenProjectData project) {
+    super(storage);
+    Preconditions.checkNotNull(changeType, "Change type cannot be null");
+    Preconditions.checkNotNull(project, "Project cannot be null");
+    this.changeType = changeType;
+    this.project = project;
+  }
+
+  public ChangeType getChangeType() {
+    return changeType;
+  }
+
+  /**
+   * Get the changed project. Listeners must not modify it.
+   *
+   * @return the project
+   */
+  public OpenProjectData getProject() {
+    return project;
+  }
+
+  public String getProjectKey() {
+    return project.projectKey;
+  }
+}
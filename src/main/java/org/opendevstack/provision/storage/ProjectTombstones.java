@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.google.common.base.Preconditions;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Soft delete of the project files of a {@link LocalStorage}. A deleted project file is moved into
+ * {@code .tombstones} within the storage path - a single rename, after which the file is no longer
+ * listed. The tombstone keeps the project, e.g. for a cleanup that needs to be retried, and is
+ * purged in the background once the retention is over.
+ *
+ * <p>Tombstones are named {@code <deletion date in millis>-<former file name>}, so their purge is
+ * scheduled again after a restart without reading them.
+ */
+class ProjectTombstones {
+  private static final Logger logger = LoggerFactory.getLogger(ProjectTombstones.class);
+
+  static final String TOMBSTONE_DIRECTORY = ".tombstones";
+
+  private final Path directory;
+
+  private final long retentionMillis;
+
+  private ScheduledExecutorService purgeExecutor;
+
+  ProjectTombstones(Path root, long retentionMillis) {
+    Preconditions.checkNotNull(root, "Root cannot be null");
+    Preconditions.checkArgument(retentionMillis >= 0, "Retention cannot be negative");
+    this.directory = root.toAbsolutePath().resolve(TOMBSTONE_DIRECTORY);
+    this.retentionMillis = retentionMillis;
+  }
+
+  /**
+   * Turn a project file into a tombstone, and schedule its purge
+   *
+   * @param file the project file
+   * @return the tombstone
+   * @throws IOException in case the file does not exist or cannot be moved
+   */
+  Path bury(File file) throws IOException {
+    Files.createDirectories(directory);
+    long deletedAt = System.currentTimeMillis();
+    Path tombstone = directory.resolve(deletedAt + "-" + file.getName());
+    Files.move(file.toPath(), tombstone);
+    schedulePurge(tombstone, deletedAt);
+    return tombstone;
+  }
+
+  /** Schedule the purge of the tombstones left by a former run */
+  void schedulePending() {
+    for (Path tombstone : list()) {
+      schedulePurge(tombstone, deletedAt(tombstone));
+    }
+  }
+
+  /**
+   * Delete all tombstones whose retention is over
+   *
+   * @return the number of deleted tombstones
+   */
+  int purgeExpired() {
+    int purged = 0;
+    long now = System.currentTimeMillis();
+    for (Path tombstone : list()) {
+      if (deletedAt(tombstone) + retentionMillis <= now && purge(tombstone)) {
+        purged++;
+      }
+    }
+    return purged;
+  }
+
+  /**
+   * List the tombstones
+   *
+   * @return the tombstones, unordered
+   */
+  List<Path> list() {
+    List<Path> tombstones = new ArrayList<>();
+    if (!Files.isDirectory(directory)) {
+      return tombstones;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        tombstones.add(file);
+      }
+    } catch (IOException ex) {
+      logger.error("Unable to list tombstones in {}", directory, ex);
+    }
+    return tombstones;
+  }
+
+  /** Stop the background purge, pending tombstones are scheduled again upon the next start */
+  synchronized void close() {
+    if (purgeExecutor != null) {
+      purgeExecutor.shutdownNow();
+      purgeExecutor = null;
+    }
+  }
+
+  private synchronized void schedulePurge(Path tombstone, long deletedAt) {
+    if (purgeExecutor == null) {
+      purgeExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "storage-purge");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    long delay = Math.max(0, deletedAt + retentionMillis - System.currentTimeMillis());
+    purgeExecutor.schedule(() -> purge(tombstone), delay, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean purge(Path tombstone) {
+    try {
+      boolean purged = Files.deleteIfExists(tombstone);
+      if (purged) {
+        logger.debug("Purged tombstone {}", tombstone);
+      }
+      return purged;
+    } catch (IOException ex) {
+      logger.error("Unable to purge tombstone {}", tombstone, ex);
+      return false;
+    }
+  }
+
+  private static long deletedAt(Path tombstone) {
+    String name = tombstone.getFileName().toString();
+    int separator = name.indexOf('-');
+    try {
+      return Long.parseLong(name.substring(0, separator));
+    } catch (NumberFormatException | StringIndexOutOfBoundsException noDateEx) {
+      // not named by bury, purged based on its modification date
+      return new File(tombstone.toString()).lastModified();
+    }
+  }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectVersion;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps every version of a project, recorded thru the {@link ProjectStorageEvent}s of the storage -
+ * so it works with all {@link IStorage} implementations. The versions of a project are appended to
+ * a file of its own, one JSON record per line. A record contains either a full snapshot of the
+ * project, or the JSON Patch (RFC 6902) against the previous version. A snapshot is taken for the
+ * first version and every {@code snapshot-interval} versions, so reading a version never applies
+ * more patches than that.
+ *
+ * <p>The versions of a deleted project are purged, so a project created again under the same key
+ * starts a new chain and does not reveal the versions of its predecessor.
+ *
+ * <p>Changes that do not alter the project (e.g. events of other instances for a change already
+ * recorded) do not create a version. The {@link OpenProjectData#physicalLocation} is not part of a
+ * version, as it depends on the storage.
+ */
+@Component
+public class ProjectVersionStore {
+  private static final Logger logger = LoggerFactory.getLogger(ProjectVersionStore.class);
+
+  static final String FILE_SUFFIX = ".versions";
+
+  static final String VERSION = "version";
+  static final String CREATED_AT = "createdAt";
+  static final String CHANGE_TYPE = "changeType";
+  static final String SNAPSHOT = "snapshot";
+  static final String PATCH = "patch";
+
+  private static final String PHYSICAL_LOCATION = "physicalLocation";
+
+  private static final int CACHED_HEADS = 256;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private boolean enabled = true;
+
+  private int snapshotInterval = 20;
+
+  private Path path;
+
+  private ProjectLocks projectLocks = new ProjectLocks();
+
+  /** Latest version per upper cased project key, to diff changes against without replaying */
+  private final Cache<String, Head> heads =
+      CacheBuilder.newBuilder().maximumSize(CACHED_HEADS).build();
+
+  /**
+   * Record a version of the changed project. Failures are logged, but never fail the change itself.
+   *
+   * @param event the change of a project
+   */
+  @EventListener
+  public void onProjectChanged(ProjectStorageEvent event) {
+    if (!enabled) {
+      return;
+    }
+    try {
+      record(event.getChangeType(), event.getProject());
+    } catch (IOException | RuntimeException versionEx) {
+      logger.error("Unable to record version of project {}", event.getProjectKey(), versionEx);
+    }
+  }
+
+  /**
+   * Record a version of a project
+   *
+   * @param changeType the kind of change
+   * @param project the project as stored
+   * @return the number of the new version, 0 in case the project did not change or was deleted
+   * @throws IOException in case the version cannot be written or purged
+   */
+  int record(ChangeType changeType, OpenProjectData project) throws IOException {
+    Preconditions.checkNotNull(project, "Project cannot be null");
+    Preconditions.checkNotNull(project.projectKey, "Project key cannot be null");
+    String key = project.projectKey.toUpperCase();
+    Lock lock = projectLocks.get(key);
+    lock.lock();
+    try {
+      Path file = fileOf(key);
+      if (changeType == ChangeType.DELETED) {
+        heads.invalidate(key);
+        if (Files.deleteIfExists(file)) {
+          logger.debug("Purged versions of deleted project {}", key);
+        }
+        return 0;
+      }
+      Head head = head(key, file);
+
+      ObjectNode record = MAPPER.createObjectNode();
+      record.put(VERSION, head.version + 1);
+      record.put(CREATED_AT, System.currentTimeMillis());
+      record.put(CHANGE_TYPE, changeType.name());
+      JsonNode state = toTree(project);
+      int patches = 0;
+      ArrayNode patch = head.state == null ? null : JsonPatch.diff(head.state, state);
+      if (patch != null && patch.size() == 0) {
+        return 0;
+      }
+      if (patch == null || head.patches + 1 >= snapshotInterval) {
+        record.set(SNAPSHOT, state);
+      } else {
+        record.set(PATCH, patch);
+        patches = head.patches + 1;
+      }
+
+      append(file, record);
+      heads.put(key, new Head(head.version + 1, state, patches, Files.size(file)));
+      logger.debug("Recorded version {} of project {}", head.version + 1, key);
+      return head.version + 1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * List the versions of a project
+   *
+   * @param projectKey the key of the project, case insensitive
+   * @return the versions, oldest first - empty in case none were recorded
+   * @throws IOException in case the versions cannot be read
+   */
+  public List<ProjectVersion> listVersions(String projectKey) throws IOException {
+    Preconditions.checkNotNull(projectKey, "Project key cannot be null");
+    Path file = fileOf(projectKey.toUpperCase());
+    if (!Files.exists(file)) {
+      return Collections.emptyList();
+    }
+    List<ProjectVersion> versions = new ArrayList<>();
+    for (JsonNode record : read(file)) {
+      ProjectVersion version = new ProjectVersion();
+      version.version = record.path(VERSION).asInt();
+      version.createdAt = record.path(CREATED_AT).asLong();
+      version.changeType = record.path(CHANGE_TYPE).asText(null);
+      version.snapshot = record.has(SNAPSHOT);
+      version.changes = record.path(PATCH).size();
+      versions.add(version);
+    }
+    return versions;
+  }
+
+  /**
+   * Get a version of a project
+   *
+   * @param projectKey the key of the project, case insensitive
+   * @param version the number of the version
+   * @return the project as of that version, or null in case the version does not exist or records
+   *     the deletion of the project
+   * @throws IOException in case the versions cannot be read
+   */
+  public OpenProjectData getVersion(String projectKey, int version) throws IOException {
+    JsonNode state = stateOf(projectKey, version);
+    return state == null ? null : MAPPER.treeToValue(state, OpenProjectData.class);
+  }
+
+  /**
+   * Get the changes between two versions of a project
+   *
+   * @param projectKey the key of the project, case insensitive
+   * @param from the number of the former version
+   * @param to the number of the later version
+   * @return the JSON Patch turning the former version into the later one, or null in case one of
+   *     the versions does not exist or records the deletion of the project
+   * @throws IOException in case the versions cannot be read
+   */
+  public JsonNode diff(String projectKey, int from, int to) throws IOException {
+    JsonNode source = stateOf(projectKey, from);
+    JsonNode target = source == null ? null : stateOf(projectKey, to);
+    return target == null ? null : JsonPatch.diff(source, target);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Value("${project.storage.versions.enabled:true}")
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @Value("${project.storage.versions.snapshot-interval:20}")
+  public void setSnapshotInterval(int snapshotInterval) {
+    Preconditions.checkArgument(snapshotInterval > 0, "Snapshot interval must be positive");
+    this.snapshotInterval = snapshotInterval;
+  }
+
+  @Value("${project.storage.versions.path:${project.storage.local}/versions}")
+  public void setPath(String path) {
+    this.path = Paths.get(path);
+    heads.invalidateAll();
+  }
+
+  @Autowired(required = false)
+  public void setProjectLocks(ProjectLocks projectLocks) {
+    this.projectLocks = projectLocks;
+  }
+
+  private JsonNode stateOf(String projectKey, int version) throws IOException {
+    Preconditions.checkNotNull(projectKey, "Project key cannot be null");
+    Path file = fileOf(projectKey.toUpperCase());
+    if (version < 1 || !Files.exists(file)) {
+      return null;
+    }
+    Head head = replay(file, version);
+    return head.version == version ? head.state : null;
+  }
+
+  /** Needs to be called while holding the lock of the project */
+  private Head head(String key, Path file) throws IOException {
+    long size = Files.exists(file) ? Files.size(file) : 0;
+    Head head = heads.getIfPresent(key);
+    if (head != null && head.fileSize == size) {
+      return head;
+    }
+    // unknown, or appended to by another instance
+    head = size == 0 ? new Head(0, null, 0, 0) : replay(file, Integer.MAX_VALUE);
+    return new Head(head.version, head.state, head.patches, size);
+  }
+
+  /**
+   * Replay the versions up to the given one. Patches are only applied once the last snapshot before
+   * the version is known.
+   */
+  private static Head replay(Path file, int upTo) throws IOException {
+    int version = 0;
+    JsonNode base = null;
+    List<JsonNode> patches = new ArrayList<>();
+    for (JsonNode record : read(file)) {
+      int recordVersion = record.path(VERSION).asInt();
+      if (recordVersion > upTo) {
+        break;
+      }
+      version = recordVersion;
+      if (record.has(SNAPSHOT)) {
+        base = record.get(SNAPSHOT);
+        patches.clear();
+      } else if (record.has(PATCH)) {
+        if (base == null) {
+          throw new IOException(
+              String.format("Version %s in %s patches a missing version", version, file));
+        }
+        patches.add(record.get(PATCH));
+      } else {
+        base = null;
+        patches.clear();
+      }
+    }
+    JsonNode state = base;
+    for (JsonNode patch : patches) {
+      state = JsonPatch.apply(state, patch);
+    }
+    return new Head(version, state, patches.size(), 0);
+  }
+
+  private static List<JsonNode> read(Path file) throws IOException {
+    List<JsonNode> records = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        try {
+          records.add(MAPPER.readTree(line));
+        } catch (JsonProcessingException tornRecordEx) {
+          // e.g. the record of a crashed write
+          logger.warn("Skipping unreadable record after version {} in {}", records.size(), file);
+        }
+      }
+    }
+    return records;
+  }
+
+  /** Needs to be called while holding the lock of the project */
+  private static void append(Path file, JsonNode record) throws IOException {
+    Files.createDirectories(file.getParent());
+    String line = MAPPER.writeValueAsString(record) + "\n";
+    try (FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long position = channel.size();
+      if (!endsWithNewline(channel)) {
+        // a torn record of a crashed write must not swallow this one
+        line = "\n" + line;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, position + buffer.position());
+      }
+      channel.force(false);
+    }
+  }
+
+  private static boolean endsWithNewline(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size == 0) {
+      return true;
+    }
+    ByteBuffer last = ByteBuffer.allocate(1);
+    channel.read(last, size - 1);
+    return last.get(0) == '\n';
+  }
+
+  private Path fileOf(String key) {
+    Preconditions.checkState(path != null, "Path of the versions is not set");
+    return path.resolve(key.replaceAll("[^A-Z0-9_-]", "_") + FILE_SUFFIX);
+  }
+
+  private static JsonNode toTree(OpenProjectData project) {
+    ObjectNode tree = MAPPER.valueToTree(project);
+    tree.remove(PHYSICAL_LOCATION);
+    return tree;
+  }
+
+  /** The latest version of a project */
+  private static final class Head {
+    final int version;
+    /** null in case the project was deleted */
+    final JsonNode state;
+    /** Number of patches since the last snapshot */
+    final int patches;
+
+    final long fileSize;
+
+    Head(int version, JsonNode state, int patches, long fileSize) {
+      this.version = version;
+      this.state = state;
+      this.patches = patches;
+      this.fileSize = fileSize;
+    }
+  }
+}
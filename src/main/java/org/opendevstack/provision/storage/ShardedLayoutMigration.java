@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import java.io.IOException;
+
+/**
+ * Command moving the project files of a local storage path from the flat into the sharded layout,
+ * see {@link ShardedStorageLayout}. Needs to be run while no instance uses the storage path, e.g.
+ *
+ * <pre>
+ * java -cp app.jar -Dloader.main=org.opendevstack.provision.storage.ShardedLayoutMigration \
+ *   org.springframework.boot.loader.PropertiesLauncher /var/log/history/
+ * </pre>
+ */
+public final class ShardedLayoutMigration {
+
+  private ShardedLayoutMigration() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: ShardedLayoutMigration <project.storage.local>");
+      System.exit(2);
+    }
+    LocalStorage storage = new LocalStorage();
+    storage.setLocalStoragePath(args[0]);
+    storage.setLayout(LocalStorage.LAYOUT_SHARDED);
+    int migrated = storage.getShardedLayout().migrate();
+    System.out.println(
+        String.format(
+            "Migrated %d projects, %d projects in total",
+            migrated, storage.getShardedLayout().getManifest().size()));
+  }
+}
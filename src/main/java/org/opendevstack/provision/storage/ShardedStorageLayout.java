@@ -0,0 +1,312 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Layout of a {@link LocalStorage} sharding the project files into subdirectories by key prefix and
+ * creation month, e.g. {@code OD/201903/20190312101500-ODSDEMO.txt}, so no single directory grows
+ * large. A manifest in the storage path maps every project key to its file, so projects are listed
+ * and found without listing directories.
+ *
+ * <p>The manifest is re-read once it was changed by another instance. In case it is missing or
+ * cannot be parsed, it is rebuilt from the files in the shard directories.
+ */
+class ShardedStorageLayout {
+  private static final Logger logger = LoggerFactory.getLogger(ShardedStorageLayout.class);
+
+  static final String MANIFEST_FILE = "manifest.json";
+
+  private static final int PREFIX_LENGTH = 2;
+
+  /** root / prefix / month / file */
+  private static final int SHARD_DEPTH = 3;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final TypeReference<TreeMap<String, String>> MANIFEST_TYPE =
+      new TypeReference<TreeMap<String, String>>() {};
+
+  private final LocalStorage storage;
+
+  private final Path root;
+
+  private final Path manifestPath;
+
+  /** Upper cased project key -> path of its file, relative to the root */
+  private TreeMap<String, String> manifest;
+
+  private BasicFileAttributes manifestAttributes;
+
+  ShardedStorageLayout(LocalStorage storage, Path root) {
+    Preconditions.checkNotNull(storage, "Storage cannot be null");
+    Preconditions.checkNotNull(root, "Root cannot be null");
+    this.storage = storage;
+    this.root = root.toAbsolutePath();
+    this.manifestPath = this.root.resolve(MANIFEST_FILE);
+  }
+
+  /**
+   * Create the path of a new project file, including its shard directories
+   *
+   * @param projectKey the key of the project
+   * @param creationDate the creation date, part of the file name
+   * @return the path of the file, not yet registered in the manifest
+   * @throws IOException in case the shard directories cannot be created
+   */
+  Path newFile(String projectKey, LocalDateTime creationDate) throws IOException {
+    Path shard =
+        root.resolve(prefixOf(projectKey))
+            .resolve(creationDate.format(DateTimeFormatter.ofPattern("yyyyMM")));
+    Files.createDirectories(shard);
+    return shard.resolve(
+        String.format(
+            "%s-%s.txt",
+            creationDate.format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss")), projectKey));
+  }
+
+  /**
+   * Get the file of a project, based on the manifest
+   *
+   * @param projectKey the key of the project, case insensitive
+   * @return the file, or null in case the project is unknown
+   */
+  synchronized File getFile(String projectKey) {
+    String path = manifest().get(projectKey.toUpperCase());
+    return path == null ? null : root.resolve(path).toFile();
+  }
+
+  /**
+   * List the files of all projects, based on the manifest
+   *
+   * @return the files, ordered by name - and thus by creation date
+   */
+  synchronized List<File> listFiles() {
+    List<File> files = new ArrayList<>(manifest().size());
+    for (String path : manifest().values()) {
+      files.add(root.resolve(path).toFile());
+    }
+    files.sort(Comparator.comparing(File::getName));
+    return files;
+  }
+
+  /**
+   * Register the file of a project in the manifest
+   *
+   * @param projectKey the key of the project
+   * @param file the file of the project, within a shard directory
+   * @throws IOException in case the manifest cannot be written
+   */
+  synchronized void add(String projectKey, Path file) throws IOException {
+    manifest().put(projectKey.toUpperCase(), relativize(file));
+    saveManifest();
+  }
+
+  /**
+   * Remove a project from the manifest
+   *
+   * @param projectKey the key of the project
+   * @throws IOException in case the manifest cannot be written
+   */
+  synchronized void remove(String projectKey) throws IOException {
+    if (manifest().remove(projectKey.toUpperCase()) != null) {
+      saveManifest();
+    }
+  }
+
+  /**
+   * Check whether the manifest was changed by another instance, and re-read it in that case
+   *
+   * @return true in case the manifest was re-read
+   */
+  synchronized boolean reload() {
+    boolean loaded = manifest != null;
+    TreeMap<String, String> former = manifest;
+    manifest();
+    return loaded && manifest != former;
+  }
+
+  /**
+   * Get the manifest
+   *
+   * @return a copy of the manifest, upper cased project key -> file path relative to the root
+   */
+  synchronized Map<String, String> getManifest() {
+    return new TreeMap<>(manifest());
+  }
+
+  boolean isManifest(File file) {
+    return manifestPath.equals(file.toPath().toAbsolutePath());
+  }
+
+  /**
+   * Move all project files of the flat layout from the root into their shard directories, keeping
+   * their names. Files that are no projects stay where they are. The manifest is rebuilt from the
+   * shard directories first, so an interrupted run can simply be repeated.
+   *
+   * @return the number of moved projects
+   * @throws IOException in case a file cannot be moved, or the manifest cannot be written
+   */
+  synchronized int migrate() throws IOException {
+    manifest = scanShards();
+    int migrated = 0;
+    for (File file : flatFiles()) {
+      OpenProjectData project = storage.readProjectFile(file);
+      if (project == null) {
+        logger.warn("Cannot migrate {}, it is no readable project", file);
+        continue;
+      }
+      Path target =
+          newFile(project.projectKey, creationDateOf(file)).resolveSibling(file.getName());
+      move(file.toPath(), target);
+      manifest.put(project.projectKey.toUpperCase(), relativize(target));
+      migrated++;
+    }
+    saveManifest();
+    logger.info("Migrated {} projects in {} to the sharded layout", migrated, root);
+    return migrated;
+  }
+
+  /** Needs to be called while holding the monitor */
+  private TreeMap<String, String> manifest() {
+    try {
+      BasicFileAttributes attributes =
+          Files.exists(manifestPath)
+              ? Files.readAttributes(manifestPath, BasicFileAttributes.class)
+              : null;
+      if (manifest != null && attributes != null && isUnchanged(attributes)) {
+        return manifest;
+      }
+      if (attributes != null) {
+        try {
+          manifest = MAPPER.readValue(manifestPath.toFile(), MANIFEST_TYPE);
+          manifestAttributes = attributes;
+          logger.debug("Loaded manifest of {} projects", manifest.size());
+          return manifest;
+        } catch (JsonProcessingException crackedManifestEx) {
+          logger.error("Manifest {} is CRACKED - rebuilding it", manifestPath);
+        }
+      }
+      if (manifest == null && !flatFiles().isEmpty()) {
+        // first use after switching from the flat layout
+        migrate();
+      } else {
+        manifest = scanShards();
+        saveManifest();
+      }
+      return manifest;
+    } catch (IOException ioEx) {
+      throw new UncheckedIOException("Unable to read manifest " + manifestPath, ioEx);
+    }
+  }
+
+  private boolean isUnchanged(BasicFileAttributes attributes) {
+    return manifestAttributes != null
+        && attributes.lastModifiedTime().equals(manifestAttributes.lastModifiedTime())
+        && attributes.size() == manifestAttributes.size();
+  }
+
+  private void saveManifest() throws IOException {
+    LocalStorage.writeAtomically(manifestPath, MAPPER.writeValueAsBytes(manifest));
+    manifestAttributes = Files.readAttributes(manifestPath, BasicFileAttributes.class);
+  }
+
+  /** Rebuild the manifest from the project files within the shard directories */
+  private TreeMap<String, String> scanShards() throws IOException {
+    TreeMap<String, String> scanned = new TreeMap<>();
+    try (Stream<Path> paths = Files.walk(root, SHARD_DEPTH)) {
+      paths
+          .filter(path -> path.getNameCount() - root.getNameCount() == SHARD_DEPTH)
+          .map(Path::toFile)
+          .filter(storage::isProjectFile)
+          .sorted(Comparator.comparing(File::getName))
+          .forEach(
+              file -> {
+                OpenProjectData project = storage.readProjectFile(file);
+                if (project != null) {
+                  // ordered by name, so the latest file of a key wins
+                  scanned.put(project.projectKey.toUpperCase(), relativize(file.toPath()));
+                }
+              });
+    }
+    logger.info("Rebuilt manifest of {} projects from {}", scanned.size(), root);
+    return scanned;
+  }
+
+  private List<File> flatFiles() {
+    List<File> files = new ArrayList<>();
+    File[] rootFiles = root.toFile().listFiles();
+    if (rootFiles != null) {
+      for (File file : rootFiles) {
+        if (storage.isProjectFile(file)) {
+          files.add(file);
+        }
+      }
+    }
+    return files;
+  }
+
+  private String relativize(Path file) {
+    return root.relativize(file.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+  }
+
+  private static LocalDateTime creationDateOf(File file) {
+    try {
+      return LocalStorage.parseCreationDate(file);
+    } catch (DateTimeParseException | StringIndexOutOfBoundsException noDateEx) {
+      return LocalDateTime.ofInstant(
+          Instant.ofEpochMilli(file.lastModified()), ZoneId.systemDefault());
+    }
+  }
+
+  private static String prefixOf(String projectKey) {
+    String key = projectKey.toUpperCase().replaceAll("[^A-Z0-9]", "_");
+    return key.length() > PREFIX_LENGTH ? key.substring(0, PREFIX_LENGTH) : key;
+  }
+
+  private static void move(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException noAtomicMoveEx) {
+      Files.move(source, target);
+    }
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Background validation of the project files of a {@link LocalStorage} (and thus {@link
+ * IndexedLocalStorage}). Every file is parsed once - and again only once it is modified. Files that
+ * cannot be parsed are moved to a quarantine directory, so they are no longer listed (and parsed)
+ * on every lookup.
+ *
+ * <p>The counts are exposed as actuator endpoint {@code storageintegrity}, a POST to it starts a
+ * scan right away. The other storages verify their records on their own, and are not scanned.
+ */
+@Component
+@Endpoint(id = "storageintegrity")
+public class StorageIntegrityScanner {
+  private static final Logger logger = LoggerFactory.getLogger(StorageIntegrityScanner.class);
+
+  @Autowired private IStorage storage;
+
+  @Value("${project.storage.integrity.scan-interval:3600}")
+  private long scanInterval;
+
+  private Path quarantinePath;
+
+  /** Modification date of the validated files, by path */
+  private final Map<String, Long> validated = new HashMap<>();
+
+  private final Status status = new Status();
+
+  private ScheduledExecutorService scanExecutor;
+
+  /** Start the background scan, in case the storage keeps project files */
+  @PostConstruct
+  public void start() {
+    if (scanInterval > 0 && storage instanceof LocalStorage) {
+      scanExecutor =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "storage-integrity");
+                thread.setDaemon(true);
+                return thread;
+              });
+      scanExecutor.scheduleWithFixedDelay(
+          this::scanQuietly, scanInterval, scanInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (scanExecutor != null) {
+      scanExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Get the result of the scans so far
+   *
+   * @return the counts of the scans
+   */
+  @ReadOperation
+  public Status status() {
+    synchronized (status) {
+      return status.copy();
+    }
+  }
+
+  /**
+   * Scan right away
+   *
+   * @return the counts of the scans, including this one
+   */
+  @WriteOperation
+  public Status scanNow() {
+    scan();
+    return status();
+  }
+
+  /**
+   * Validate all project files that were modified since the former scan, and move the unreadable
+   * ones to the quarantine directory
+   *
+   * @return the number of files moved to the quarantine directory
+   */
+  synchronized int scan() {
+    if (!(storage instanceof LocalStorage)) {
+      return 0;
+    }
+    LocalStorage localStorage = (LocalStorage) storage;
+    long started = System.currentTimeMillis();
+    List<File> files = localStorage.listProjectFiles();
+    Set<String> existing = new HashSet<>(files.size());
+    int parsed = 0;
+    int quarantined = 0;
+    for (File file : files) {
+      String path = file.getAbsolutePath();
+      existing.add(path);
+      long lastModified = file.lastModified();
+      Long validatedModification = validated.get(path);
+      if (validatedModification != null && validatedModification == lastModified) {
+        continue;
+      }
+      parsed++;
+      OpenProjectData project = localStorage.readProjectFile(file);
+      if (project != null) {
+        validated.put(path, lastModified);
+      } else if (localStorage.isUnreadable(file)) {
+        try {
+          localStorage.quarantineFile(file, quarantinePath(localStorage));
+          existing.remove(path);
+          quarantined++;
+        } catch (IOException quarantineEx) {
+          logger.error("Unable to quarantine unreadable project file {}", file, quarantineEx);
+        }
+      }
+    }
+    validated.keySet().retainAll(existing);
+
+    synchronized (status) {
+      status.scans++;
+      status.lastScan = started;
+      status.lastScanDuration = System.currentTimeMillis() - started;
+      status.files = files.size() - quarantined;
+      status.validFiles = validated.size();
+      status.lastScanParsed = parsed;
+      status.quarantined += quarantined;
+      status.quarantinePath = quarantinePath(localStorage).toString();
+    }
+    if (quarantined > 0) {
+      logger.warn("Quarantined {} unreadable project files", quarantined);
+    }
+    logger.debug(
+        "Scanned {} project files, parsed {} in {} ms",
+        files.size(),
+        parsed,
+        System.currentTimeMillis() - started);
+    return quarantined;
+  }
+
+  private void scanQuietly() {
+    try {
+      scan();
+    } catch (RuntimeException scanEx) {
+      logger.error("Unable to scan project files", scanEx);
+    }
+  }
+
+  private Path quarantinePath(LocalStorage localStorage) {
+    if (quarantinePath != null) {
+      return quarantinePath;
+    }
+    return Paths.get(localStorage.getLocalStoragePath(), "quarantine");
+  }
+
+  @Value("${project.storage.integrity.quarantine-path:}")
+  public void setQuarantinePath(String quarantinePath) {
+    this.quarantinePath =
+        quarantinePath == null || quarantinePath.trim().isEmpty()
+            ? null
+            : Paths.get(quarantinePath);
+  }
+
+  void setStorage(IStorage storage) {
+    this.storage = storage;
+  }
+
+  void setScanInterval(long scanInterval) {
+    this.scanInterval = scanInterval;
+  }
+
+  /** Counts of the scans since startup */
+  public static class Status {
+    /** The number of completed scans */
+    public int scans;
+    /** Start of the latest scan, in millis since the epoch - 0 in case there was none */
+    public long lastScan;
+    /** Duration of the latest scan, in millis */
+    public long lastScanDuration;
+    /** The number of project files parsed by the latest scan, as they were new or modified */
+    public int lastScanParsed;
+    /** The number of project files within the storage */
+    public int files;
+    /** The number of project files that were validated, and not modified since */
+    public int validFiles;
+    /** The number of project files moved to the quarantine directory */
+    public int quarantined;
+    /** The quarantine directory */
+    public String quarantinePath = null;
+
+    Status copy() {
+      Status copy = new Status();
+      copy.scans = scans;
+      copy.lastScan = lastScan;
+      copy.lastScanDuration = lastScanDuration;
+      copy.lastScanParsed = lastScanParsed;
+      copy.files = files;
+      copy.validFiles = validFiles;
+      copy.quarantined = quarantined;
+      copy.quarantinePath = quarantinePath;
+      return copy;
+    }
+  }
+}
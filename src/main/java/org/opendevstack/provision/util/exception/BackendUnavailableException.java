@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.util.exception;
+
+import java.io.IOException;
+
+/**
+ * A call was rejected without being sent, since its backend is known to be down (the circuit of the
+ * host is open) or is already busy with the max. number of concurrent calls.
+ */
+public class BackendUnavailableException extends IOException {
+  private final String backend;
+
+  private final long retryAfterMillis;
+
+  public BackendUnavailableException(String backend, String message, long retryAfterMillis) {
+    super(message);
+    this.backend = backend;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * Get the backend or host of the call
+   *
+   * @return the backend, e.g. the configuration prefix of an adapter, or the host of the call
+   */
+  public String getBackend() {
+    return backend;
+  }
+
+  /**
+   * Get the time after which the backend may accept calls again
+   *
+   * @return the time in millis
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.util.rest;
+
+import com.google.common.base.Preconditions;
+import java.util.function.LongSupplier;
+import org.opendevstack.provision.util.exception.BackendUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker of a host. After a number of consecutive failures (connection failures, timeouts
+ * and 5xx responses) the circuit opens, and calls are rejected right away instead of waiting out
+ * the timeouts of a host that is down. Once the open duration is over, a single probe call is let
+ * thru (half open): its success closes the circuit, its failure opens it again.
+ */
+class CircuitBreaker {
+  private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final String host;
+
+  private final int failureThreshold;
+
+  private final long openMillis;
+
+  private final LongSupplier clock;
+
+  private State state = State.CLOSED;
+
+  private int failures;
+
+  /** Opening of the circuit, or start of the probe while half open */
+  private long since;
+
+  CircuitBreaker(String host, int failureThreshold, long openMillis) {
+    this(host, failureThreshold, openMillis, System::currentTimeMillis);
+  }
+
+  CircuitBreaker(String host, int failureThreshold, long openMillis, LongSupplier clock) {
+    Preconditions.checkArgument(failureThreshold > 0, "Failure threshold must be positive");
+    Preconditions.checkArgument(openMillis >= 0, "Open duration cannot be negative");
+    this.host = host;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Check whether a call may be sent to the host
+   *
+   * @throws BackendUnavailableException in case the circuit is open, or a probe is under way
+   */
+  synchronized void acquirePermission() throws BackendUnavailableException {
+    long now = clock.getAsLong();
+    long retryAfter = since + openMillis - now;
+    if (state == State.CLOSED || retryAfter <= 0) {
+      // a probe that did not report back within the open duration is given up
+      if (state != State.CLOSED) {
+        state = State.HALF_OPEN;
+        since = now;
+        logger.info("Circuit of {} half open, probing", host);
+      }
+      return;
+    }
+    throw new BackendUnavailableException(
+        host,
+        String.format(
+            "Circuit of %s is %s after %d failures, retry in %d ms",
+            host, state == State.OPEN ? "open" : "half open", failures, retryAfter),
+        retryAfter);
+  }
+
+  /** Record a call that reached the host */
+  synchronized void onSuccess() {
+    if (state != State.CLOSED) {
+      logger.info("Circuit of {} closed", host);
+    }
+    state = State.CLOSED;
+    failures = 0;
+  }
+
+  /** Record a call that failed to reach the host, or got a 5xx response */
+  synchronized void onFailure() {
+    failures++;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+      logger.warn("Circuit of {} opened after {} failures", host, failures);
+      state = State.OPEN;
+      since = clock.getAsLong();
+    }
+  }
+
+  /**
+   * Record the outcome of a response
+   *
+   * @param code the response code
+   */
+  void onResponse(int code) {
+    if (code >= 500) {
+      onFailure();
+    } else {
+      onSuccess();
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+}
@@ -1,19 +1,44 @@
 package org.opendevstack.provision.util.rest;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.OkHttpClient.Builder;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.opendevstack.provision.util.exception.BackendUnavailableException;
 import org.opendevstack.provision.util.exception.HttpException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
 @Component
+@Endpoint(id = "restclients")
 public class RestClient {
 
   @Value("${restClient.connect.timeout:30}")
@@ -22,8 +47,68 @@ public class RestClient {
   @Value("${restClient.read.timeout:60}")
   int readTimeout;
 
+  /** Max. bytes of a response body that are logged, or reported with an error */
+  @Value("${restClient.logged-body.limit:16384}")
+  int loggedBodyLimit = 16384;
+
+  @Value("${restClient.max-requests-per-host:5}")
+  int maxRequestsPerHost = 5;
+
+  @Value("${restClient.max-idle-connections:5}")
+  int maxIdleConnections = 5;
+
+  @Value("${restClient.keep-alive:300}")
+  int keepAlive = 300;
+
+  @Value("${restClient.max-concurrent-calls:20}")
+  int maxConcurrentCalls = 20;
+
+  @Value("${restClient.circuit-breaker.failure-threshold:5}")
+  int failureThreshold = 5;
+
+  @Value("${restClient.circuit-breaker.open-duration:30}")
+  int openDuration = 30;
+
+  /** Max. attempts of a retryable call, 1 to disable retries */
+  @Value("${restClient.retry.max-attempts:3}")
+  int maxAttempts = 3;
+
+  /** Upper bound of the backoff before the first retry in millis, doubled with every retry */
+  @Value("${restClient.retry.initial-backoff:500}")
+  int initialBackoff = 500;
+
+  @Value("${restClient.retry.max-backoff:8000}")
+  int maxBackoff = 8000;
+
+  /** Seconds after which a call is not attempted again, see {@link RestClientCall#deadline} */
+  @Value("${restClient.retry.deadline:120}")
+  int deadline = 120;
+
+  @Autowired(required = false)
+  private Environment environment;
+
+  /** Client of calls without backend */
   OkHttpClient client;
 
+  /**
+   * Isolated clients by backend, see {@link RestClientCall#backend(String)}. Every backend has its
+   * own connection pool and dispatcher, so a slow backend cannot hold the connections or dispatcher
+   * threads of the others.
+   */
+  private final Map<String, OkHttpClient> backendClients = new ConcurrentHashMap<>();
+
+  /** Permits for concurrent calls by backend, a call exceeding them is rejected */
+  private final Map<String, Semaphore> bulkheads = new ConcurrentHashMap<>();
+
+  /** Circuit breakers by host and port */
+  private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+  /** Hosts called by every backend */
+  private final Map<String, Set<String>> backendHosts = new ConcurrentHashMap<>();
+
+  /** Scheduler of the retries of async calls, created upon the first retry */
+  private ScheduledExecutorService retryScheduler;
+
   @PostConstruct
   public void afterPropertiesSet() {
     client = standardClient();
@@ -31,64 +116,512 @@ public class RestClient {
 
   private static final Logger LOG = LoggerFactory.getLogger(RestClient.class);
 
+  /**
+   * Get the utilization of the connection pool, dispatcher and concurrent calls of every backend,
+   * and the circuits of its hosts
+   *
+   * @return the utilization by backend, sorted by backend
+   */
+  @ReadOperation
+  public Map<String, Utilization> utilization() {
+    Map<String, Utilization> utilization = new TreeMap<>();
+    for (Map.Entry<String, OkHttpClient> backend : backendClients.entrySet()) {
+      Utilization backendUtilization = Utilization.of(backend.getValue());
+      backendUtilization.maxConcurrentCalls = maxConcurrentCalls(backend.getKey());
+      Semaphore bulkhead = bulkheads.get(backend.getKey());
+      backendUtilization.concurrentCalls =
+          bulkhead == null
+              ? 0
+              : backendUtilization.maxConcurrentCalls - bulkhead.availablePermits();
+      for (String host : backendHosts.getOrDefault(backend.getKey(), Collections.emptySet())) {
+        backendUtilization.circuits.put(host, circuitBreakers.get(host).getState().name());
+      }
+      utilization.put(backend.getKey(), backendUtilization);
+    }
+    return utilization;
+  }
+
+  @PreDestroy
+  public void close() {
+    for (OkHttpClient backendClient : backendClients.values()) {
+      backendClient.dispatcher().executorService().shutdown();
+      backendClient.connectionPool().evictAll();
+    }
+    backendClients.clear();
+    synchronized (this) {
+      if (retryScheduler != null) {
+        retryScheduler.shutdownNow();
+        retryScheduler = null;
+      }
+    }
+  }
+
+  /**
+   * Execute a call. A retryable call (see {@link RestClientCall#isRetryable()}) that fails
+   * transiently is attempted again after a backoff, until it succeeds, the max. attempts are made,
+   * or its deadline would pass.
+   *
+   * @param call the call
+   * @return the evaluated response
+   * @throws IOException the failure of the last attempt
+   */
   public <T> T execute(RestClientCall call) throws IOException {
 
     if (call.getRequest() == null) {
       call.prepareRequest();
     }
-    try {
-      if (call.isPreAuthenticated()) {
-        LOG.info("prepare preauthenticated call");
-        Request preAuthRequest = call.getPreauthRequest();
-        sendPreAuthRequest(preAuthRequest);
+    RetryPolicy retryPolicy = retryPolicyFor(call);
+    long callDeadline = System.currentTimeMillis() + deadlineMillis(call);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return executeOnce(call);
+      } catch (IOException ex) {
+        long backoff =
+            retryPolicy.backoff(call, ex, attempt, callDeadline, System.currentTimeMillis());
+        if (backoff < 0) {
+          throw ex;
+        }
+        logRetry(call, attempt, backoff, ex);
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException interruptedEx) {
+          Thread.currentThread().interrupt();
+          InterruptedIOException interrupted =
+              new InterruptedIOException("Interrupted before retry of " + call.getUrl());
+          interrupted.addSuppressed(ex);
+          throw interrupted;
+        }
       }
+    }
+  }
+
+  private <T> T executeOnce(RestClientCall call) throws IOException {
+    try {
       Request request = call.getRequest();
-      try (Response callResponse = this.client.newCall(request).execute()) {
-        String responseBody = callResponse.body().string();
-        if (callResponse.code() < 200 || callResponse.code() >= 300) {
-          throw new HttpException(
-              callResponse.code(),
-              "Could not " + request.method() + " > " + call.getUrl() + " : " + responseBody);
+      OkHttpClient client = clientFor(call);
+      CircuitBreaker circuitBreaker = circuitBreakerFor(call, request);
+      Semaphore bulkhead = enterBulkhead(call);
+      try {
+        circuitBreaker.acquirePermission();
+        if (call.isPreAuthenticated()) {
+          LOG.info("prepare preauthenticated call");
+          Request preAuthRequest = call.getPreauthRequest();
+          sendPreAuthRequest(client, circuitBreaker, preAuthRequest);
         }
-
-        if (LOG.isTraceEnabled()) {
-          LOG.trace(
-              "URL: {}, method: {}, response-code: {}, responce-body: {} ",
-              call.getUrl(),
-              request.method(),
-              callResponse.code(),
-              "\n" + responseBody);
-        } else {
-          LOG.debug(
-              "URL: {}, method: {}, response-code: {}, responce-body: {} ",
-              call.getUrl(),
-              request.method(),
-              callResponse.code(),
-              "<body was omitted. Please enable tracing on class in order to see response body>");
+        try (Response callResponse = send(client, circuitBreaker, request)) {
+          return evaluate(call, request, callResponse);
         }
-        call.setResponseBody(responseBody);
-        return call.evaluateResponse();
+      } finally {
+        leave(bulkhead);
       }
+    } catch (BackendUnavailableException ex) {
+      LOG.warn("Call rejected: {}", ex.getMessage());
+      throw ex;
     } catch (IOException ex) {
       LOG.error("Call failed: ", ex);
       throw ex;
     }
   }
 
-  private void sendPreAuthRequest(Request preAuthRequest) throws IOException {
-    try (Response preAuthResponse = this.client.newCall(preAuthRequest).execute()) {
-      String preAuthResponseBody = "";
-      try {
-        preAuthResponseBody = preAuthResponse.body().string();
-      } catch (Throwable t) {
-        preAuthResponseBody = "could not read response body";
+  /**
+   * Execute a call without blocking the calling thread, thru the dispatcher of the client. The
+   * response is evaluated like by {@link #execute(RestClientCall)}, on a thread of the dispatcher
+   * that carries the {@link MDC} of the calling thread, and retried like by execute - without
+   * holding a thread during the backoff. Cancelling the future cancels the call and its retries.
+   *
+   * @param call the call
+   * @return the future of the evaluated response, completed exceptionally with the {@link
+   *     IOException}, {@link HttpException} or {@link BackendUnavailableException} execute would
+   *     throw
+   */
+  public <T> CompletableFuture<T> executeAsync(RestClientCall call) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    Map<String, String> context = MDC.getCopyOfContextMap();
+    try {
+      if (call.getRequest() == null) {
+        call.prepareRequest();
       }
-      if (!preAuthResponse.isSuccessful()
-          || preAuthResponseBody.contains("Invalid username and password")) {
-        throw new IOException("Could not authenticate: " + preAuthResponseBody);
+    } catch (IOException | RuntimeException ex) {
+      future.completeExceptionally(ex);
+      return future;
+    }
+    RetryPolicy retryPolicy = retryPolicyFor(call);
+    long callDeadline = System.currentTimeMillis() + deadlineMillis(call);
+    attemptAsync(call, retryPolicy, callDeadline, 1, context, future);
+    return future;
+  }
+
+  private <T> void attemptAsync(
+      RestClientCall call,
+      RetryPolicy retryPolicy,
+      long callDeadline,
+      int attempt,
+      Map<String, String> context,
+      CompletableFuture<T> future) {
+    if (future.isDone()) {
+      // cancelled during the backoff
+      return;
+    }
+    CompletableFuture<T> attemptFuture = executeOnceAsync(call, context);
+    future.whenComplete(
+        (result, ex) -> {
+          if (future.isCancelled()) {
+            attemptFuture.cancel(false);
+          }
+        });
+    attemptFuture.whenComplete(
+        (result, ex) -> {
+          if (ex == null) {
+            future.complete(result);
+            return;
+          }
+          long backoff =
+              ex instanceof IOException && !future.isDone()
+                  ? retryPolicy.backoff(
+                      call, (IOException) ex, attempt, callDeadline, System.currentTimeMillis())
+                  : -1;
+          if (backoff < 0) {
+            future.completeExceptionally(ex);
+            return;
+          }
+          withContext(context, () -> logRetry(call, attempt, backoff, ex));
+          try {
+            scheduleRetry(
+                () ->
+                    withContext(
+                        context,
+                        () ->
+                            attemptAsync(
+                                call, retryPolicy, callDeadline, attempt + 1, context, future)),
+                backoff);
+          } catch (RejectedExecutionException closedEx) {
+            future.completeExceptionally(ex);
+          }
+        });
+  }
+
+  private <T> CompletableFuture<T> executeOnceAsync(
+      RestClientCall call, Map<String, String> context) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    AtomicReference<Call> current = new AtomicReference<>();
+    future.whenComplete(
+        (result, ex) -> {
+          Call pending = current.get();
+          if (future.isCancelled() && pending != null) {
+            pending.cancel();
+          }
+        });
+    try {
+      Request request = call.getRequest();
+      OkHttpClient client = clientFor(call);
+      CircuitBreaker circuitBreaker = circuitBreakerFor(call, request);
+      Semaphore bulkhead = enterBulkhead(call);
+      future.whenComplete((result, ex) -> leave(bulkhead));
+      circuitBreaker.acquirePermission();
+      ResponseHandler evaluate = response -> future.complete(evaluate(call, request, response));
+      if (call.isPreAuthenticated()) {
+        LOG.info("prepare preauthenticated call");
+        enqueue(
+            client,
+            circuitBreaker,
+            call.getPreauthRequest(),
+            context,
+            current,
+            future,
+            preAuthResponse -> {
+              checkPreAuthResponse(preAuthResponse);
+              enqueue(client, circuitBreaker, request, context, current, future, evaluate);
+            });
+      } else {
+        enqueue(client, circuitBreaker, request, context, current, future, evaluate);
       }
-      LOG.info("Authenticated");
+    } catch (BackendUnavailableException ex) {
+      LOG.warn("Call rejected: {}", ex.getMessage());
+      future.completeExceptionally(ex);
+    } catch (IOException | RuntimeException ex) {
+      future.completeExceptionally(ex);
+    }
+    return future;
+  }
+
+  private synchronized void scheduleRetry(Runnable retry, long backoff) {
+    if (retryScheduler == null) {
+      retryScheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "rest-client-retry");
+                thread.setDaemon(true);
+                return thread;
+              });
     }
+    retryScheduler.schedule(retry, backoff, TimeUnit.MILLISECONDS);
+  }
+
+  private static void logRetry(RestClientCall call, int attempt, long backoff, Throwable ex) {
+    LOG.warn(
+        "Attempt {} of {} {} failed, retrying in {} ms: {}",
+        attempt,
+        call.getMethod(),
+        call.getUrl(),
+        backoff,
+        ex.getMessage());
+  }
+
+  /**
+   * Get the retry policy of the backend of a call, configured with the properties {@code
+   * <backend>.restClient.retry.*}, defaulting to {@code restClient.retry.*}
+   */
+  RetryPolicy retryPolicyFor(RestClientCall call) {
+    String backend = call.getBackend();
+    if (backend == null) {
+      return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff);
+    }
+    int initial = property(backend, "retry.initial-backoff", initialBackoff);
+    return new RetryPolicy(
+        property(backend, "retry.max-attempts", maxAttempts),
+        initial,
+        Math.max(initial, property(backend, "retry.max-backoff", maxBackoff)));
+  }
+
+  private long deadlineMillis(RestClientCall call) {
+    if (call.getDeadlineMillis() != null) {
+      return call.getDeadlineMillis();
+    }
+    String backend = call.getBackend();
+    return (backend == null ? deadline : property(backend, "retry.deadline", deadline)) * 1000L;
+  }
+
+  private static void enqueue(
+      OkHttpClient client,
+      CircuitBreaker circuitBreaker,
+      Request request,
+      Map<String, String> context,
+      AtomicReference<Call> current,
+      CompletableFuture<?> future,
+      ResponseHandler handler) {
+    Call call = client.newCall(request);
+    current.set(call);
+    if (future.isCancelled()) {
+      return;
+    }
+    call.enqueue(
+        new Callback() {
+          @Override
+          public void onFailure(Call failed, IOException ex) {
+            if (!failed.isCanceled()) {
+              circuitBreaker.onFailure();
+            }
+            withContext(
+                context,
+                () -> {
+                  LOG.error("Call failed: ", ex);
+                  future.completeExceptionally(ex);
+                });
+          }
+
+          @Override
+          public void onResponse(Call succeeded, Response response) {
+            circuitBreaker.onResponse(response.code());
+            withContext(
+                context,
+                () -> {
+                  try (Response callResponse = response) {
+                    handler.handle(callResponse);
+                  } catch (IOException | RuntimeException ex) {
+                    LOG.error("Call failed: ", ex);
+                    future.completeExceptionally(ex);
+                  }
+                });
+          }
+        });
+  }
+
+  /** Run with the MDC of the calling thread, the former MDC of the current thread is restored */
+  private static void withContext(Map<String, String> context, Runnable runnable) {
+    Map<String, String> former = MDC.getCopyOfContextMap();
+    if (context != null) {
+      MDC.setContextMap(context);
+    } else {
+      MDC.clear();
+    }
+    try {
+      runnable.run();
+    } finally {
+      if (former != null) {
+        MDC.setContextMap(former);
+      } else {
+        MDC.clear();
+      }
+    }
+  }
+
+  private <T> T evaluate(RestClientCall call, Request request, Response callResponse)
+      throws IOException {
+    if (callResponse.code() < 200 || callResponse.code() >= 300) {
+      throw new HttpException(
+          callResponse.code(),
+          "Could not "
+              + request.method()
+              + " > "
+              + call.getUrl()
+              + " : "
+              + loggedBody(callResponse));
+    }
+
+    if (LOG.isTraceEnabled()) {
+      LOG.trace(
+          "URL: {}, method: {}, response-code: {}, responce-body: {} ",
+          call.getUrl(),
+          request.method(),
+          callResponse.code(),
+          "\n" + loggedBody(callResponse));
+    } else {
+      LOG.debug(
+          "URL: {}, method: {}, response-code: {}, responce-body: {} ",
+          call.getUrl(),
+          request.method(),
+          callResponse.code(),
+          "<body was omitted. Please enable tracing on class in order to see response body>");
+    }
+    return call.evaluateResponse(callResponse.body());
+  }
+
+  /**
+   * Read the start of a response body, without consuming it
+   *
+   * @param response the response
+   * @return the body, up to {@link #loggedBodyLimit} bytes
+   */
+  private String loggedBody(Response response) throws IOException {
+    ResponseBody peeked = response.peekBody(loggedBodyLimit);
+    String body = peeked.string();
+    return peeked.contentLength() < loggedBodyLimit ? body : body + "...";
+  }
+
+  private static void sendPreAuthRequest(
+      OkHttpClient client, CircuitBreaker circuitBreaker, Request preAuthRequest)
+      throws IOException {
+    try (Response preAuthResponse = send(client, circuitBreaker, preAuthRequest)) {
+      checkPreAuthResponse(preAuthResponse);
+    }
+  }
+
+  /** Send a request, and record its outcome with the circuit breaker of the host */
+  private static Response send(OkHttpClient client, CircuitBreaker circuitBreaker, Request request)
+      throws IOException {
+    Response response;
+    try {
+      response = client.newCall(request).execute();
+    } catch (IOException ex) {
+      circuitBreaker.onFailure();
+      throw ex;
+    }
+    circuitBreaker.onResponse(response.code());
+    return response;
+  }
+
+  /**
+   * Get the circuit breaker of the host of a request
+   *
+   * @param call the call, whose backend is recorded as client of the host
+   * @param request the request
+   * @return the circuit breaker
+   */
+  CircuitBreaker circuitBreakerFor(RestClientCall call, Request request) {
+    String host = request.url().host() + ":" + request.url().port();
+    if (call.getBackend() != null) {
+      backendHosts
+          .computeIfAbsent(call.getBackend(), key -> ConcurrentHashMap.newKeySet())
+          .add(host);
+    }
+    return circuitBreakers.computeIfAbsent(
+        host, key -> new CircuitBreaker(key, failureThreshold, openDuration * 1000L));
+  }
+
+  /**
+   * Take a permit for a concurrent call of the backend of a call
+   *
+   * @param call the call
+   * @return the permits of the backend, to be left, or null in case the call has no backend
+   * @throws BackendUnavailableException in case the backend is busy with the max. number of calls
+   */
+  private Semaphore enterBulkhead(RestClientCall call) throws BackendUnavailableException {
+    String backend = call.getBackend();
+    if (backend == null) {
+      return null;
+    }
+    Semaphore bulkhead =
+        bulkheads.computeIfAbsent(backend, key -> new Semaphore(maxConcurrentCalls(key)));
+    if (!bulkhead.tryAcquire()) {
+      throw new BackendUnavailableException(
+          backend,
+          String.format(
+              "Backend %s is busy with %d concurrent calls", backend, maxConcurrentCalls(backend)),
+          0);
+    }
+    return bulkhead;
+  }
+
+  private static void leave(Semaphore bulkhead) {
+    if (bulkhead != null) {
+      bulkhead.release();
+    }
+  }
+
+  private int maxConcurrentCalls(String backend) {
+    return property(backend, "max-concurrent-calls", maxConcurrentCalls);
+  }
+
+  private static void checkPreAuthResponse(Response preAuthResponse) throws IOException {
+    String preAuthResponseBody = "";
+    try {
+      preAuthResponseBody = preAuthResponse.body().string();
+    } catch (Throwable t) {
+      preAuthResponseBody = "could not read response body";
+    }
+    if (!preAuthResponse.isSuccessful()
+        || preAuthResponseBody.contains("Invalid username and password")) {
+      throw new IOException("Could not authenticate: " + preAuthResponseBody);
+    }
+    LOG.info("Authenticated");
+  }
+
+  /**
+   * Get the client of the backend of a call, built upon its first call. The limits and timeouts of
+   * a backend are configured with the properties {@code <backend>.restClient.*}, defaulting to
+   * {@code restClient.*}.
+   */
+  OkHttpClient clientFor(RestClientCall call) {
+    String backend = call.getBackend();
+    if (backend == null) {
+      return client;
+    }
+    return backendClients.computeIfAbsent(
+        backend,
+        key -> {
+          Dispatcher dispatcher = new Dispatcher();
+          dispatcher.setMaxRequestsPerHost(
+              property(key, "max-requests-per-host", maxRequestsPerHost));
+          ConnectionPool pool =
+              new ConnectionPool(
+                  property(key, "max-idle-connections", maxIdleConnections),
+                  property(key, "keep-alive", keepAlive),
+                  TimeUnit.SECONDS);
+          return client
+              .newBuilder()
+              .dispatcher(dispatcher)
+              .connectionPool(pool)
+              .connectTimeout(property(key, "connect.timeout", connectTimeout), TimeUnit.SECONDS)
+              .readTimeout(property(key, "read.timeout", readTimeout), TimeUnit.SECONDS)
+              .build();
+        });
+  }
+
+  private int property(String backend, String name, int defaultValue) {
+    if (environment == null) {
+      return defaultValue;
+    }
+    return environment.getProperty(backend + ".restClient." + name, Integer.class, defaultValue);
   }
 
   /** build a standard restClient */
@@ -110,4 +643,51 @@ public class RestClient {
   public void setReadTimeout(int readTimeout) {
     this.readTimeout = readTimeout;
   }
+
+  public void setLoggedBodyLimit(int loggedBodyLimit) {
+    this.loggedBodyLimit = loggedBodyLimit;
+  }
+
+  void setEnvironment(Environment environment) {
+    this.environment = environment;
+  }
+
+  /** Handles a response on a thread of the dispatcher */
+  @FunctionalInterface
+  private interface ResponseHandler {
+    void handle(Response response) throws IOException;
+  }
+
+  /** Utilization of the connection pool and dispatcher of a backend */
+  public static class Utilization {
+    /** Calls being executed, synchronous ones included */
+    public int runningCalls;
+    /** Asynchronous calls waiting for a slot of the dispatcher */
+    public int queuedCalls;
+
+    public int maxRequests;
+    public int maxRequestsPerHost;
+    /** Open connections, in use or idle */
+    public int connections;
+
+    public int idleConnections;
+
+    /** Calls holding a permit of the backend */
+    public int concurrentCalls;
+
+    public int maxConcurrentCalls;
+    /** State of the circuit by host and port */
+    public Map<String, String> circuits = new TreeMap<>();
+
+    static Utilization of(OkHttpClient client) {
+      Utilization utilization = new Utilization();
+      utilization.runningCalls = client.dispatcher().runningCallsCount();
+      utilization.queuedCalls = client.dispatcher().queuedCallsCount();
+      utilization.maxRequests = client.dispatcher().getMaxRequests();
+      utilization.maxRequestsPerHost = client.dispatcher().getMaxRequestsPerHost();
+      utilization.connections = client.connectionPool().connectionCount();
+      utilization.idleConnections = client.connectionPool().idleConnectionCount();
+      return utilization;
+    }
+  }
 }
@@ -4,17 +4,23 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Preconditions;
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import okhttp3.FormBody;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.Request.Builder;
 import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.opendevstack.provision.util.CredentialsInfo;
 import org.opendevstack.provision.util.HttpVerb;
@@ -29,6 +35,15 @@ public class RestClientCall {
   private static final MediaType JSON_MEDIA_TYPE =
       MediaType.parse("application/json; charset=utf-8");
 
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true);
+
+  /** Writes request bodies compactly, pretty printing is left to the logging */
+  private static final ObjectWriter WRITER = MAPPER.writer();
+
+  /** Readers by return type, readers are immutable and thread safe */
+  private static final Map<Type, ObjectReader> READERS = new ConcurrentHashMap<>();
+
   private Request request = null;
   private String responseBody = null;
 
@@ -36,6 +51,9 @@ public class RestClientCall {
 
   // HTTP information
   private HttpMethod method = null;
+  private String backend = null;
+  private boolean idempotent = false;
+  private Long deadlineMillis = null;
 
   // Authentication
   private boolean isBasicAuth = false;
@@ -165,6 +183,44 @@ public class RestClientCall {
     return this;
   }
 
+  /**
+   * Set the backend the call is sent to, e.g. the configuration prefix of an adapter. Calls of a
+   * backend share a client of their own, see {@link RestClient#clientFor(RestClientCall)}.
+   *
+   * @param backend the name of the backend
+   * @return ClientCall
+   */
+  public RestClientCall backend(String backend) {
+    this.backend = backend;
+    return this;
+  }
+
+  /**
+   * Mark a POST as idempotent, so it is retried like GET, PUT and DELETE after a transient failure.
+   * A backend rejecting a duplicate does not make a POST idempotent: when the response of an applied
+   * attempt is lost, the retry fails with a conflict.
+   *
+   * @return ClientCall
+   */
+  public RestClientCall idempotent() {
+    this.idempotent = true;
+    return this;
+  }
+
+  /**
+   * Set the time within which the call and its retries have to complete, overriding {@code
+   * restClient.retry.deadline}. No attempt is started after the deadline.
+   *
+   * @param duration the duration
+   * @param unit the unit of the duration
+   * @return ClientCall
+   */
+  public RestClientCall deadline(long duration, TimeUnit unit) {
+    Preconditions.checkArgument(duration > 0, "Deadline must be positive");
+    this.deadlineMillis = unit.toMillis(duration);
+    return this;
+  }
+
   public RestClientCall url(String url) {
     this.url = url;
     return this;
@@ -235,10 +291,11 @@ public class RestClientCall {
       logger.debug("Created form {}", json);
       requestBody = form.build();
     } else {
-      ObjectWriter ow = new ObjectMapper().writer().withDefaultPrettyPrinter();
-      json = ow.writeValueAsString(body);
-      logger.debug("Converted rest object: {}", json);
-      requestBody = RequestBody.create(this.mediaType, json);
+      byte[] content = WRITER.writeValueAsBytes(body);
+      if (logger.isDebugEnabled()) {
+        logger.debug("Converted rest object: {}", new String(content, StandardCharsets.UTF_8));
+      }
+      requestBody = RequestBody.create(this.mediaType, content);
     }
 
     return requestBody;
@@ -302,6 +359,28 @@ public class RestClientCall {
     return method;
   }
 
+  public String getBackend() {
+    return backend;
+  }
+
+  public boolean isIdempotent() {
+    return idempotent;
+  }
+
+  /**
+   * Check whether the call may be sent again after a failure: GET, HEAD, PUT, DELETE and OPTIONS
+   * are idempotent by definition, POST and PATCH only when marked with {@link #idempotent()}
+   *
+   * @return true in case the call may be retried
+   */
+  public boolean isRetryable() {
+    return idempotent || (method != HttpMethod.POST && method != HttpMethod.PATCH);
+  }
+
+  public Long getDeadlineMillis() {
+    return deadlineMillis;
+  }
+
   public boolean isBasicAuth() {
     return isBasicAuth;
   }
@@ -350,23 +429,27 @@ public class RestClientCall {
     return returnTypeReference;
   }
 
-  void setResponseBody(String responseBody) {
-    this.responseBody = responseBody;
-  }
-
-  <T> T evaluateResponse() throws IOException {
-    ObjectMapper objectMapper = new ObjectMapper();
-    objectMapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true);
+  /**
+   * Convert the response body into the return type. JSON is read straight from the byte stream of
+   * the body, only a {@link String} return type reads the whole body into memory.
+   *
+   * @param body the body of the response, closed by the caller
+   * @return the converted body, null in case neither a return type nor a type reference is set
+   * @throws IOException in case the body cannot be read or converted
+   */
+  <T> T evaluateResponse(ResponseBody body) throws IOException {
     if (returnType == null && returnTypeReference == null) {
       return null;
-    } else if (returnType != null) {
-      if (returnType.isAssignableFrom(String.class)) {
-        return (T) responseBody;
-      }
-      return (T) objectMapper.readValue(responseBody, returnType);
-    } else {
-      return (T) objectMapper.readValue(responseBody, returnTypeReference);
+    } else if (returnType != null && returnType.isAssignableFrom(String.class)) {
+      responseBody = body.string();
+      return (T) responseBody;
     }
+    return readerFor().readValue(body.byteStream());
+  }
+
+  private ObjectReader readerFor() {
+    Type type = returnType != null ? returnType : returnTypeReference.getType();
+    return READERS.computeIfAbsent(type, key -> MAPPER.readerFor(MAPPER.constructType(key)));
   }
 
   public RestClientCall basicAuthenticated(CredentialsInfo basicCredentials) {
@@ -378,6 +461,8 @@ public class RestClientCall {
   public String toString() {
     return new ToStringBuilder(this)
         .append("method", method)
+        .append("backend", backend)
+        .append("idempotent", idempotent)
         .append("isBasicAuth", isBasicAuth)
         .append("preAuthUrl", preAuthUrl)
         .append("body", body)
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.util.rest;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import org.opendevstack.provision.util.exception.HttpException;
+
+/**
+ * Retries of failed calls, with exponential backoff and full jitter: the n-th retry waits a random
+ * time between 0 and {@code min(maxBackoff, initialBackoff * 2^(n-1))}, so clients failing at the
+ * same time do not retry at the same time.
+ *
+ * <p>Only calls that may be sent twice are retried (see {@link RestClientCall#isRetryable()}), and
+ * only after transient failures: refused or reset connections, unreachable hosts, timeouts, and the
+ * responses 429, 502, 503 and 504. Calls rejected by a circuit breaker or bulkhead are not retried.
+ */
+class RetryPolicy {
+
+  private final int maxAttempts;
+
+  private final long initialBackoffMillis;
+
+  private final long maxBackoffMillis;
+
+  RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+    Preconditions.checkArgument(maxAttempts > 0, "Max. attempts must be positive");
+    Preconditions.checkArgument(initialBackoffMillis >= 0, "Backoff cannot be negative");
+    Preconditions.checkArgument(
+        maxBackoffMillis >= initialBackoffMillis, "Max. backoff cannot be below initial backoff");
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /**
+   * Get the time to wait before the next attempt of a call
+   *
+   * @param call the call
+   * @param failure the failure of the last attempt
+   * @param attempt the number of the last attempt, starting with 1
+   * @param deadline the time in millis after which the call is not attempted again
+   * @param now the current time in millis
+   * @return the backoff in millis, or -1 in case the call is not to be retried
+   */
+  long backoff(RestClientCall call, IOException failure, int attempt, long deadline, long now) {
+    if (attempt >= maxAttempts || !call.isRetryable() || !isTransient(failure)) {
+      return -1;
+    }
+    long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+    long backoff = ThreadLocalRandom.current().nextLong(ceiling + 1);
+    return now + backoff < deadline ? backoff : -1;
+  }
+
+  /**
+   * Check whether a failure is a known transport failure or a response signalling an overloaded
+   * backend. Any other failure, e.g. a rejected authentication, is not retried.
+   *
+   * @param failure the failure of an attempt
+   * @return true in case a later attempt may succeed
+   */
+  static boolean isTransient(IOException failure) {
+    if (failure instanceof HttpException) {
+      int code = ((HttpException) failure).getResponseCode();
+      return code == 429 || code == 502 || code == 503 || code == 504;
+    }
+    if (failure instanceof ConnectException
+        || failure instanceof NoRouteToHostException
+        || failure instanceof SocketTimeoutException) {
+      return true;
+    }
+    String message = failure.getMessage();
+    if (message == null) {
+      return false;
+    }
+    // OkHttp reports a connection closed before the response as unexpected end of stream
+    return (failure instanceof SocketException && message.startsWith("Connection reset"))
+        || message.startsWith("unexpected end of stream");
+  }
+}
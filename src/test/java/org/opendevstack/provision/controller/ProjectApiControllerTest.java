@@ -15,7 +15,11 @@
 package org.opendevstack.provision.controller;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.isNotNull;
 import static org.mockito.Mockito.when;
@@ -24,14 +28,24 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import org.hamcrest.CoreMatchers;
+import org.hamcrest.Matchers;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
@@ -41,6 +55,7 @@ import org.opendevstack.provision.SpringBoot;
 import org.opendevstack.provision.adapter.IBugtrackerAdapter;
 import org.opendevstack.provision.adapter.ICollaborationAdapter;
 import org.opendevstack.provision.adapter.IJobExecutionAdapter;
+import org.opendevstack.provision.adapter.IODSAuthnzAdapter;
 import org.opendevstack.provision.adapter.ISCMAdapter;
 import org.opendevstack.provision.adapter.ISCMAdapter.URL_TYPE;
 import org.opendevstack.provision.model.OpenProjectData;
@@ -49,15 +64,29 @@ import org.opendevstack.provision.services.ConfluenceAdapter;
 import org.opendevstack.provision.services.CrowdProjectIdentityMgmtAdapter;
 import org.opendevstack.provision.services.JiraAdapter;
 import org.opendevstack.provision.services.MailAdapter;
+import org.opendevstack.provision.services.ProjectChangeFeed;
+import org.opendevstack.provision.services.ProjectSearchService;
 import org.opendevstack.provision.services.StorageAdapter;
+import org.opendevstack.provision.storage.HistoryCursor;
 import org.opendevstack.provision.storage.IStorage;
+import org.opendevstack.provision.storage.ProjectLocks;
+import org.opendevstack.provision.storage.ProjectStorageEvent;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+import org.opendevstack.provision.storage.ProjectVersionStore;
+import org.opendevstack.provision.util.exception.BackendUnavailableException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultHandlers;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
@@ -83,6 +112,14 @@ public class ProjectApiControllerTest {
 
   @InjectMocks @Autowired private ProjectApiController apiController;
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private ProjectSearchService searchService;
+
+  private ProjectVersionStore versionStore;
+
+  private ProjectChangeFeed changeFeed;
+
   private MockMvc mockMvc;
 
   private OpenProjectData data;
@@ -94,14 +131,28 @@ public class ProjectApiControllerTest {
 
   @Autowired ConfluenceAdapter realConfluenceAdapter;
 
+  @Autowired private ProjectLocks projectLocks;
+
   @Before
   public void setUp() {
     MockitoAnnotations.initMocks(this);
+    searchService = new ProjectSearchService();
+    ReflectionTestUtils.setField(apiController, "searchService", searchService);
+    versionStore = new ProjectVersionStore();
+    versionStore.setPath(temporaryFolder.getRoot().getAbsolutePath());
+    ReflectionTestUtils.setField(apiController, "versionStore", versionStore);
+    changeFeed = new ProjectChangeFeed();
+    ReflectionTestUtils.setField(apiController, "changeFeed", changeFeed);
     mockMvc = MockMvcBuilders.standaloneSetup(apiController).build();
     initOpenProjectData();
     when(jiraAdapter.isSpecialPermissionSchemeEnabled()).thenReturn(true);
   }
 
+  @After
+  public void tearDown() {
+    changeFeed.close();
+  }
+
   private void initOpenProjectData() {
     data = new OpenProjectData();
     data.projectKey = "KEY";
@@ -579,6 +630,43 @@ public class ProjectApiControllerTest {
     Mockito.verify(bitbucketAdapter).createSCMProjectForODSProject(isNotNull());
   }
 
+  @Test
+  public void updateProjectWhileLockedIsConflict() throws Exception {
+    apiController.updateLockTimeout = 0;
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread otherUpdate =
+        new Thread(
+            () -> {
+              Lock lock = projectLocks.get(data.projectKey.toLowerCase());
+              lock.lock();
+              try {
+                locked.countDown();
+                release.await(10, TimeUnit.SECONDS);
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+              } finally {
+                lock.unlock();
+              }
+            });
+    otherUpdate.start();
+    try {
+      assertTrue(locked.await(5, TimeUnit.SECONDS));
+      mockMvc
+          .perform(
+              put("/api/v2/project")
+                  .content(asJsonString(data))
+                  .contentType(MediaType.APPLICATION_JSON)
+                  .accept(MediaType.APPLICATION_JSON))
+          .andExpect(MockMvcResultMatchers.status().isConflict());
+      Mockito.verify(storage, Mockito.never()).getProject(anyString());
+    } finally {
+      release.countDown();
+      otherUpdate.join();
+      apiController.updateLockTimeout = 30;
+    }
+  }
+
   @Test
   public void testProjectDescLengh() throws Exception {
     data.description =
@@ -624,6 +712,330 @@ public class ProjectApiControllerTest {
     apiController.shortenDescription(data);
   }
 
+  @Test
+  public void listProjectsPagesWithCursorAndPermissionFilter() throws Exception {
+    permitGroups("team-a");
+    storeHistory(
+        project("ALPHA", null), project("SECRET", "team-b"), project("BETA", "team-a"),
+        project("GAMMA", null));
+
+    MvcResult first =
+        mockMvc
+            .perform(get("/api/v2/project").param("limit", "2").accept(MediaType.APPLICATION_JSON))
+            .andExpect(MockMvcResultMatchers.status().isOk())
+            .andExpect(
+                MockMvcResultMatchers.jsonPath(
+                    "$.projects[*].projectKey", Matchers.contains("ALPHA", "BETA")))
+            .andExpect(MockMvcResultMatchers.jsonPath("$.next").isNotEmpty())
+            .andReturn();
+    String next = JsonPath.read(first.getResponse().getContentAsString(), "$.next");
+
+    mockMvc
+        .perform(
+            get("/api/v2/project")
+                .param("limit", "2")
+                .param("after", next)
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(
+            MockMvcResultMatchers.jsonPath("$.projects[*].projectKey", Matchers.contains("GAMMA")))
+        .andExpect(MockMvcResultMatchers.jsonPath("$.next").value(CoreMatchers.nullValue()));
+  }
+
+  @Test
+  public void listProjectsRejectsInvalidLimitAndCursor() throws Exception {
+    permitGroups();
+    storeHistory(project("ALPHA", null));
+
+    for (String limit : new String[] {"0", "-1", "" + (ProjectApiController.MAX_PAGE_SIZE + 1)}) {
+      mockMvc
+          .perform(get("/api/v2/project").param("limit", limit).accept(MediaType.APPLICATION_JSON))
+          .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+    mockMvc
+        .perform(
+            get("/api/v2/project").param("after", "invalid!").accept(MediaType.APPLICATION_JSON))
+        .andExpect(MockMvcResultMatchers.status().isBadRequest());
+  }
+
+  @Test
+  public void exportProjectsAsNdjson() throws Exception {
+    permitGroups("team-a");
+    storeHistory(project("ALPHA", null), project("SECRET", "team-b"), project("BETA", "team-a"));
+
+    MvcResult result =
+        mockMvc
+            .perform(get("/api/v2/project/export"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    mockMvc
+        .perform(MockMvcRequestBuilders.asyncDispatch(result))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(
+            MockMvcResultMatchers.header()
+                .string(
+                    HttpHeaders.CONTENT_TYPE,
+                    CoreMatchers.startsWith(ProjectApiController.NDJSON_MEDIA_TYPE)));
+
+    String[] lines = result.getResponse().getContentAsString().split("\n");
+    assertEquals(2, lines.length);
+    ObjectMapper mapper = new ObjectMapper();
+    assertEquals("ALPHA", mapper.readTree(lines[0]).get("projectKey").asText());
+    assertEquals("BETA", mapper.readTree(lines[1]).get("projectKey").asText());
+  }
+
+  @Test
+  public void unavailableBackendIsReportedAs503WithRetryAfter() throws Exception {
+    // circuit open for another 1.5 seconds
+    when(jiraAdapter.createBugtrackerProjectForODSProject(isNotNull()))
+        .thenThrow(new BackendUnavailableException("jira", "Circuit of jira is open", 1500));
+    mockMvc
+        .perform(
+            post("/api/v2/project")
+                .content(asJsonString(data))
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(MockMvcResultMatchers.status().isServiceUnavailable())
+        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.RETRY_AFTER, "2"));
+
+    // busy backend, without a known time to retry after
+    when(jiraAdapter.createBugtrackerProjectForODSProject(isNotNull()))
+        .thenThrow(new BackendUnavailableException("jira", "jira is busy", 0));
+    mockMvc
+        .perform(
+            post("/api/v2/project")
+                .content(asJsonString(data))
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(MockMvcResultMatchers.status().isServiceUnavailable())
+        .andExpect(MockMvcResultMatchers.header().doesNotExist(HttpHeaders.RETRY_AFTER));
+
+    // any other failure
+    when(jiraAdapter.createBugtrackerProjectForODSProject(isNotNull()))
+        .thenThrow(new IOException("jira failed"));
+    mockMvc
+        .perform(
+            post("/api/v2/project")
+                .content(asJsonString(data))
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(MockMvcResultMatchers.status().isInternalServerError())
+        .andExpect(MockMvcResultMatchers.header().doesNotExist(HttpHeaders.RETRY_AFTER));
+  }
+
+  @Test
+  public void searchProjectsVisibleToUser() throws Exception {
+    permitGroups("team-a");
+    OpenProjectData alpha = project("ALPHA", null);
+    alpha.description = "payment service";
+    alpha.platformRuntime = true;
+    OpenProjectData secret = project("SECRET", "team-b");
+    secret.description = "payment backend";
+    OpenProjectData beta = project("BETA", "team-a");
+    beta.description = "payment api";
+    OpenProjectData gamma = project("GAMMA", null);
+    gamma.description = "reporting";
+    publish(ChangeType.STORED, alpha, secret, beta, gamma);
+
+    mockMvc
+        .perform(get("/api/v2/project/search").param("q", "pay"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.total").value(2))
+        .andExpect(
+            MockMvcResultMatchers.jsonPath(
+                "$.projects[*].projectKey", Matchers.contains("ALPHA", "BETA")))
+        .andExpect(MockMvcResultMatchers.jsonPath("$.facets.platformRuntime['true']").value(1));
+
+    mockMvc
+        .perform(
+            get("/api/v2/project/search")
+                .param("q", "pay")
+                .param(ProjectSearchService.FACET_PLATFORM_RUNTIME, "true"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(
+            MockMvcResultMatchers.jsonPath("$.projects[*].projectKey", Matchers.contains("ALPHA")));
+
+    for (String limit : new String[] {"-1", "" + (ProjectApiController.MAX_PAGE_SIZE + 1)}) {
+      mockMvc
+          .perform(get("/api/v2/project/search").param("limit", limit))
+          .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+  }
+
+  @Test
+  public void findUsageOfVisibleProjectsOnly() throws Exception {
+    permitGroups("team-a");
+    OpenProjectData alpha = project("ALPHA", null);
+    addComponent(alpha, "be-java-springboot", "alpha-be");
+    addComponent(alpha, "fe-angular", "alpha-fe");
+    OpenProjectData secret = project("SECRET", "team-b");
+    addComponent(secret, "be-java-springboot", "shared-lib");
+    OpenProjectData beta = project("BETA", "team-a");
+    addComponent(beta, "be-java-springboot", "shared-lib");
+    publish(ChangeType.STORED, alpha, secret, beta);
+
+    mockMvc
+        .perform(get("/api/v2/project/usage/quickstarters"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$['be-java-springboot']").value(2))
+        .andExpect(MockMvcResultMatchers.jsonPath("$['fe-angular']").value(1));
+    mockMvc
+        .perform(get("/api/v2/project/usage/quickstarters/be-java-springboot"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.total").value(2))
+        .andExpect(
+            MockMvcResultMatchers.jsonPath("$.projects", Matchers.contains("ALPHA", "BETA")));
+    mockMvc
+        .perform(get("/api/v2/project/usage/repositories/SHARED-LIB"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.total").value(1))
+        .andExpect(MockMvcResultMatchers.jsonPath("$.projects", Matchers.contains("BETA")));
+    mockMvc
+        .perform(get("/api/v2/project/usage/quickstarters/unknown"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.total").value(0));
+  }
+
+  @Test
+  public void getVersionsOfVisibleProjectsOnly() throws Exception {
+    permitGroups("team-a");
+    OpenProjectData alpha = project("ALPHA", null);
+    OpenProjectData secret = project("SECRET", "team-b");
+    storeHistory(alpha, secret);
+    publish(ChangeType.STORED, alpha, secret);
+    alpha.description = "changed";
+    publish(ChangeType.UPDATED, alpha);
+
+    mockMvc
+        .perform(get("/api/v2/project/ALPHA/versions"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$[*].version", Matchers.contains(1, 2)));
+    mockMvc
+        .perform(get("/api/v2/project/ALPHA/versions/2"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.description").value("changed"));
+    mockMvc
+        .perform(get("/api/v2/project/ALPHA/versions/diff").param("from", "1").param("to", "2"))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$[0].path").value("/description"));
+
+    // unknown versions
+    mockMvc
+        .perform(get("/api/v2/project/ALPHA/versions/3"))
+        .andExpect(MockMvcResultMatchers.status().isNotFound());
+    mockMvc
+        .perform(get("/api/v2/project/ALPHA/versions/diff").param("from", "1").param("to", "3"))
+        .andExpect(MockMvcResultMatchers.status().isNotFound());
+
+    // unknown project, and a project the user is not permitted to see
+    for (String key : new String[] {"UNKNOWN", "SECRET"}) {
+      mockMvc
+          .perform(get("/api/v2/project/" + key + "/versions"))
+          .andExpect(MockMvcResultMatchers.status().isNotFound());
+      mockMvc
+          .perform(get("/api/v2/project/" + key + "/versions/1"))
+          .andExpect(MockMvcResultMatchers.status().isNotFound());
+      mockMvc
+          .perform(
+              get("/api/v2/project/" + key + "/versions/diff").param("from", "1").param("to", "1"))
+          .andExpect(MockMvcResultMatchers.status().isNotFound());
+    }
+  }
+
+  @Test
+  public void pollChangesOfVisibleProjects() throws Exception {
+    permitGroups("team-a");
+    long start = changeFeed.getSequence();
+    OpenProjectData alpha = project("ALPHA", null);
+    OpenProjectData secret = project("SECRET", "team-b");
+    publish(ChangeType.STORED, alpha, secret);
+
+    MvcResult poll =
+        mockMvc
+            .perform(
+                get("/api/v2/project/changes")
+                    .param("after", Long.toString(start))
+                    .param("timeout", "0"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    mockMvc
+        .perform(MockMvcRequestBuilders.asyncDispatch(poll))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(
+            MockMvcResultMatchers.jsonPath("$.changes[*].projectKey", Matchers.contains("ALPHA")))
+        .andExpect(MockMvcResultMatchers.jsonPath("$.last").value(start + 2))
+        .andExpect(MockMvcResultMatchers.jsonPath("$.complete").value(true));
+
+    // wait for the next visible change - the one of SECRET is skipped
+    poll =
+        mockMvc
+            .perform(
+                get("/api/v2/project/changes")
+                    .param("after", Long.toString(start + 2))
+                    .param("timeout", "10"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    secret.description = "changed";
+    alpha.description = "changed";
+    publish(ChangeType.UPDATED, secret, alpha);
+    poll.getAsyncResult(TimeUnit.SECONDS.toMillis(10));
+    mockMvc
+        .perform(MockMvcRequestBuilders.asyncDispatch(poll))
+        .andExpect(MockMvcResultMatchers.status().isOk())
+        .andExpect(
+            MockMvcResultMatchers.jsonPath("$.changes[*].projectKey", Matchers.contains("ALPHA")))
+        .andExpect(MockMvcResultMatchers.jsonPath("$.changes[0].changeType").value("UPDATED"))
+        .andExpect(MockMvcResultMatchers.jsonPath("$.last").value(start + 4));
+  }
+
+  @Test
+  public void pollChangesRejectsInvalidLimitAndTimeout() throws Exception {
+    permitGroups("team-a");
+    String[][] invalidParams = {
+      {"limit", "0"}, {"limit", "501"}, {"timeout", "-1"}, {"timeout", "121"}
+    };
+    for (String[] param : invalidParams) {
+      MvcResult poll =
+          mockMvc
+              .perform(get("/api/v2/project/changes").param(param[0], param[1]))
+              .andExpect(MockMvcResultMatchers.request().asyncStarted())
+              .andReturn();
+      mockMvc
+          .perform(MockMvcRequestBuilders.asyncDispatch(poll))
+          .andExpect(MockMvcResultMatchers.status().isBadRequest());
+    }
+  }
+
+  @Test
+  public void streamChangesOfVisibleProjects() throws Exception {
+    permitGroups("team-a");
+    long start = changeFeed.getSequence();
+    publish(ChangeType.STORED, project("SECRET", "team-b"), project("ALPHA", null));
+
+    MvcResult stream =
+        mockMvc
+            .perform(get("/api/v2/project/changes/stream").param("after", Long.toString(start)))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andExpect(
+                MockMvcResultMatchers.header()
+                    .string(
+                        HttpHeaders.CONTENT_TYPE,
+                        Matchers.startsWith(MediaType.TEXT_EVENT_STREAM_VALUE)))
+            .andReturn();
+    String events = awaitContent(stream, "ALPHA");
+    assertTrue(events, events.startsWith("id:" + (start + 2) + "\nevent:change\ndata:"));
+    assertFalse(events, events.contains("SECRET"));
+
+    // a client reconnecting after changes no longer retained is told to reset
+    stream =
+        mockMvc
+            .perform(get("/api/v2/project/changes/stream").header("Last-Event-ID", "0"))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+    events = awaitContent(stream, "event:reset");
+    assertTrue(events, events.startsWith("id:" + (start + 2) + "\nevent:reset\n"));
+  }
+
   public static String asJsonString(final Object obj) {
     try {
       final ObjectMapper mapper = new ObjectMapper();
@@ -660,6 +1072,96 @@ public class ProjectApiControllerTest {
     assertNotNull(testExForbidden);
   }
 
+  /**
+   * Let the controller filter with the permissions of a user in the given groups, instead of the
+   * mocked {@link StorageAdapter}
+   */
+  private void permitGroups(String... groups) {
+    List<GrantedAuthority> authorities = new ArrayList<>();
+    for (String group : groups) {
+      authorities.add(new SimpleGrantedAuthority(group));
+    }
+    IODSAuthnzAdapter authManager = Mockito.mock(IODSAuthnzAdapter.class);
+    Mockito.doReturn(authorities).when(authManager).getAuthorities();
+    StorageAdapter permittedStorage = new StorageAdapter();
+    ReflectionTestUtils.setField(permittedStorage, "storage", storage);
+    ReflectionTestUtils.setField(permittedStorage, "authManager", authManager);
+    ReflectionTestUtils.setField(apiController, "filteredStorage", permittedStorage);
+  }
+
+  /** Let the mocked storage page thru the projects, created in the given order */
+  private void storeHistory(OpenProjectData... projects) {
+    TreeMap<HistoryCursor, OpenProjectData> history = new TreeMap<>();
+    for (int i = 0; i < projects.length; i++) {
+      history.put(new HistoryCursor(1000L * (i + 1), projects[i].projectKey), projects[i]);
+      when(storage.getProject(projects[i].projectKey)).thenReturn(projects[i]);
+    }
+    when(storage.listProjectHistory(any(), anyInt()))
+        .thenAnswer(
+            invocation -> {
+              HistoryCursor after = invocation.getArgument(0);
+              int limit = invocation.getArgument(1);
+              SortedMap<HistoryCursor, OpenProjectData> page = new TreeMap<>();
+              for (Map.Entry<HistoryCursor, OpenProjectData> project :
+                  (after == null ? history : history.tailMap(after, false)).entrySet()) {
+                if (page.size() == limit) {
+                  break;
+                }
+                page.put(project.getKey(), project.getValue());
+              }
+              return page;
+            });
+  }
+
+  /** Publish changes of projects, as the storage does */
+  private void publish(ChangeType changeType, OpenProjectData... projects) {
+    for (OpenProjectData project : projects) {
+      ProjectStorageEvent event = new ProjectStorageEvent(storage, changeType, project);
+      searchService.onProjectChanged(event);
+      versionStore.onProjectChanged(event);
+      changeFeed.onProjectChanged(event);
+    }
+  }
+
+  /** Wait for the streamed events to contain the given text */
+  private static String awaitContent(MvcResult stream, String text) throws Exception {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    String content = stream.getResponse().getContentAsString();
+    while (!content.contains(text) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      content = stream.getResponse().getContentAsString();
+    }
+    return content;
+  }
+
+  /** Add a quickstarter of the given type to a project, with its repository */
+  private static void addComponent(OpenProjectData project, String componentType, String name) {
+    Map<String, String> quickstarter = new HashMap<>();
+    quickstarter.put(OpenProjectData.COMPONENT_ID_KEY, name);
+    quickstarter.put(OpenProjectData.COMPONENT_TYPE_KEY, componentType);
+    if (project.quickstarters == null) {
+      project.quickstarters = new ArrayList<>();
+    }
+    project.quickstarters.add(quickstarter);
+    Map<URL_TYPE, String> urls = new HashMap<>();
+    urls.put(URL_TYPE.URL_CLONE_HTTP, "https://bitbucket/scm/" + name + ".git");
+    if (project.repositories == null) {
+      project.repositories = new HashMap<>();
+    }
+    project.repositories.put(name, urls);
+  }
+
+  /** A project, visible to the members of the admin group only in case one is given */
+  private static OpenProjectData project(String key, String adminGroup) {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = key;
+    project.projectName = key.toLowerCase();
+    project.specialPermissionSet = adminGroup != null;
+    project.projectAdminGroup = adminGroup;
+    project.projectUserGroup = adminGroup;
+    return project;
+  }
+
   private OpenProjectData copyFromProject(OpenProjectData origin) {
     OpenProjectData data = new OpenProjectData();
     data.projectKey = origin.projectKey;
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectChange;
+import org.opendevstack.provision.model.ProjectChanges;
+import org.opendevstack.provision.storage.IStorage;
+import org.opendevstack.provision.storage.ProjectStorageEvent;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+
+public class ProjectChangeFeedTest {
+
+  private static final Predicate<OpenProjectData> ALL = project -> true;
+
+  private ProjectChangeFeed feed;
+
+  @Before
+  public void setUp() {
+    feed = new ProjectChangeFeed();
+  }
+
+  @After
+  public void tearDown() {
+    feed.close();
+  }
+
+  @Test
+  public void continueAfterLastSequence() throws Exception {
+    ProjectChanges start = feed.changesAfter(-1, 10, ALL);
+    assertTrue(start.changes.isEmpty());
+    assertTrue(start.complete);
+
+    publish(ChangeType.STORED, project("ODSDEMO"));
+    publish(ChangeType.UPDATED, project("ODSDEMO"));
+    publish(ChangeType.DELETED, project("ODSDEMO"));
+
+    ProjectChanges page = feed.changesAfter(start.last, 2, ALL);
+    assertTrue(page.complete);
+    assertEquals(2, page.changes.size());
+    assertEquals("STORED", page.changes.get(0).changeType);
+    assertEquals("ODSDEMO", page.changes.get(0).project.projectKey);
+    assertEquals(start.last + 1, page.changes.get(0).sequence);
+    assertEquals(page.changes.get(1).sequence, page.last);
+
+    page = feed.changesAfter(page.last, 2, ALL);
+    assertEquals(1, page.changes.size());
+    assertEquals("DELETED", page.changes.get(0).changeType);
+    assertEquals("ODSDEMO", page.changes.get(0).projectKey);
+    assertNull(page.changes.get(0).project);
+
+    ProjectChanges end = feed.changesAfter(page.last, 2, ALL);
+    assertTrue(end.changes.isEmpty());
+    assertEquals(page.last, end.last);
+  }
+
+  @Test
+  public void filterChangesButAdvanceSequence() throws Exception {
+    long start = feed.getSequence();
+    OpenProjectData secret = project("SECRET");
+    secret.specialPermissionSet = true;
+    secret.projectAdminGroup = "secret-admins";
+    publish(ChangeType.STORED, secret);
+    publish(ChangeType.STORED, project("PUBLIC"));
+    ProjectChanges page = feed.changesAfter(start, 10, project -> !project.specialPermissionSet);
+    assertEquals(1, page.changes.size());
+    assertEquals("PUBLIC", page.changes.get(0).projectKey);
+    assertEquals(start + 2, page.last);
+  }
+
+  @Test
+  public void incompleteOnceChangesAreDropped() throws Exception {
+    feed.setCapacity(2);
+    long start = feed.getSequence();
+    publish(ChangeType.STORED, project("A"));
+    publish(ChangeType.STORED, project("B"));
+    publish(ChangeType.STORED, project("C"));
+
+    ProjectChanges page = feed.changesAfter(start, 10, ALL);
+    assertFalse(page.complete);
+    assertEquals(2, page.changes.size());
+    assertEquals("B", page.changes.get(0).projectKey);
+    assertTrue(feed.changesAfter(start + 1, 10, ALL).complete);
+
+    // e.g. continued after a restart with a skewed clock
+    assertFalse(feed.changesAfter(start + 100, 10, ALL).complete);
+  }
+
+  @Test
+  public void subscribersReceiveRetainedAndNewChanges() throws Exception {
+    long start = feed.getSequence();
+    publish(ChangeType.STORED, project("A"));
+
+    BlockingQueue<ProjectChange> received = new LinkedBlockingQueue<>();
+    ProjectChangeFeed.Subscription subscription = feed.subscribe(start, ALL, received::add);
+    publish(ChangeType.STORED, project("B"));
+
+    assertEquals("A", poll(received).projectKey);
+    assertEquals("B", poll(received).projectKey);
+
+    subscription.cancel();
+    publish(ChangeType.STORED, project("C"));
+    assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void failingSubscriberIsCancelled() throws Exception {
+    BlockingQueue<ProjectChange> received = new LinkedBlockingQueue<>();
+    feed.subscribe(
+        -1,
+        ALL,
+        change -> {
+          received.add(change);
+          throw new IllegalStateException("client gone");
+        });
+    publish(ChangeType.STORED, project("A"));
+    publish(ChangeType.STORED, project("B"));
+
+    assertEquals("A", poll(received).projectKey);
+    assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void slowSubscriberDoesNotDelayOthers() throws Exception {
+    CountDownLatch stalled = new CountDownLatch(1);
+    feed.subscribe(-1, ALL, change -> awaitUninterruptibly(stalled));
+    BlockingQueue<ProjectChange> received = new LinkedBlockingQueue<>();
+    feed.subscribe(-1, ALL, received::add);
+    try {
+      publish(ChangeType.STORED, project("A"));
+      publish(ChangeType.STORED, project("B"));
+
+      assertEquals("A", poll(received).projectKey);
+      assertEquals("B", poll(received).projectKey);
+    } finally {
+      stalled.countDown();
+    }
+  }
+
+  @Test
+  public void laggingSubscriberIsCancelled() throws Exception {
+    feed.setCapacity(2);
+    CountDownLatch stalled = new CountDownLatch(1);
+    BlockingQueue<ProjectChange> received = new LinkedBlockingQueue<>();
+    CountDownLatch delivering = new CountDownLatch(1);
+    CountDownLatch lagging = new CountDownLatch(1);
+    feed.subscribe(
+        -1,
+        ALL,
+        change -> {
+          delivering.countDown();
+          awaitUninterruptibly(stalled);
+          received.add(change);
+        },
+        lagging::countDown);
+    publish(ChangeType.STORED, project("A"));
+    assertTrue(delivering.await(5, TimeUnit.SECONDS));
+    publish(ChangeType.STORED, project("B"));
+    publish(ChangeType.STORED, project("C"));
+    publish(ChangeType.STORED, project("D"));
+    stalled.countDown();
+
+    assertEquals("A", poll(received).projectKey);
+    assertTrue(lagging.await(5, TimeUnit.SECONDS));
+    publish(ChangeType.STORED, project("E"));
+    assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void changesKeepProjectAsPublished() throws Exception {
+    long start = feed.getSequence();
+    OpenProjectData project = project("A");
+    project.description = "published";
+    publish(ChangeType.STORED, project);
+    project.description = "changed later";
+
+    ProjectChanges page = feed.changesAfter(start, 10, ALL);
+    assertEquals("published", page.changes.get(0).project.description);
+  }
+
+  private void publish(ChangeType changeType, OpenProjectData project) {
+    feed.onProjectChanged(
+        new ProjectStorageEvent(Mockito.mock(IStorage.class), changeType, project));
+  }
+
+  private static ProjectChange poll(BlockingQueue<ProjectChange> received)
+      throws InterruptedException {
+    ProjectChange change = received.poll(5, TimeUnit.SECONDS);
+    assertNotNull(change);
+    return change;
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static OpenProjectData project(String key) {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = key;
+    return project;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectSearchResult;
+import org.opendevstack.provision.model.ProjectUsage;
+import org.opendevstack.provision.storage.IStorage;
+import org.opendevstack.provision.storage.ProjectStorageEvent;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+
+public class ProjectSearchServiceTest {
+
+  private IStorage storage;
+
+  private ProjectSearchService searchService;
+
+  @Before
+  public void setUp() {
+    Map<String, OpenProjectData> history = new HashMap<>();
+    history.put("1", project("ODSDEMO", "ODS Demo", "Showcase of the quickstarters", "be-java"));
+    history.put("2", project("BILLING", "Billing Service", "invoices and payments", "be-python"));
+    OpenProjectData secret = project("SECRET", "Secret Demo", null, "be-java");
+    secret.specialPermissionSet = true;
+    secret.projectAdminGroup = "secret-admins";
+    history.put("3", secret);
+
+    storage = Mockito.mock(IStorage.class);
+    Mockito.when(storage.listProjectHistory()).thenReturn(history);
+    searchService = new ProjectSearchService();
+    searchService.setStorage(storage);
+    searchService.rebuild();
+  }
+
+  @Test
+  public void searchTokensAndPrefixes() throws Exception {
+    assertEquals(2, search("demo").total);
+    assertEquals(2, search("DEM").total);
+    assertEquals("ODSDEMO", search("ods showcase").projects.get(0).projectKey);
+    assertEquals("BILLING", search("pay").projects.get(0).projectKey);
+    assertEquals("BILLING", search("billing").projects.get(0).projectKey);
+    assertEquals(0, search("demo invoices").total);
+    assertEquals(3, search(null).total);
+  }
+
+  @Test
+  public void searchFacets() throws Exception {
+    ProjectSearchResult result = search(null);
+    assertEquals(
+        Integer.valueOf(2),
+        result.facets.get(ProjectSearchService.FACET_COMPONENT_TYPE).get("be-java"));
+    assertEquals(
+        Integer.valueOf(3),
+        result.facets.get(ProjectSearchService.FACET_PLATFORM_RUNTIME).get("true"));
+
+    result =
+        searchService.search(
+            "demo",
+            Collections.singletonMap(ProjectSearchService.FACET_COMPONENT_TYPE, "be-java"),
+            10,
+            project -> !project.specialPermissionSet);
+    assertEquals(1, result.total);
+    assertEquals("ODSDEMO", result.projects.get(0).projectKey);
+    // the full document is not part of the result
+    assertNull(result.projects.get(0).physicalLocation);
+  }
+
+  @Test
+  public void keepIndexInSyncWithStorage() throws Exception {
+    OpenProjectData billing = project("BILLING", "Accounting", null, "be-python");
+    searchService.onProjectChanged(new ProjectStorageEvent(storage, ChangeType.UPDATED, billing));
+    assertEquals(0, search("service").total);
+    assertEquals(1, search("accounting").total);
+
+    OpenProjectData created = project("NEW", "Brand new", null, null);
+    searchService.onProjectChanged(new ProjectStorageEvent(storage, ChangeType.STORED, created));
+    assertEquals(1, search("brand").total);
+
+    searchService.onProjectChanged(new ProjectStorageEvent(storage, ChangeType.DELETED, created));
+    assertEquals(0, search("brand").total);
+    assertEquals(3, search(null).total);
+  }
+
+  @Test
+  public void findQuickstarterAndRepositoryUsage() throws Exception {
+    Map<String, Integer> counts = searchService.countComponentTypes(project -> true);
+    assertEquals(Integer.valueOf(2), counts.get("be-java"));
+    assertEquals(Integer.valueOf(1), counts.get("be-python"));
+
+    ProjectUsage usage = searchService.findByComponentType("be-java", project -> true);
+    assertEquals(2, usage.total);
+    assertEquals(Arrays.asList("ODSDEMO", "SECRET"), usage.projects);
+    usage = searchService.findByComponentType("be-java", project -> !project.specialPermissionSet);
+    assertEquals(Collections.singletonList("ODSDEMO"), usage.projects);
+    assertEquals(0, searchService.findByComponentType("fe-angular", project -> true).total);
+    assertEquals(
+        Integer.valueOf(1),
+        searchService.countComponentTypes(project -> !project.specialPermissionSet).get("be-java"));
+
+    usage = searchService.findByRepository("BILLING-component", project -> true);
+    assertEquals(Collections.singletonList("BILLING"), usage.projects);
+
+    OpenProjectData billing = project("BILLING", "Billing Service", null, "be-java");
+    billing.repositories = null;
+    searchService.onProjectChanged(new ProjectStorageEvent(storage, ChangeType.UPDATED, billing));
+    assertEquals(0, searchService.findByRepository("billing-component", project -> true).total);
+    assertEquals(3, searchService.findByComponentType("be-java", project -> true).total);
+    assertNull(searchService.countComponentTypes(project -> true).get("be-python"));
+  }
+
+  private ProjectSearchResult search(String query) {
+    return searchService.search(query, Collections.emptyMap(), 10, project -> true);
+  }
+
+  private static OpenProjectData project(
+      String key, String name, String description, String componentType) {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = key;
+    project.projectName = name;
+    project.description = description;
+    project.physicalLocation = "/tmp/" + key;
+    if (componentType != null) {
+      Map<String, String> quickstarter = new HashMap<>();
+      quickstarter.put(OpenProjectData.COMPONENT_TYPE_KEY, componentType);
+      quickstarter.put(OpenProjectData.COMPONENT_ID_KEY, key.toLowerCase() + "-component");
+      project.quickstarters = Collections.singletonList(quickstarter);
+      project.repositories =
+          Collections.singletonMap(key.toLowerCase() + "-component", Collections.emptyMap());
+    }
+    return project;
+  }
+}
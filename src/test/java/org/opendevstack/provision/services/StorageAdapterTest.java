@@ -16,10 +16,18 @@ package org.opendevstack.provision.services;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -27,6 +35,7 @@ import org.mockito.MockitoAnnotations;
 import org.opendevstack.provision.SpringBoot;
 import org.opendevstack.provision.authentication.TestAuthentication;
 import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectHistoryPage;
 import org.opendevstack.provision.storage.LocalStorage;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -42,6 +51,8 @@ import org.springframework.web.context.WebApplicationContext;
 @DirtiesContext
 public class StorageAdapterTest {
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Mock LocalStorage storage;
 
   @Autowired private WebApplicationContext context;
@@ -56,6 +67,7 @@ public class StorageAdapterTest {
   @Test
   public void listProjectHistoryNoAuth() throws Exception {
     Mockito.when(storage.listProjectHistory()).thenReturn(new HashMap<>());
+    Mockito.when(storage.listPermittedProjects(Mockito.any())).thenCallRealMethod();
     adapter.setStorage(storage);
 
     assertTrue(adapter.listProjectHistory().isEmpty());
@@ -98,6 +110,7 @@ public class StorageAdapterTest {
       projects.put(dataProtectedCase.projectKey, dataProtectedCase);
 
       Mockito.when(storage.listProjectHistory()).thenReturn(projects);
+      Mockito.when(storage.listPermittedProjects(Mockito.any())).thenCallRealMethod();
       adapter.setStorage(storage);
 
       SecurityContextHolder.getContext().setAuthentication(new TestAuthentication());
@@ -109,4 +122,63 @@ public class StorageAdapterTest {
       SecurityContextHolder.clearContext();
     }
   }
+
+  @Test
+  public void getFilteredSingleProject() throws Exception {
+    try {
+      OpenProjectData dataProtected = new OpenProjectData();
+      dataProtected.projectKey = "testprojectProtected";
+      dataProtected.projectAdminGroup = "testGroup";
+      dataProtected.specialPermissionSet = true;
+
+      OpenProjectData dataProtectedWrong = new OpenProjectData();
+      dataProtectedWrong.projectKey = "testprojectProtectedW";
+      dataProtectedWrong.projectAdminGroup = "testgroupW";
+      dataProtectedWrong.specialPermissionSet = true;
+
+      Mockito.when(storage.getProject(dataProtected.projectKey)).thenReturn(dataProtected);
+      Mockito.when(storage.getProject(dataProtectedWrong.projectKey))
+          .thenReturn(dataProtectedWrong);
+      adapter.setStorage(storage);
+
+      SecurityContextHolder.getContext().setAuthentication(new TestAuthentication());
+
+      assertEquals(dataProtected, adapter.getFilteredSingleProject(dataProtected.projectKey));
+      assertNull(adapter.getFilteredSingleProject(dataProtectedWrong.projectKey));
+      assertNull(adapter.getFilteredSingleProject("unknown"));
+      // single lookups, no matter how big the history is
+      Mockito.verify(storage, Mockito.never()).listProjectHistory();
+    } finally {
+      SecurityContextHolder.clearContext();
+    }
+  }
+
+  @Test
+  public void listProjectHistoryCreatedWithinRange() throws Exception {
+    LocalStorage localStorage = new LocalStorage();
+    localStorage.setLocalStoragePath(temporaryFolder.getRoot().getAbsolutePath());
+    for (String month : new String[] {"01", "02", "03"}) {
+      FileUtils.writeStringToFile(
+          new File(temporaryFolder.getRoot(), "2019" + month + "01000000-KEY" + month + ".txt"),
+          "{\"projectKey\":\"KEY" + month + "\"}",
+          StandardCharsets.UTF_8);
+    }
+    adapter.setStorage(localStorage);
+    Instant february =
+        LocalDateTime.of(2019, 2, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant();
+    Instant march = LocalDateTime.of(2019, 3, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant();
+
+    ProjectHistoryPage page = adapter.listProjectHistory(null, 10, february, march, p -> true);
+    assertEquals(1, page.projects.size());
+    assertEquals("KEY02", page.projects.get(0).projectKey);
+    assertNull(page.next);
+
+    page = adapter.listProjectHistory(null, 1, null, march, p -> true);
+    assertEquals("KEY01", page.projects.get(0).projectKey);
+    page = adapter.listProjectHistory(page.next, 1, null, march, p -> true);
+    assertEquals("KEY02", page.projects.get(0).projectKey);
+    page = adapter.listProjectHistory(page.next, 1, null, march, p -> true);
+    assertTrue(page.projects.isEmpty());
+    assertNull(page.next);
+  }
 }
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+
+public class IndexedLocalStorageTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private IndexedLocalStorage storage;
+
+  private final List<Thread> watchers = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    FileUtils.copyFileToDirectory(
+        new File("src/test/resources/20170101000000-test.txt"), folder.getRoot());
+    storage = new IndexedLocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+  }
+
+  @Test
+  public void getProjectFromIndex() throws Exception {
+    OpenProjectData project = storage.getProject("test");
+
+    assertNotNull(project);
+    assertEquals("TEST", project.projectKey);
+    assertNotNull(project.physicalLocation);
+    assertNull(storage.getProject("unknown"));
+    assertNull(storage.getProject(null));
+  }
+
+  @Test
+  public void getProjectReturnsCopies() throws Exception {
+    OpenProjectData project = storage.getProject("TEST");
+    project.description = "changed";
+
+    OpenProjectData reloaded = storage.getProject("TEST");
+    assertNotSame(project, reloaded);
+    assertEquals("test", reloaded.description);
+  }
+
+  @Test
+  public void listingsShareIndexedProjects() throws Exception {
+    OpenProjectData listed = storage.listProjectHistory().get("01/01/2017 00:00:00 TEST");
+
+    SortedMap<HistoryCursor, OpenProjectData> page = storage.listProjectHistory(null, 10);
+    assertSame(listed, page.get(page.firstKey()));
+    Map<String, OpenProjectData> permitted = storage.listPermittedProjects(Collections.emptySet());
+    assertSame(listed, permitted.values().iterator().next());
+    assertNotSame(listed, storage.getProject("TEST"));
+  }
+
+  @Test
+  public void storeUpdateAndDeleteKeepIndexInSync() throws Exception {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "INDEXED";
+    project.projectName = "indexed";
+    storage.storeProject(project);
+
+    OpenProjectData stored = storage.getProject("indexed");
+    assertNotNull(stored);
+    assertTrue(stored.bugtrackerSpace);
+
+    stored.bugtrackerSpace = false;
+    assertTrue(storage.updateStoredProject(stored));
+    assertFalse(storage.getProject("INDEXED").bugtrackerSpace);
+    // the file itself has to be updated as well
+    assertFalse(
+        new LocalStorage().readProjectFile(new File(stored.physicalLocation)).bugtrackerSpace);
+
+    assertTrue(storage.deleteProject(stored));
+    assertNull(storage.getProject("INDEXED"));
+    assertFalse(new File(stored.physicalLocation).exists());
+  }
+
+  @Test
+  public void listProjectHistory() throws Exception {
+    Map<String, OpenProjectData> history = storage.listProjectHistory();
+
+    assertEquals(1, history.size());
+    assertEquals("Test", history.get("01/01/2017 00:00:00 TEST").projectName);
+  }
+
+  @Test
+  public void listProjectHistoryKeepsProjectsOfSameSecondApart() throws Exception {
+    LocalStorage localStorage = new LocalStorage();
+    localStorage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    for (String key : new String[] {"B", "A"}) {
+      OpenProjectData project = new OpenProjectData();
+      project.projectKey = key;
+      localStorage.writeFile(
+          project, new File(folder.getRoot(), "20190101000000-" + key + ".txt").getPath());
+    }
+
+    for (LocalStorage historyStorage : new LocalStorage[] {localStorage, storage}) {
+      // newest first
+      assertEquals(
+          Arrays.asList(
+              "01/01/2019 00:00:00 B", "01/01/2019 00:00:00 A", "01/01/2017 00:00:00 TEST"),
+          new ArrayList<>(historyStorage.listProjectHistory().keySet()));
+    }
+  }
+
+  @Test
+  public void listProjectHistoryPages() throws Exception {
+    LocalStorage localStorage = new LocalStorage();
+    localStorage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    // same creation date, ordered by key
+    for (String key : new String[] {"B", "A", "C"}) {
+      OpenProjectData project = new OpenProjectData();
+      project.projectKey = key;
+      localStorage.writeFile(
+          project, new File(folder.getRoot(), "20190101000000-" + key + ".txt").getPath());
+    }
+
+    for (LocalStorage pagedStorage : new LocalStorage[] {localStorage, storage}) {
+      SortedMap<HistoryCursor, OpenProjectData> page = pagedStorage.listProjectHistory(null, 2);
+      assertEquals(2, page.size());
+      assertEquals("TEST", page.get(page.firstKey()).projectKey);
+      assertEquals("A", page.get(page.lastKey()).projectKey);
+
+      HistoryCursor after = HistoryCursor.decode(page.lastKey().encode());
+      page = pagedStorage.listProjectHistory(after, 2);
+      assertEquals(2, page.size());
+      assertEquals("B", page.get(page.firstKey()).projectKey);
+      assertEquals("C", page.get(page.lastKey()).projectKey);
+
+      assertTrue(pagedStorage.listProjectHistory(page.lastKey(), 2).isEmpty());
+    }
+  }
+
+  @Test
+  public void listPermittedProjects() throws Exception {
+    OpenProjectData restricted = new OpenProjectData();
+    restricted.projectKey = "RESTRICTED";
+    restricted.specialPermissionSet = true;
+    restricted.projectUserGroup = "Users";
+    storage.storeProject(restricted);
+
+    Set<String> groups = ProjectGroupIndex.normalize(Collections.singleton("users"));
+    assertEquals(
+        new HashSet<>(Arrays.asList("TEST", "RESTRICTED")),
+        projectKeys(storage.listPermittedProjects(groups)));
+
+    // removed by another instance
+    assertTrue(new File(restricted.physicalLocation).delete());
+    storage.rescan();
+    assertEquals(Collections.singleton("TEST"), projectKeys(storage.listPermittedProjects(groups)));
+  }
+
+  @Test
+  public void publishChanges() throws Exception {
+    List<ProjectStorageEvent> events = new ArrayList<>();
+    storage.setApplicationEventPublisher(event -> events.add((ProjectStorageEvent) event));
+
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "EVENT";
+    storage.storeProject(project);
+    storage.updateStoredProject(project);
+    storage.deleteProject(project);
+
+    assertEquals(3, events.size());
+    assertEquals(ChangeType.STORED, events.get(0).getChangeType());
+    assertEquals(ChangeType.UPDATED, events.get(1).getChangeType());
+    assertEquals(ChangeType.DELETED, events.get(2).getChangeType());
+    assertEquals("EVENT", events.get(2).getProjectKey());
+    // the index is in sync before the change is published
+    assertNull(storage.getProject("EVENT"));
+  }
+
+  @Test
+  public void watcherSkipsChangesOfThisInstance() throws Exception {
+    List<ProjectStorageEvent> events = Collections.synchronizedList(new ArrayList<>());
+    storage.setApplicationEventPublisher(event -> events.add((ProjectStorageEvent) event));
+    storage.ensureIndexLoaded();
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "EVENT";
+
+    // the watcher sees the file between its move and its indexing by this instance
+    ReentrantLock lock = (ReentrantLock) storage.projectLock("EVENT");
+    lock.lock();
+    try {
+      File file = new File(storage.writeFile(project, null));
+      awaitBlocked(lock, () -> storage.refreshFile(file));
+      storage.projectChanged(ChangeType.STORED, project);
+    } finally {
+      lock.unlock();
+    }
+    lock.lock();
+    try {
+      File file = new File(project.physicalLocation);
+      storage.getTombstones().bury(file);
+      awaitBlocked(lock, () -> storage.removeFile(file));
+      storage.projectChanged(ChangeType.DELETED, project);
+    } finally {
+      lock.unlock();
+    }
+    watchers.forEach(this::join);
+
+    assertEquals(
+        Arrays.asList(ChangeType.STORED, ChangeType.DELETED),
+        events.stream().map(ProjectStorageEvent::getChangeType).collect(Collectors.toList()));
+    assertNull(storage.getProject("EVENT"));
+  }
+
+  @Test
+  public void rescanPicksUpChangesOfOtherInstances() throws Exception {
+    assertNotNull(storage.getProject("TEST"));
+
+    LocalStorage otherInstance = new LocalStorage();
+    otherInstance.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "OTHER";
+    String filePath = otherInstance.storeProject(project);
+    assertNull(storage.getProject("OTHER"));
+
+    storage.rescan();
+    assertNotNull(storage.getProject("OTHER"));
+
+    assertTrue(new File(filePath).delete());
+    storage.rescan();
+    assertNull(storage.getProject("OTHER"));
+    assertNotNull(storage.getProject("TEST"));
+  }
+
+  @Test
+  public void restartFromIndexFileParsesProjectsLazily() throws Exception {
+    OpenProjectData restricted = new OpenProjectData();
+    restricted.projectKey = "RESTRICTED";
+    restricted.specialPermissionSet = true;
+    restricted.projectAdminGroup = "Admins";
+    storage.storeProject(restricted);
+    ageStoragePath();
+    assertTrue(storage.saveIndexFile());
+
+    IndexedLocalStorage restarted = newStorage();
+    restarted.ensureIndexLoaded();
+    assertEquals(2, restarted.getLastLoadResult().getFileCount());
+    assertTrue(restarted.getLastLoadResult().getProjects().isEmpty());
+
+    Set<String> groups = ProjectGroupIndex.normalize(Collections.singleton("admins"));
+    assertEquals(
+        new HashSet<>(Arrays.asList("TEST", "RESTRICTED")),
+        projectKeys(restarted.listPermittedProjects(groups)));
+    assertEquals(
+        Collections.singleton("TEST"),
+        projectKeys(restarted.listPermittedProjects(Collections.emptySet())));
+    assertEquals("Test", restarted.getProject("test").projectName);
+    assertEquals(
+        Arrays.asList("RESTRICTED", "TEST"),
+        restarted.listProjectHistory().values().stream()
+            .map(project -> project.projectKey)
+            .collect(Collectors.toList()));
+
+    assertTrue(restarted.deleteProject(restarted.getProject("RESTRICTED")));
+    assertNull(restarted.getProject("RESTRICTED"));
+  }
+
+  @Test
+  public void ignoreOutdatedOrCrackedIndexFile() throws Exception {
+    storage.ensureIndexLoaded();
+    ageStoragePath();
+    assertTrue(storage.saveIndexFile());
+
+    // changed by another instance after the index was written
+    LocalStorage otherInstance = new LocalStorage();
+    otherInstance.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "OTHER";
+    otherInstance.storeProject(project);
+
+    IndexedLocalStorage restarted = newStorage();
+    assertNotNull(restarted.getProject("OTHER"));
+    assertEquals(2, restarted.getLastLoadResult().getProjects().size());
+
+    ageStoragePath();
+    assertTrue(restarted.saveIndexFile());
+    File indexFile =
+        new File(
+            folder.getRoot(),
+            ProjectIndexFile.INDEX_DIRECTORY + File.separator + ProjectIndexFile.INDEX_FILE);
+    byte[] content = Files.readAllBytes(indexFile.toPath());
+    content[content.length - 3]++;
+    Files.write(indexFile.toPath(), content);
+
+    restarted = newStorage();
+    assertNotNull(restarted.getProject("OTHER"));
+    assertEquals(2, restarted.getLastLoadResult().getProjects().size());
+  }
+
+  @Test
+  public void ignoreIndexFileAfterShardedUpdate() throws Exception {
+    storage.setLayout(LocalStorage.LAYOUT_SHARDED);
+    OpenProjectData restricted = new OpenProjectData();
+    restricted.projectKey = "RESTRICTED";
+    restricted.specialPermissionSet = true;
+    restricted.projectAdminGroup = "Admins";
+    storage.storeProject(restricted);
+    ageStoragePath();
+    assertTrue(storage.saveIndexFile());
+    FileTime storagePathModified = Files.getLastModifiedTime(folder.getRoot().toPath());
+    Thread.sleep(10);
+
+    // updated by another instance, within the subdirectory of the project only
+    LocalStorage otherInstance = new LocalStorage();
+    otherInstance.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    otherInstance.setLayout(LocalStorage.LAYOUT_SHARDED);
+    restricted = otherInstance.getProject("RESTRICTED");
+    restricted.projectAdminGroup = "Others";
+    assertTrue(otherInstance.updateStoredProject(restricted));
+    assertEquals(storagePathModified, Files.getLastModifiedTime(folder.getRoot().toPath()));
+
+    IndexedLocalStorage restarted = newStorage();
+    restarted.setLayout(LocalStorage.LAYOUT_SHARDED);
+    restarted.ensureIndexLoaded();
+    assertEquals(2, restarted.getLastLoadResult().getProjects().size());
+    Set<String> groups = ProjectGroupIndex.normalize(Collections.singleton("admins"));
+    assertEquals(
+        Collections.singleton("TEST"), projectKeys(restarted.listPermittedProjects(groups)));
+    assertEquals("Others", restarted.getProject("RESTRICTED").projectAdminGroup);
+  }
+
+  /** Run a watcher task, and wait until it blocks on the given lock */
+  private void awaitBlocked(ReentrantLock lock, Runnable task) throws InterruptedException {
+    Thread watcher = new Thread(task);
+    watchers.add(watcher);
+    watcher.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!lock.hasQueuedThread(watcher) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertTrue("Watcher did not block on the project lock", lock.hasQueuedThread(watcher));
+  }
+
+  private void join(Thread watcher) {
+    try {
+      watcher.join(5000);
+    } catch (InterruptedException interruptedEx) {
+      Thread.currentThread().interrupt();
+    }
+    assertFalse(watcher.isAlive());
+  }
+
+  private IndexedLocalStorage newStorage() {
+    IndexedLocalStorage indexedStorage = new IndexedLocalStorage();
+    indexedStorage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    return indexedStorage;
+  }
+
+  /** Make the last change of the storage path old enough to persist the index */
+  private void ageStoragePath() throws Exception {
+    Files.createDirectories(folder.getRoot().toPath().resolve(ProjectIndexFile.INDEX_DIRECTORY));
+    Files.setLastModifiedTime(
+        folder.getRoot().toPath(),
+        FileTime.fromMillis(
+            System.currentTimeMillis() - 2 * ProjectIndexFile.MIN_DIRECTORY_AGE_MILLIS));
+  }
+
+  private static Set<String> projectKeys(Map<String, OpenProjectData> projects) {
+    Set<String> keys = new HashSet<>();
+    for (OpenProjectData project : projects.values()) {
+      keys.add(project.projectKey);
+    }
+    return keys;
+  }
+}
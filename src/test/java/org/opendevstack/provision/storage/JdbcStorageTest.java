@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class JdbcStorageTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private JdbcStorage storage;
+
+  @After
+  public void tearDown() {
+    storage.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void storeProjectNoKey() throws Exception {
+    storage = open(null);
+    storage.storeProject(new OpenProjectData());
+  }
+
+  @Test
+  public void storeUpdateAndDelete() throws Exception {
+    storage = open(null);
+
+    OpenProjectData project = project("clemens");
+    project.projectAdminGroup = "admins";
+    assertNotNull(storage.storeProject(project));
+
+    project = storage.getProject("CLEMENS");
+    assertNotNull(project);
+    assertEquals("admins", project.projectAdminGroup);
+
+    project.description = "updated";
+    assertTrue(storage.updateStoredProject(project));
+    assertEquals("updated", storage.getProject("clemens").description);
+    assertFalse(storage.updateStoredProject(project("unknown")));
+
+    assertEquals(1, storage.listProjectHistory().size());
+
+    assertTrue(storage.deleteProject(project));
+    assertNull(storage.getProject("clemens"));
+    assertFalse(storage.deleteProject(project));
+  }
+
+  @Test
+  public void storeExistingProjectKeepsStoredOne() throws Exception {
+    storage = open(null);
+    OpenProjectData project = project("KEY");
+    project.description = "first";
+    storage.storeProject(project);
+    HistoryCursor created = storage.listProjectHistory(null, 1).firstKey();
+    Thread.sleep(2);
+
+    project.description = "second";
+    try {
+      storage.storeProject(project);
+      fail("Duplicate project was stored");
+    } catch (IOException duplicateEx) {
+      assertTrue(duplicateEx.getMessage().contains("already exists"));
+    }
+    assertEquals("first", storage.getProject("KEY").description);
+    assertEquals(created, storage.listProjectHistory(null, 1).firstKey());
+  }
+
+  @Test
+  public void importLocalStorageOnce() throws Exception {
+    File localStorage = folder.newFolder("local");
+    FileUtils.copyFile(
+        new File("src/test/resources/20170101000000-test.txt"),
+        new File(localStorage, "20170101000000-test.txt"));
+    LocalStorage source = new LocalStorage();
+    source.setLocalStoragePath(localStorage.getAbsolutePath());
+    source.writeFile(
+        project("CURRENT"), new File(localStorage, "20190630120000-CURRENT.txt").getPath());
+
+    storage = open(localStorage.getAbsolutePath());
+
+    assertEquals("Test", storage.getProject("TEST").projectName);
+    Map<String, OpenProjectData> history = storage.listProjectHistory();
+    assertEquals(2, history.size());
+    assertEquals("CURRENT", history.get("30/06/2019 12:00:00 CURRENT").projectKey);
+
+    // the legacy file is not upgraded in place
+    assertFalse(
+        FileUtils.readFileToString(new File(localStorage, "20170101000000-test.txt"))
+            .contains("\"projectKey\""));
+
+    // the database is not empty anymore, projects deleted since are not imported again
+    storage.deleteProject(project("TEST"));
+    storage.close();
+    storage = open(localStorage.getAbsolutePath());
+    assertNull(storage.getProject("TEST"));
+    assertNotNull(storage.getProject("CURRENT"));
+  }
+
+  @Test
+  public void importShardedLocalStorage() throws Exception {
+    File localStorage = folder.newFolder("local");
+    FileUtils.copyFile(
+        new File("src/test/resources/20170101000000-test.txt"),
+        new File(localStorage, "20170101000000-test.txt"));
+    LocalStorage source = new LocalStorage();
+    source.setLocalStoragePath(localStorage.getAbsolutePath());
+    source.setLayout(LocalStorage.LAYOUT_SHARDED);
+    source.storeProject(project("CURRENT"));
+    assertTrue(new File(localStorage, ShardedStorageLayout.MANIFEST_FILE).exists());
+    assertFalse(new File(localStorage, "20170101000000-test.txt").exists());
+
+    // the sharded layout is detected by its manifest, without being configured
+    storage = open(localStorage.getAbsolutePath());
+
+    assertEquals("Test", storage.getProject("TEST").projectName);
+    assertNotNull(storage.getProject("CURRENT"));
+    assertEquals(2, storage.listProjectHistory().size());
+  }
+
+  @Test
+  public void listProjectHistoryPages() throws Exception {
+    storage = open(null);
+    for (int i = 0; i < 5; i++) {
+      storage.storeProject(project("KEY" + i));
+      Thread.sleep(2);
+    }
+    storage.deleteProject(project("KEY2"));
+
+    SortedMap<HistoryCursor, OpenProjectData> page = storage.listProjectHistory(null, 3);
+    assertEquals(3, page.size());
+    assertEquals("KEY0", page.get(page.firstKey()).projectKey);
+    assertEquals("KEY3", page.get(page.lastKey()).projectKey);
+
+    page = storage.listProjectHistory(page.lastKey(), 3);
+    assertEquals(1, page.size());
+    assertEquals("KEY4", page.get(page.firstKey()).projectKey);
+
+    assertTrue(storage.listProjectHistory(page.lastKey(), 3).isEmpty());
+  }
+
+  @Test
+  public void listPermittedProjects() throws Exception {
+    storage = open(null);
+    OpenProjectData open = project("OPEN");
+    storage.storeProject(open);
+    OpenProjectData restricted = project("RESTRICTED");
+    restricted.specialPermissionSet = true;
+    restricted.projectAdminGroup = "Admins";
+    storage.storeProject(restricted);
+
+    Set<String> groups = ProjectGroupIndex.normalize(Arrays.asList("ADMINS", "other"));
+    assertEquals(2, storage.listPermittedProjects(groups).size());
+    assertEquals(
+        Collections.singleton("OPEN"),
+        projectKeys(storage.listPermittedProjects(Collections.<String>emptySet())));
+
+    restricted.projectAdminGroup = "others";
+    storage.updateStoredProject(restricted);
+    assertEquals(Collections.singleton("OPEN"), projectKeys(storage.listPermittedProjects(groups)));
+  }
+
+  private JdbcStorage open(String importPath) throws IOException {
+    JdbcStorage jdbcStorage = new JdbcStorage();
+    jdbcStorage.setDatabasePath(new File(folder.getRoot(), "db").getAbsolutePath());
+    jdbcStorage.setImportPath(importPath);
+    jdbcStorage.setPoolSize(2);
+    jdbcStorage.open();
+    return jdbcStorage;
+  }
+
+  private static OpenProjectData project(String key) {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = key;
+    project.projectName = key;
+    return project;
+  }
+
+  private static Set<String> projectKeys(Map<String, OpenProjectData> projects) {
+    Set<String> keys = new HashSet<>();
+    for (OpenProjectData project : projects.values()) {
+      keys.add(project.projectKey);
+    }
+    return keys;
+  }
+}
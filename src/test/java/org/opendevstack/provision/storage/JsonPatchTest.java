@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+public class JsonPatchTest {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  public void diffAndApplyRoundTrip() throws Exception {
+    JsonNode source =
+        json(
+            "{'projectKey':'TEST','description':'old','removed':1,"
+                + "'quickstarters':[{'component_id':'be'}],'jobs':['a','b','c'],'a/b~c':1}");
+    JsonNode target =
+        json(
+            "{'projectKey':'TEST','description':'new','added':{'x':[1]},"
+                + "'quickstarters':[{'component_id':'be'},{'component_id':'fe'}],'jobs':['a'],"
+                + "'a/b~c':2}");
+
+    JsonNode patch = JsonPatch.diff(source, target);
+
+    assertEquals(target, JsonPatch.apply(source, patch));
+    assertEquals(
+        json("{'op':'add','path':'/quickstarters/1','value':{'component_id':'fe'}}"),
+        patch.get(findPath(patch, "/quickstarters/1")));
+    assertEquals(
+        json("{'op':'replace','path':'/a~1b~0c','value':2}"),
+        patch.get(findPath(patch, "/a~1b~0c")));
+    // the source is not modified
+    assertEquals("old", source.get("description").asText());
+  }
+
+  @Test
+  public void equalDocumentsHaveEmptyPatch() throws Exception {
+    JsonNode document = json("{'projectKey':'TEST','jobs':['a']}");
+
+    assertEquals(0, JsonPatch.diff(document, document.deepCopy()).size());
+  }
+
+  @Test
+  public void replaceDifferentTypes() throws Exception {
+    JsonNode source = json("{'repositories':null}");
+    JsonNode target = json("{'repositories':{'repo':{'URL_CLONE_HTTP':'http://x'}}}");
+
+    JsonNode patch = JsonPatch.diff(source, target);
+
+    assertEquals(1, patch.size());
+    assertEquals(target, JsonPatch.apply(source, patch));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectPatchNotFittingDocument() throws Exception {
+    JsonPatch.apply(json("{'jobs':[]}"), json("[{'op':'replace','path':'/jobs/3','value':1}]"));
+  }
+
+  private static int findPath(JsonNode patch, String path) {
+    for (int i = 0; i < patch.size(); i++) {
+      if (path.equals(patch.get(i).get(JsonPatch.PATH).asText())) {
+        return i;
+      }
+    }
+    throw new AssertionError("No operation for " + path + " in " + patch);
+  }
+
+  private static JsonNode json(String json) throws Exception {
+    return MAPPER.readTree(json.replace('\'', '"'));
+  }
+}
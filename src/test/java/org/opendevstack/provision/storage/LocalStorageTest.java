@@ -25,10 +25,18 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.Mockito;
 import org.opendevstack.provision.SpringBoot;
 import org.opendevstack.provision.adapter.ISCMAdapter.URL_TYPE;
 import org.opendevstack.provision.model.AboutChangesData;
@@ -47,6 +55,8 @@ import org.springframework.util.FileCopyUtils;
 @DirtiesContext
 public class LocalStorageTest {
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private LocalStorage localStorage;
 
   private static final Logger logger = LoggerFactory.getLogger(LocalStorageTest.class);
@@ -145,6 +155,34 @@ public class LocalStorageTest {
     assertEquals("Test", history.values().iterator().next().projectName);
   }
 
+  @Test
+  public void pageHistoryWithoutListingPerPage() throws Exception {
+    File folder = temporaryFolder.newFolder();
+    localStorage = Mockito.spy(new LocalStorage());
+    localStorage.setLocalStoragePath(folder.getAbsolutePath());
+    for (String key : new String[] {"A", "B", "C"}) {
+      OpenProjectData project = new OpenProjectData();
+      project.projectKey = key;
+      localStorage.storeProject(project);
+    }
+    // older than the granularity of the modification date
+    folder.setLastModified(System.currentTimeMillis() - 10_000);
+
+    SortedMap<HistoryCursor, OpenProjectData> first = localStorage.listProjectHistory(null, 2);
+    SortedMap<HistoryCursor, OpenProjectData> second =
+        localStorage.listProjectHistory(first.lastKey(), 2);
+    assertEquals(2, first.size());
+    assertEquals(1, second.size());
+    Mockito.verify(localStorage, Mockito.times(1)).listProjectFiles();
+
+    // a change of the storage path is seen by the next page
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "D";
+    localStorage.storeProject(project);
+    assertEquals(2, localStorage.listProjectHistory(first.lastKey(), 10).size());
+    Mockito.verify(localStorage, Mockito.times(2)).listProjectFiles();
+  }
+
   @Test
   public void writeAboutChangesData() throws Exception {
     AboutChangesData data = new AboutChangesData();
@@ -190,4 +228,30 @@ public class LocalStorageTest {
   public void getProjectWithNull() throws Exception {
     assertNull(localStorage.getProject(null));
   }
+
+  @Test
+  public void concurrentUpdatesReplaceFileAtomically() throws Exception {
+    File folder = temporaryFolder.newFolder();
+    localStorage.setLocalStoragePath(folder.getAbsolutePath());
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "ATOMIC";
+    localStorage.storeProject(project);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Boolean>> updates = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      OpenProjectData update = new OpenProjectData();
+      update.projectKey = "atomic";
+      update.description = "update " + i;
+      updates.add(executor.submit(() -> localStorage.updateStoredProject(update)));
+    }
+    for (Future<Boolean> update : updates) {
+      assertTrue(update.get());
+    }
+    executor.shutdown();
+
+    // a single, complete project file - and no temp files left over
+    assertEquals(1, folder.listFiles().length);
+    assertTrue(localStorage.getProject("ATOMIC").description.startsWith("update "));
+  }
 }
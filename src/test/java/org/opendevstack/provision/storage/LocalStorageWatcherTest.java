@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class LocalStorageWatcherTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private IndexedLocalStorage storage;
+
+  private LocalStorageWatcher watcher;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = new IndexedLocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    watcher = new LocalStorageWatcher(storage, 1);
+    watcher.start();
+  }
+
+  @After
+  public void tearDown() {
+    watcher.stop();
+  }
+
+  @Test
+  public void refreshOnChangesOfOtherInstances() throws Exception {
+    assertTrue(watcher.isRunning());
+    assertNull(storage.getProject("OTHER"));
+
+    LocalStorage otherInstance = new LocalStorage();
+    otherInstance.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "OTHER";
+    String filePath = otherInstance.storeProject(project);
+
+    waitFor(() -> storage.getProject("OTHER") != null);
+    assertNotNull(storage.getProject("OTHER"));
+
+    assertTrue(new File(filePath).delete());
+
+    waitFor(() -> storage.getProject("OTHER") == null);
+    assertNull(storage.getProject("OTHER"));
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+      Thread.sleep(100);
+    }
+  }
+}
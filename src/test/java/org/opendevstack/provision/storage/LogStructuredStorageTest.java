@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class LogStructuredStorageTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private LogStructuredStorage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = open(Long.MAX_VALUE);
+  }
+
+  @After
+  public void tearDown() {
+    storage.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void storeProjectNoKey() throws Exception {
+    storage.storeProject(new OpenProjectData());
+  }
+
+  @Test
+  public void storeUpdateAndDelete() throws Exception {
+    OpenProjectData project = project("clemens");
+    assertNotNull(storage.storeProject(project));
+    assertNotNull(project.physicalLocation);
+
+    project = storage.getProject("CLEMENS");
+    assertNotNull(project);
+    assertTrue(project.bugtrackerSpace);
+
+    project.bugtrackerSpace = false;
+    assertTrue(storage.updateStoredProject(project));
+    assertFalse(storage.getProject("clemens").bugtrackerSpace);
+    assertFalse(storage.updateStoredProject(project("unknown")));
+
+    assertEquals(1, storage.listProjectHistory().size());
+
+    assertTrue(storage.deleteProject(project));
+    assertNull(storage.getProject("clemens"));
+    assertFalse(storage.deleteProject(project));
+  }
+
+  @Test
+  public void storeExistingProjectKeepsStoredOne() throws Exception {
+    OpenProjectData project = project("KEY");
+    project.description = "first";
+    storage.storeProject(project);
+    HistoryCursor created = storage.listProjectHistory(null, 1).firstKey();
+    Thread.sleep(2);
+
+    project.description = "second";
+    try {
+      storage.storeProject(project);
+      fail("Duplicate project was stored");
+    } catch (IOException duplicateEx) {
+      assertTrue(duplicateEx.getMessage().contains("already exists"));
+    }
+    assertEquals("first", storage.getProject("KEY").description);
+    assertEquals(created, storage.listProjectHistory(null, 1).firstKey());
+  }
+
+  @Test(timeout = 5000)
+  public void getProjectAfterClose() throws Exception {
+    storage.storeProject(project("KEY"));
+    storage.close();
+
+    assertNull(storage.getProject("KEY"));
+  }
+
+  @Test
+  public void recoverAfterRestart() throws Exception {
+    storage.storeProject(project("KEEP"));
+    OpenProjectData updated = project("UPDATED");
+    storage.storeProject(updated);
+    updated.description = "second";
+    storage.updateStoredProject(updated);
+    OpenProjectData deleted = project("DELETED");
+    storage.storeProject(deleted);
+    storage.deleteProject(deleted);
+    storage.close();
+
+    storage = open(Long.MAX_VALUE);
+    assertNotNull(storage.getProject("KEEP"));
+    assertEquals("second", storage.getProject("UPDATED").description);
+    assertNull(storage.getProject("DELETED"));
+  }
+
+  @Test
+  public void cutOffIncompleteRecord() throws Exception {
+    OpenProjectData project = project("CRASH");
+    storage.storeProject(project);
+    project.description = "lost";
+    storage.updateStoredProject(project);
+    storage.close();
+
+    // simulate a crash while the update was written
+    Path segment = storage.segmentPath(0);
+    try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      file.setLength(file.length() - 10);
+    }
+
+    storage = open(Long.MAX_VALUE);
+    OpenProjectData recovered = storage.getProject("CRASH");
+    assertNotNull(recovered);
+    assertNull(recovered.description);
+
+    // appends continue after the cut off record
+    recovered.description = "again";
+    storage.updateStoredProject(recovered);
+    storage.close();
+    storage = open(Long.MAX_VALUE);
+    assertEquals("again", storage.getProject("CRASH").description);
+  }
+
+  @Test
+  public void compactOlderSegments() throws Exception {
+    storage.close();
+    storage = open(200);
+
+    for (int i = 0; i < 20; i++) {
+      OpenProjectData project = project("KEY" + (i % 4));
+      project.description = "version " + i;
+      if (storage.getProject(project.projectKey) == null) {
+        storage.storeProject(project);
+      } else {
+        storage.updateStoredProject(project);
+      }
+    }
+    storage.deleteProject(project("KEY0"));
+    int segmentsBefore = storage.listSegments().size();
+    assertTrue(segmentsBefore > 2);
+
+    storage.compact();
+
+    assertTrue(storage.listSegments().size() < segmentsBefore);
+    assertNull(storage.getProject("KEY0"));
+    assertEquals("version 17", storage.getProject("KEY1").description);
+    assertEquals("version 19", storage.getProject("KEY3").description);
+
+    // deleted projects stay deleted after a restart
+    storage.close();
+    storage = open(200);
+    assertNull(storage.getProject("KEY0"));
+    assertEquals("version 17", storage.getProject("KEY1").description);
+    assertEquals("version 18", storage.getProject("KEY2").description);
+    assertEquals("version 19", storage.getProject("KEY3").description);
+  }
+
+  @Test
+  public void listProjectHistoryPages() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      storage.storeProject(project("KEY" + i));
+      Thread.sleep(2);
+    }
+    storage.deleteProject(project("KEY2"));
+
+    SortedMap<HistoryCursor, OpenProjectData> page = storage.listProjectHistory(null, 3);
+    assertEquals(3, page.size());
+    assertEquals("KEY0", page.get(page.firstKey()).projectKey);
+    assertEquals("KEY3", page.get(page.lastKey()).projectKey);
+
+    page = storage.listProjectHistory(page.lastKey(), 3);
+    assertEquals(1, page.size());
+    assertEquals("KEY4", page.get(page.firstKey()).projectKey);
+
+    assertTrue(storage.listProjectHistory(page.lastKey(), 3).isEmpty());
+  }
+
+  @Test
+  public void listPermittedProjects() throws Exception {
+    OpenProjectData open = project("OPEN");
+    storage.storeProject(open);
+    OpenProjectData restricted = project("RESTRICTED");
+    restricted.specialPermissionSet = true;
+    restricted.projectAdminGroup = "Admins";
+    storage.storeProject(restricted);
+
+    // the group index is rebuilt upon recovery
+    storage.close();
+    storage = open(Long.MAX_VALUE);
+
+    Set<String> groups = ProjectGroupIndex.normalize(Arrays.asList("ADMINS", "other"));
+    assertEquals(2, storage.listPermittedProjects(groups).size());
+    assertEquals(
+        Collections.singleton("OPEN"),
+        projectKeys(storage.listPermittedProjects(Collections.<String>emptySet())));
+
+    restricted.projectAdminGroup = "others";
+    storage.updateStoredProject(restricted);
+    assertEquals(Collections.singleton("OPEN"), projectKeys(storage.listPermittedProjects(groups)));
+  }
+
+  private LogStructuredStorage open(long maxSegmentSize) throws IOException {
+    LogStructuredStorage logStorage = new LogStructuredStorage();
+    logStorage.setStoragePath(folder.getRoot().getAbsolutePath());
+    logStorage.setMaxSegmentSize(maxSegmentSize);
+    logStorage.setCompactionInterval(0);
+    logStorage.setFsync(false);
+    logStorage.open();
+    return logStorage;
+  }
+
+  private static OpenProjectData project(String key) {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = key;
+    project.projectName = key;
+    return project;
+  }
+
+  private static Set<String> projectKeys(Map<String, OpenProjectData> projects) {
+    Set<String> keys = new HashSet<>();
+    for (OpenProjectData project : projects.values()) {
+      keys.add(project.projectKey);
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.opendevstack.provision.HeapTest;
+import org.opendevstack.provision.model.OpenProjectData;
+
+@Category(HeapTest.class)
+public class ProjectCompactorHeapTest {
+
+  /** Projects kept in memory, e.g. in the index of {@link IndexedLocalStorage} */
+  private static final int PROJECTS = 50_000;
+
+  @Test
+  public void compactedProjectsFitIntoHeap() throws Exception {
+    long plain = footprint(PROJECTS / 10, false) * 10;
+    long compacted = footprint(PROJECTS, true);
+
+    assertTrue(
+        "Compacted " + (compacted >> 20) + "MB, plain " + (plain >> 20) + "MB",
+        compacted < plain / 2 && compacted < 150L << 20);
+  }
+
+  /** Heap used by a number of projects */
+  private static long footprint(int count, boolean compact) throws InterruptedException {
+    long before = usedHeap();
+    List<OpenProjectData> projects = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      OpenProjectData project = ProjectCompactorTest.project(i);
+      projects.add(compact ? ProjectCompactor.compact(project) : project);
+    }
+    long footprint = usedHeap() - before;
+    assertEquals(count, projects.size());
+    return footprint;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.opendevstack.provision.adapter.ISCMAdapter.URL_TYPE;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class ProjectCompactorTest {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  public void compactedProjectKeepsContent() throws Exception {
+    OpenProjectData project = project(1);
+    project.quickstarters.get(0).put("nullable", null);
+    project.repositories.put("external", new EnumMap<>(URL_TYPE.class));
+    project.repositories.get("external").put(URL_TYPE.URL_BROWSE_HTTP, "https://github.com/x");
+    String json = MAPPER.writeValueAsString(project);
+
+    OpenProjectData compacted = ProjectCompactor.compact(project);
+
+    assertEquals(json, MAPPER.writeValueAsString(compacted));
+    assertEquals(
+        MAPPER.readValue(json, OpenProjectData.class).repositories, compacted.repositories);
+    Map<URL_TYPE, String> urls = compacted.repositories.get("prj1-be-java-1");
+    assertEquals(
+        "https://bitbucket/scm/prj1/prj1-be-java-1.git", urls.get(URL_TYPE.URL_CLONE_HTTP));
+    assertEquals(
+        urls.get(URL_TYPE.URL_CLONE_SSH), compacted.quickstarters.get(0).get("git_url_ssh"));
+    assertFalse(compacted.repositories.get("external").containsKey(URL_TYPE.URL_CLONE_SSH));
+    assertSame(compacted.projectAdminGroup, ProjectCompactor.intern("admins-" + 1 % 10));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void compactedProjectIsImmutable() throws Exception {
+    ProjectCompactor.compact(project(1)).quickstarters.get(0).put("component_id", "changed");
+  }
+
+  /** A project with three quickstarters, like the ones created thru the provisioning app */
+  static OpenProjectData project(int index) {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "PRJ" + index;
+    project.projectName = "Project " + index;
+    project.description = "Description of project " + index;
+    String key = project.projectKey.toLowerCase();
+    project.projectAdminGroup = "admins-" + index % 10;
+    project.projectUserGroup = "users-" + index % 10;
+    project.projectReadonlyGroup = "readers-" + index % 10;
+    project.projectAdminUser = "admin" + index % 100;
+    project.specialPermissionSet = true;
+    project.bugtrackerUrl = "https://jira/browse/" + project.projectKey;
+    project.scmvcsUrl = "https://bitbucket/projects/" + project.projectKey;
+    project.physicalLocation = "/data/projects/20190101000000-" + project.projectKey + ".txt";
+    project.quickstarters = new ArrayList<>();
+    project.repositories = new LinkedHashMap<>();
+    for (String repository : new String[] {"design", "occonfig-artifacts"}) {
+      project.repositories.put(key + "-" + repository, urls(key, key + "-" + repository));
+    }
+    for (int i = 1; i <= 3; i++) {
+      String type = i == 1 ? "be-java-springboot" : i == 2 ? "fe-angular" : "be-python-flask";
+      String componentId = "be-java-" + i;
+      Map<String, String> quickstarter = new HashMap<>();
+      quickstarter.put("component_type", type);
+      quickstarter.put("component_description", "Description of " + type);
+      quickstarter.put("component_id", componentId);
+      Map<URL_TYPE, String> urls = urls(key, key + "-" + componentId);
+      quickstarter.put("git_url_ssh", urls.get(URL_TYPE.URL_CLONE_SSH));
+      quickstarter.put("git_url_http", urls.get(URL_TYPE.URL_CLONE_HTTP));
+      project.quickstarters.add(quickstarter);
+      // parsed separately, like from a project file
+      project.repositories.put(key + "-" + componentId, urls(key, key + "-" + componentId));
+    }
+    project.lastExecutionJobs = new ArrayList<>();
+    project.lastExecutionJobs.add("https://jenkins/job/" + key + "-cd/job/create-projects/1");
+    return project;
+  }
+
+  private static Map<URL_TYPE, String> urls(String key, String repository) {
+    Map<URL_TYPE, String> urls = new EnumMap<>(URL_TYPE.class);
+    urls.put(URL_TYPE.URL_CLONE_HTTP, "https://bitbucket/scm/" + key + "/" + repository + ".git");
+    urls.put(URL_TYPE.URL_CLONE_SSH, "ssh://git@bitbucket:7999/" + key + "/" + repository + ".git");
+    urls.put(
+        URL_TYPE.URL_BROWSE_HTTP,
+        "https://bitbucket/projects/" + key.toUpperCase() + "/repos/" + repository + "/browse");
+    return urls;
+  }
+}
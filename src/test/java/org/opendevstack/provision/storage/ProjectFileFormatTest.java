@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.adapter.ISCMAdapter.URL_TYPE;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class ProjectFileFormatTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void defaultFormatIsPlainJson() throws Exception {
+    byte[] content = ProjectFileFormat.DEFAULT.write(project());
+
+    assertTrue(new String(content, StandardCharsets.UTF_8).startsWith("{"));
+    assertEquals("TEST", ProjectFileFormat.read(content).get("projectKey").asText());
+  }
+
+  @Test
+  public void everyFormatIsReadTransparently() throws Exception {
+    byte[] json = ProjectFileFormat.DEFAULT.write(project());
+    for (String encoding :
+        new String[] {ProjectFileFormat.ENCODING_JSON, ProjectFileFormat.ENCODING_SMILE}) {
+      for (String compression :
+          new String[] {ProjectFileFormat.COMPRESSION_NONE, ProjectFileFormat.COMPRESSION_GZIP}) {
+        byte[] content = ProjectFileFormat.of(encoding, compression).write(project());
+
+        assertEquals(ProjectFileFormat.read(json), ProjectFileFormat.read(content));
+      }
+    }
+    assertTrue(
+        ProjectFileFormat.of(ProjectFileFormat.ENCODING_SMILE, ProjectFileFormat.COMPRESSION_GZIP)
+                .write(project())
+                .length
+            < json.length / 2);
+  }
+
+  @Test
+  public void storageReadsFilesOfOtherFormats() throws Exception {
+    FileUtils.copyFileToDirectory(
+        new File("src/test/resources/20170101000000-test.txt"), folder.getRoot());
+    LocalStorage storage = new LocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    storage.setEncoding(ProjectFileFormat.ENCODING_SMILE);
+    storage.setCompression(ProjectFileFormat.COMPRESSION_GZIP);
+
+    OpenProjectData project = project();
+    project.projectKey = "BINARY";
+    storage.storeProject(project);
+
+    byte[] content = Files.readAllBytes(new File(project.physicalLocation).toPath());
+    assertEquals("ODSP", new String(content, 0, 4, StandardCharsets.US_ASCII));
+    // legacy and compressed binary files side by side
+    assertEquals(2, storage.listProjectHistory().size());
+    assertNotNull(storage.getProject("test"));
+    assertEquals("test project", storage.getProject("binary").description);
+    LocalStorage plain = new LocalStorage();
+    plain.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    assertEquals(
+        project.repositories,
+        plain.readProjectFile(new File(project.physicalLocation)).repositories);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectUnknownEncoding() {
+    ProjectFileFormat.of("xml", ProjectFileFormat.COMPRESSION_NONE);
+  }
+
+  private static OpenProjectData project() {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "TEST";
+    project.projectName = "test";
+    project.description = "test project";
+    project.repositories = new HashMap<>();
+    for (String repository : new String[] {"be-java", "fe-react", "docs", "e2e"}) {
+      Map<URL_TYPE, String> urls = new HashMap<>();
+      String url = "https://bitbucket.example.com/scm/test/test-" + repository + ".git";
+      urls.put(URL_TYPE.URL_CLONE_HTTP, url);
+      urls.put(URL_TYPE.URL_BROWSE_HTTP, url);
+      project.repositories.put("test-" + repository, urls);
+    }
+    return project;
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class ProjectGroupIndexTest {
+
+  @Test
+  public void permittedKeysAreUnionOfGroups() throws Exception {
+    ProjectGroupIndex index = new ProjectGroupIndex();
+    index.update(project("open", false, null, null));
+    index.update(project("admin", true, "Admins", null));
+    index.update(project("user", true, null, "USERS"));
+    index.update(project("other", true, "others", "others"));
+
+    Set<String> groups = ProjectGroupIndex.normalize(Arrays.asList("admins", "Users", "unknown"));
+
+    assertEquals(
+        new HashSet<>(Arrays.asList("OPEN", "ADMIN", "USER")), index.getPermittedKeys(groups));
+    assertEquals(
+        Collections.singleton("OPEN"), index.getPermittedKeys(Collections.<String>emptySet()));
+  }
+
+  @Test
+  public void updateAndRemoveReplaceGroups() throws Exception {
+    ProjectGroupIndex index = new ProjectGroupIndex();
+    index.update(project("moved", true, "before", null));
+    Set<String> before = ProjectGroupIndex.normalize(Collections.singleton("before"));
+    Set<String> after = ProjectGroupIndex.normalize(Collections.singleton("after"));
+    assertTrue(index.getPermittedKeys(before).contains("MOVED"));
+
+    index.update(project("moved", true, "after", null));
+    assertFalse(index.getPermittedKeys(before).contains("MOVED"));
+    assertTrue(index.getPermittedKeys(after).contains("MOVED"));
+
+    index.remove("moved");
+    assertTrue(index.getPermittedKeys(after).isEmpty());
+  }
+
+  @Test
+  public void isPermitted() throws Exception {
+    Set<String> groups = ProjectGroupIndex.normalize(Collections.singleton("TestGroup"));
+
+    assertTrue(ProjectGroupIndex.isPermitted(project("a", false, "x", "y"), groups));
+    assertTrue(ProjectGroupIndex.isPermitted(project("b", true, "testgroup", null), groups));
+    assertTrue(ProjectGroupIndex.isPermitted(project("c", true, null, "TESTGROUP"), groups));
+    assertFalse(ProjectGroupIndex.isPermitted(project("d", true, "testgroupW", null), groups));
+  }
+
+  private static OpenProjectData project(
+      String key, boolean specialPermissionSet, String adminGroup, String userGroup) {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = key;
+    project.specialPermissionSet = specialPermissionSet;
+    project.projectAdminGroup = adminGroup;
+    project.projectUserGroup = userGroup;
+    return project;
+  }
+}
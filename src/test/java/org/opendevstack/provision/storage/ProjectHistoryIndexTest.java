@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class ProjectHistoryIndexTest {
+
+  @Test
+  public void sameCreationDateKeepsProjectsApart() throws Exception {
+    ProjectHistoryIndex index = new ProjectHistoryIndex();
+    index.put(new HistoryCursor(1000, "b"));
+    index.put(new HistoryCursor(1000, "a"));
+    index.put(new HistoryCursor(500, "c"));
+
+    assertEquals(3, index.size());
+    assertEquals(Arrays.asList("C", "A", "B"), keys(index.page(null, 10)));
+    assertEquals(Arrays.asList("B", "A", "C"), keys(index.newestFirst()));
+  }
+
+  @Test
+  public void pagesAndCreationDateRanges() throws Exception {
+    ProjectHistoryIndex index = new ProjectHistoryIndex();
+    for (int i = 0; i < 10; i++) {
+      index.put(new HistoryCursor(i * 100, "KEY" + i));
+    }
+
+    assertEquals(Arrays.asList("KEY0", "KEY1"), keys(index.page(null, 2)));
+    assertEquals(
+        Arrays.asList("KEY2", "KEY3"), keys(index.page(new HistoryCursor(100, "KEY1"), 2)));
+    // starting at a creation date, including the projects created at that time
+    assertEquals(Arrays.asList("KEY5", "KEY6"), keys(index.page(HistoryCursor.before(500), 2)));
+    assertEquals(Arrays.asList("KEY6"), keys(index.page(HistoryCursor.before(501), 1)));
+    assertEquals(0, index.page(new HistoryCursor(900, "KEY9"), 2).size());
+  }
+
+  @Test
+  public void putMovesAndRemoveDropsProjects() throws Exception {
+    ProjectHistoryIndex index = new ProjectHistoryIndex();
+    index.put(new HistoryCursor(1000, "MOVED"));
+    index.put(new HistoryCursor(2000, "OTHER"));
+
+    index.put(new HistoryCursor(3000, "moved"));
+    assertEquals(Arrays.asList("OTHER", "MOVED"), keys(index.page(null, 10)));
+    assertEquals(3000, index.get("Moved").getCreatedAt());
+
+    index.remove("moved");
+    assertEquals(Arrays.asList("OTHER"), keys(index.newestFirst()));
+    assertNull(index.get("MOVED"));
+  }
+
+  private static List<String> keys(Iterable<HistoryCursor> cursors) {
+    List<String> keys = new ArrayList<>();
+    for (HistoryCursor cursor : cursors) {
+      keys.add(cursor.getKey());
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class ProjectHistoryLoaderTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private LocalStorage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = new LocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+  }
+
+  @Test
+  public void loadInParallel() throws Exception {
+    int projectCount = ProjectHistoryLoader.FILES_PER_TASK * 5 + 3;
+    for (int i = 0; i < projectCount; i++) {
+      OpenProjectData project = new OpenProjectData();
+      project.projectKey = "KEY" + i;
+      storage.writeFile(
+          project,
+          new File(folder.getRoot(), String.format("20190101%06d-KEY%d.txt", i, i)).getPath());
+    }
+
+    ProjectHistoryLoader.LoadResult result = new ProjectHistoryLoader(storage, 4).load();
+
+    assertEquals(projectCount, result.getFileCount());
+    assertEquals(0, result.getFailureCount());
+
+    Set<String> keys = new HashSet<>();
+    for (OpenProjectData project : result.getProjects()) {
+      keys.add(project.projectKey);
+    }
+    assertEquals(projectCount, keys.size());
+  }
+
+  @Test
+  public void upgradeLegacyAndCountFailures() throws Exception {
+    File legacy = new File(folder.getRoot(), "20170101000000-test.txt");
+    FileUtils.copyFile(new File("src/test/resources/20170101000000-test.txt"), legacy);
+    FileUtils.write(new File(folder.getRoot(), "20170101000001-cracked.txt"), "{\"projectKey\":");
+    FileUtils.write(new File(folder.getRoot(), "20170101000002-nokey.txt"), "{\"name\":\"x\"}");
+
+    ProjectHistoryLoader.LoadResult result = new ProjectHistoryLoader(storage, 0).load();
+
+    assertEquals(3, result.getFileCount());
+    assertEquals(2, result.getFailureCount());
+    assertEquals("TEST", result.getProjects().get(0).projectKey);
+    assertEquals(legacy.getAbsolutePath(), result.getProjects().get(0).physicalLocation);
+
+    // the legacy file is rewritten in the current format
+    assertTrue(FileUtils.readFileToString(legacy).contains("\"projectKey\""));
+    assertEquals("Test", storage.readProjectFile(legacy).projectName);
+  }
+}
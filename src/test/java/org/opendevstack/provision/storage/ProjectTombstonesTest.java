@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class ProjectTombstonesTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File projectFile;
+
+  @Before
+  public void setUp() throws Exception {
+    FileUtils.copyFileToDirectory(
+        new File("src/test/resources/20170101000000-test.txt"), folder.getRoot());
+    projectFile = new File(folder.getRoot(), "20170101000000-test.txt");
+  }
+
+  @Test
+  public void deleteLeavesTombstone() throws Exception {
+    LocalStorage storage = newStorage(3600);
+    OpenProjectData project = storage.getProject("TEST");
+
+    assertTrue(storage.deleteProject(project));
+
+    assertFalse(projectFile.exists());
+    assertNull(storage.getProject("TEST"));
+    assertTrue(storage.listProjectHistory().isEmpty());
+    List<Path> tombstones = storage.getTombstones().list();
+    assertEquals(1, tombstones.size());
+    assertTrue(tombstones.get(0).getFileName().toString().endsWith("-20170101000000-test.txt"));
+    // within the retention
+    assertEquals(0, storage.getTombstones().purgeExpired());
+    assertFalse(storage.deleteProject(project));
+  }
+
+  @Test
+  public void purgeInBackground() throws Exception {
+    LocalStorage storage = newStorage(0);
+
+    assertTrue(storage.deleteProject(storage.getProject("TEST")));
+
+    Path directory = folder.getRoot().toPath().resolve(ProjectTombstones.TOMBSTONE_DIRECTORY);
+    for (int i = 0; i < 100 && !storage.getTombstones().list().isEmpty(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(Files.isDirectory(directory));
+    assertTrue(storage.getTombstones().list().isEmpty());
+  }
+
+  @Test
+  public void purgeTombstonesOfFormerRun() throws Exception {
+    ProjectTombstones tombstones = new ProjectTombstones(folder.getRoot().toPath(), 3600_000);
+    Path tombstone = tombstones.bury(projectFile);
+    tombstones.close();
+    assertTrue(Files.exists(tombstone));
+
+    Path expired =
+        tombstone.resolveSibling(
+            (System.currentTimeMillis() - 7200_000) + "-20170101000000-test.txt");
+    Files.move(tombstone, expired);
+    ProjectTombstones restarted = new ProjectTombstones(folder.getRoot().toPath(), 3600_000);
+    assertEquals(1, restarted.purgeExpired());
+    assertFalse(Files.exists(expired));
+  }
+
+  private LocalStorage newStorage(long retention) {
+    LocalStorage storage = new LocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    storage.setTombstoneRetention(retention);
+    return storage;
+  }
+}
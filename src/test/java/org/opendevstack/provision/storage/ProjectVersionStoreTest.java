@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+import org.opendevstack.provision.model.ProjectVersion;
+import org.opendevstack.provision.storage.ProjectStorageEvent.ChangeType;
+
+public class ProjectVersionStoreTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private ProjectVersionStore store;
+
+  @Before
+  public void setUp() {
+    store = newStore();
+  }
+
+  @Test
+  public void recordUpdatesAsPatchesWithSnapshots() throws Exception {
+    OpenProjectData project = project();
+    assertEquals(1, store.record(ChangeType.STORED, project));
+    for (int i = 1; i <= 4; i++) {
+      project.quickstarters.add(quickstarter("be-" + i));
+      project.physicalLocation = "/somewhere/else/" + i;
+      assertEquals(i + 1, store.record(ChangeType.UPDATED, project));
+    }
+
+    List<ProjectVersion> versions = store.listVersions("test");
+    assertEquals(5, versions.size());
+    assertTrue(versions.get(0).snapshot);
+    assertEquals(1, versions.get(1).changes);
+    assertFalse(versions.get(2).snapshot);
+    // snapshot interval 3
+    assertTrue(versions.get(3).snapshot);
+    assertEquals("UPDATED", versions.get(4).changeType);
+
+    for (int i = 1; i <= 5; i++) {
+      OpenProjectData version = store.getVersion("TEST", i);
+      assertEquals(i, version.quickstarters.size());
+      assertNull(version.physicalLocation);
+    }
+    assertNull(store.getVersion("TEST", 6));
+    assertNull(store.getVersion("TEST", 0));
+  }
+
+  @Test
+  public void unchangedProjectCreatesNoVersion() throws Exception {
+    OpenProjectData project = project();
+    store.record(ChangeType.STORED, project);
+
+    project.physicalLocation = "/moved";
+    assertEquals(0, store.record(ChangeType.UPDATED, project));
+    // e.g. the same change, seen by another instance sharing the directory
+    assertEquals(0, newStore().record(ChangeType.UPDATED, project));
+    assertEquals(1, store.listVersions("TEST").size());
+  }
+
+  @Test
+  public void diffBetweenVersions() throws Exception {
+    OpenProjectData project = project();
+    store.record(ChangeType.STORED, project);
+    project.description = "changed";
+    store.record(ChangeType.UPDATED, project);
+    project.quickstarters.add(quickstarter("fe-react"));
+    store.record(ChangeType.UPDATED, project);
+
+    JsonNode patch = store.diff("test", 1, 3);
+
+    assertEquals(2, patch.size());
+    assertEquals("changed", store.getVersion("TEST", 2).description);
+    assertEquals(0, store.diff("test", 3, 3).size());
+    assertNull(store.diff("test", 1, 4));
+  }
+
+  @Test
+  public void deletionPurgesVersionsAndStoreStartsNewChain() throws Exception {
+    OpenProjectData project = project();
+    store.record(ChangeType.STORED, project);
+    project.description = "first owner";
+    store.record(ChangeType.UPDATED, project);
+
+    assertEquals(0, store.record(ChangeType.DELETED, project));
+    assertEquals(0, store.record(ChangeType.DELETED, project));
+    assertTrue(store.listVersions("TEST").isEmpty());
+    assertNull(store.getVersion("TEST", 2));
+    assertFalse(new File(folder.getRoot(), "TEST" + ProjectVersionStore.FILE_SUFFIX).exists());
+
+    // a project created again under the same key
+    assertEquals(1, store.record(ChangeType.STORED, project()));
+    assertTrue(store.listVersions("TEST").get(0).snapshot);
+    assertEquals("test project", store.getVersion("TEST", 1).description);
+    // another instance picks up the chain from the file
+    project.description = "other";
+    assertEquals(2, newStore().record(ChangeType.UPDATED, project));
+    assertEquals(3, store.record(ChangeType.UPDATED, project()));
+    assertEquals(3, store.listVersions("TEST").size());
+  }
+
+  @Test
+  public void skipTornRecord() throws Exception {
+    store.record(ChangeType.STORED, project());
+    File file = new File(folder.getRoot(), "TEST" + ProjectVersionStore.FILE_SUFFIX);
+    FileUtils.writeStringToFile(file, "{\"version\":2,\"snap", StandardCharsets.UTF_8, true);
+
+    assertEquals(1, newStore().listVersions("TEST").size());
+    assertEquals("test project", newStore().getVersion("TEST", 1).description);
+    // the next version starts on a line of its own
+    OpenProjectData project = project();
+    project.description = "after crash";
+    assertEquals(2, newStore().record(ChangeType.UPDATED, project));
+    assertEquals("after crash", newStore().getVersion("TEST", 2).description);
+  }
+
+  private ProjectVersionStore newStore() {
+    ProjectVersionStore versionStore = new ProjectVersionStore();
+    versionStore.setPath(folder.getRoot().getAbsolutePath());
+    versionStore.setSnapshotInterval(3);
+    return versionStore;
+  }
+
+  private static OpenProjectData project() {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "TEST";
+    project.projectName = "test";
+    project.description = "test project";
+    project.quickstarters = new ArrayList<>();
+    project.quickstarters.add(quickstarter("be-java-springboot"));
+    return project;
+  }
+
+  private static Map<String, String> quickstarter(String componentType) {
+    Map<String, String> quickstarter = new HashMap<>();
+    quickstarter.put(OpenProjectData.COMPONENT_TYPE_KEY, componentType);
+    quickstarter.put(OpenProjectData.COMPONENT_ID_KEY, componentType + "-id");
+    return quickstarter;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class ShardedStorageLayoutTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setUp() throws Exception {
+    FileUtils.copyFileToDirectory(
+        new File("src/test/resources/20170101000000-test.txt"), folder.getRoot());
+  }
+
+  @Test
+  public void migrateFlatLayoutUponFirstUse() throws Exception {
+    LocalStorage storage = shardedStorage();
+
+    OpenProjectData project = storage.getProject("test");
+
+    assertNotNull(project);
+    assertEquals(
+        new File(folder.getRoot(), "TE/201701/20170101000000-test.txt").getAbsolutePath(),
+        project.physicalLocation);
+    assertFalse(new File(folder.getRoot(), "20170101000000-test.txt").exists());
+    assertTrue(new File(folder.getRoot(), ShardedStorageLayout.MANIFEST_FILE).isFile());
+    assertEquals(1, storage.listProjectHistory().size());
+  }
+
+  @Test
+  public void migrationCanBeRepeated() throws Exception {
+    ShardedStorageLayout layout = shardedStorage().getShardedLayout();
+
+    assertEquals(1, layout.migrate());
+    assertEquals(0, layout.migrate());
+    assertEquals(
+        Collections.singletonMap("TEST", "TE/201701/20170101000000-test.txt"),
+        layout.getManifest());
+  }
+
+  @Test
+  public void storeAndDeleteKeepManifestInSync() throws Exception {
+    LocalStorage storage = shardedStorage();
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "SHARDED";
+    storage.storeProject(project);
+
+    assertTrue(project.physicalLocation.contains(File.separator + "SH" + File.separator));
+    // a second instance finds the project thru the manifest
+    LocalStorage other = shardedStorage();
+    assertNotNull(other.getProject("sharded"));
+    assertEquals(2, other.listProjectFiles().size());
+
+    assertTrue(storage.deleteProject(project));
+    assertTrue(other.getShardedLayout().reload());
+    assertNull(other.getProject("SHARDED"));
+  }
+
+  @Test
+  public void rebuildMissingManifest() throws Exception {
+    LocalStorage storage = shardedStorage();
+    assertNotNull(storage.getProject("TEST"));
+
+    assertTrue(new File(folder.getRoot(), ShardedStorageLayout.MANIFEST_FILE).delete());
+
+    assertNotNull(shardedStorage().getProject("TEST"));
+  }
+
+  private LocalStorage shardedStorage() {
+    LocalStorage storage = new LocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    storage.setLayout(LocalStorage.LAYOUT_SHARDED);
+    return storage;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendevstack.provision.model.OpenProjectData;
+
+public class StorageIntegrityScannerTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File cracked;
+
+  @Before
+  public void setUp() throws Exception {
+    FileUtils.copyFileToDirectory(
+        new File("src/test/resources/20170101000000-test.txt"), folder.getRoot());
+    cracked = new File(folder.getRoot(), "20180101000000-CRACKED.txt");
+    FileUtils.writeStringToFile(cracked, "{\"projectKey\":\"CRA", StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void unreadableFileIsParsedOnceUntilChanged() throws Exception {
+    LocalStorage storage = new LocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+
+    assertEquals(1, storage.listProjectHistory().size());
+    assertTrue(storage.isUnreadable(cracked));
+
+    FileUtils.writeStringToFile(cracked, "{\"projectKey\":\"CRACKED\"}", StandardCharsets.UTF_8);
+    cracked.setLastModified(cracked.lastModified() + 2000);
+    assertFalse(storage.isUnreadable(cracked));
+    assertEquals(2, storage.listProjectHistory().size());
+  }
+
+  @Test
+  public void quarantineUnreadableFiles() throws Exception {
+    LocalStorage storage = new LocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    StorageIntegrityScanner scanner = newScanner(storage);
+
+    assertEquals(1, scanner.scan());
+
+    assertFalse(cracked.exists());
+    assertTrue(new File(folder.getRoot(), "quarantine/" + cracked.getName()).isFile());
+    assertEquals(1, storage.listProjectFiles().size());
+    assertNotNull(storage.getProject("TEST"));
+
+    StorageIntegrityScanner.Status status = scanner.status();
+    assertEquals(1, status.scans);
+    assertEquals(2, status.lastScanParsed);
+    assertEquals(1, status.files);
+    assertEquals(1, status.validFiles);
+    assertEquals(1, status.quarantined);
+
+    // validated files are not parsed again
+    assertEquals(0, scanner.scan());
+    status = scanner.status();
+    assertEquals(0, status.lastScanParsed);
+    assertEquals(1, status.quarantined);
+  }
+
+  @Test
+  public void quarantineCorruptCompressedFiles() throws Exception {
+    OpenProjectData project = new OpenProjectData();
+    project.projectKey = "TRUNCATED";
+    project.description = "Project written as gzip compressed smile";
+    byte[] content =
+        ProjectFileFormat.of(ProjectFileFormat.ENCODING_SMILE, ProjectFileFormat.COMPRESSION_GZIP)
+            .write(project);
+    File truncated = new File(folder.getRoot(), "20190101000000-TRUNCATED.txt");
+    Files.write(truncated.toPath(), Arrays.copyOf(content, content.length / 2));
+    File unknownVersion = new File(folder.getRoot(), "20190101000000-VERSION.txt");
+    content[4] = 99;
+    Files.write(unknownVersion.toPath(), content);
+
+    LocalStorage storage = new LocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    assertEquals(1, storage.listProjectHistory().size());
+    assertTrue(storage.isUnreadable(truncated));
+    assertTrue(storage.isUnreadable(unknownVersion));
+
+    assertEquals(3, newScanner(storage).scan());
+    assertFalse(truncated.exists());
+    assertTrue(new File(folder.getRoot(), "quarantine/" + truncated.getName()).isFile());
+    assertFalse(unknownVersion.exists());
+    assertEquals(1, storage.listProjectFiles().size());
+  }
+
+  @Test
+  public void quarantineRemovesFileFromIndex() throws Exception {
+    IndexedLocalStorage storage = new IndexedLocalStorage();
+    storage.setLocalStoragePath(folder.getRoot().getAbsolutePath());
+    storage.setIndexFileEnabled(false);
+    StorageIntegrityScanner scanner = newScanner(storage);
+    assertNotNull(storage.getProject("TEST"));
+
+    File test = new File(folder.getRoot(), "20170101000000-test.txt");
+    FileUtils.writeStringToFile(test, "{\"projectKey\":", StandardCharsets.UTF_8);
+    test.setLastModified(test.lastModified() + 2000);
+    storage.refreshFile(test);
+    // a file that cannot be read keeps its former entry
+    assertNotNull(storage.getProject("TEST"));
+
+    assertEquals(2, scanner.scan());
+    assertNull(storage.getProject("TEST"));
+    assertTrue(storage.listProjectHistory().isEmpty());
+  }
+
+  @Test
+  public void otherStoragesAreNotScanned() throws Exception {
+    JdbcStorage storage = new JdbcStorage();
+    StorageIntegrityScanner scanner = newScanner(storage);
+
+    assertEquals(0, scanner.scan());
+    assertEquals(0, scanner.status().scans);
+  }
+
+  private StorageIntegrityScanner newScanner(IStorage storage) {
+    StorageIntegrityScanner scanner = new StorageIntegrityScanner();
+    scanner.setStorage(storage);
+    scanner.setScanInterval(0);
+    return scanner;
+  }
+}
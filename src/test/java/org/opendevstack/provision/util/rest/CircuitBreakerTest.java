@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.util.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.opendevstack.provision.util.exception.BackendUnavailableException;
+
+public class CircuitBreakerTest {
+
+  private final AtomicLong now = new AtomicLong(1000);
+
+  private final CircuitBreaker breaker = new CircuitBreaker("jira:443", 3, 30_000, now::get);
+
+  @Test
+  public void opensAfterConsecutiveFailures() throws Exception {
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onResponse(404);
+    breaker.onFailure();
+    breaker.onResponse(502);
+    breaker.acquirePermission();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertRejected(30_000);
+    now.addAndGet(10_000);
+    assertRejected(20_000);
+  }
+
+  @Test
+  public void probeClosesCircuit() throws Exception {
+    open();
+    now.addAndGet(30_000);
+
+    breaker.acquirePermission();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    // a single probe at a time
+    assertRejected(30_000);
+
+    breaker.onResponse(200);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.acquirePermission();
+  }
+
+  @Test
+  public void failedProbeOpensCircuitAgain() throws Exception {
+    open();
+    now.addAndGet(30_000);
+    breaker.acquirePermission();
+
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertRejected(30_000);
+  }
+
+  @Test
+  public void lostProbeIsReplaced() throws Exception {
+    open();
+    now.addAndGet(30_000);
+    breaker.acquirePermission();
+
+    now.addAndGet(30_000);
+    breaker.acquirePermission();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+  }
+
+  private void open() {
+    for (int i = 0; i < 3; i++) {
+      breaker.onFailure();
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  private void assertRejected(long retryAfter) {
+    try {
+      breaker.acquirePermission();
+      fail("Call should be rejected");
+    } catch (BackendUnavailableException expected) {
+      assertEquals("jira:443", expected.getBackend());
+      assertEquals(retryAfter, expected.getRetryAfterMillis());
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.util.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.junit.Test;
+
+public class RestClientCallTest {
+
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  @Test
+  public void evaluateResponseReadsReturnType() throws Exception {
+    Map<String, Object> project =
+        RestClientCall.get().returnType(Map.class).evaluateResponse(body("{\"key\":\"TEST\"}"));
+
+    assertEquals("TEST", project.get("key"));
+  }
+
+  @Test
+  public void evaluateResponseReadsTypeReference() throws Exception {
+    RestClientCall call =
+        RestClientCall.get().returnTypeReference(new TypeReference<List<Map<String, String>>>() {});
+
+    List<Map<String, String>> projects = call.evaluateResponse(body("[{\"key\":\"A\"}]"));
+    assertEquals("A", projects.get(0).get("key"));
+
+    // a single value is accepted as array
+    projects = call.evaluateResponse(body("{\"key\":\"B\"}"));
+    assertEquals("B", projects.get(0).get("key"));
+  }
+
+  @Test
+  public void evaluateResponseKeepsStringBody() throws Exception {
+    RestClientCall call = RestClientCall.get().returnType(String.class);
+
+    assertEquals("plain", call.evaluateResponse(body("plain")));
+    assertEquals("plain", call.getResponseBody());
+  }
+
+  @Test
+  public void evaluateResponseWithoutReturnType() throws Exception {
+    assertNull(RestClientCall.get().evaluateResponse(body("{}")));
+  }
+
+  @Test
+  public void bodyIsWrittenCompactly() throws Exception {
+    RestClientCall call =
+        RestClientCall.post(Collections.singletonList(Collections.singletonMap("key", "TEST")))
+            .url("http://localhost/rest");
+    call.prepareRequest();
+
+    Buffer buffer = new Buffer();
+    call.getRequest().body().writeTo(buffer);
+    assertEquals("[{\"key\":\"TEST\"}]", buffer.readUtf8());
+  }
+
+  private static ResponseBody body(String content) {
+    return ResponseBody.create(JSON, content);
+  }
+}
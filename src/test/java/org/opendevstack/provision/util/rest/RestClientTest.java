@@ -15,14 +15,28 @@
 package org.opendevstack.provision.util.rest;
 
 import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
+import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -30,10 +44,14 @@ import org.junit.runner.RunWith;
 import org.opendevstack.provision.SpringBoot;
 import org.opendevstack.provision.authentication.crowd.CrowdAuthenticationManager;
 import org.opendevstack.provision.util.CredentialsInfo;
+import org.opendevstack.provision.util.exception.BackendUnavailableException;
+import org.opendevstack.provision.util.exception.HttpException;
+import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.mock.env.MockEnvironment;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
@@ -69,11 +87,42 @@ public class RestClientTest {
     client.afterPropertiesSet();
   }
 
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
   @Test
   public void getClient() {
     Assert.assertThat(client.client, instanceOf(OkHttpClient.class));
   }
 
+  @Test
+  public void backendsHaveIsolatedClients() {
+    OkHttpClient jira = client.clientFor(validGetCall().backend("jira"));
+    OkHttpClient confluence = client.clientFor(validGetCall().backend("confluence"));
+
+    assertSame(jira, client.clientFor(validGetCall().backend("jira")));
+    assertNotSame(jira.connectionPool(), confluence.connectionPool());
+    assertNotSame(jira.dispatcher(), confluence.dispatcher());
+    assertSame(client.client, client.clientFor(validGetCall()));
+    assertEquals(new HashSet<>(Arrays.asList("confluence", "jira")), client.utilization().keySet());
+    assertEquals(0, client.utilization().get("jira").runningCalls);
+  }
+
+  @Test
+  public void backendLimitsAreConfigurable() {
+    client.setEnvironment(
+        new MockEnvironment()
+            .withProperty("jira.restClient.max-requests-per-host", "2")
+            .withProperty("jira.restClient.read.timeout", "5"));
+
+    OkHttpClient jira = client.clientFor(validGetCall().backend("jira"));
+    assertEquals(2, jira.dispatcher().getMaxRequestsPerHost());
+    assertEquals(5000, jira.readTimeoutMillis());
+    assertEquals(1000, jira.connectTimeoutMillis());
+  }
+
   @Test
   public void callHttpGreen() throws Exception {
     RestClientCall call = validGetCall();
@@ -105,6 +154,205 @@ public class RestClientTest {
     }
   }
 
+  @Test
+  public void callHttpGreenAsync() throws Exception {
+    CompletableFuture<String> response = client.executeAsync(validGetCall());
+
+    assertNotNull(response.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void callRealClientWrongPortAsync() throws Exception {
+    RestClientCall invalidCall =
+        validGetCall().url(String.format("http://localhost:%d", randomServerPort + 1));
+    try {
+      client.executeAsync(invalidCall).get(10, TimeUnit.SECONDS);
+      fail("Call should fail");
+    } catch (ExecutionException expected) {
+      Assert.assertThat(expected.getCause(), instanceOf(IOException.class));
+    }
+  }
+
+  @Test
+  public void callHttpErrorAsync() throws Exception {
+    HttpServer server = startServer(502, new CountDownLatch(0));
+    try {
+      client.executeAsync(validGetCall().url(urlOf(server))).get(10, TimeUnit.SECONDS);
+      fail("Call should fail");
+    } catch (ExecutionException expected) {
+      Assert.assertThat(expected.getCause(), instanceOf(HttpException.class));
+      assertEquals(502, ((HttpException) expected.getCause()).getResponseCode());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void asyncCallKeepsMdc() throws Exception {
+    CountDownLatch responding = new CountDownLatch(1);
+    HttpServer server = startServer(200, responding);
+    try {
+      MDC.put("project", "ODSDEMO");
+      // evaluated on a thread of the dispatcher, once the server responds
+      CompletableFuture<String> logged =
+          client
+              .<String>executeAsync(validGetCall().url(urlOf(server)))
+              .thenApply(response -> response + ":" + MDC.get("project"));
+      MDC.remove("project");
+      responding.countDown();
+
+      assertEquals("ok:ODSDEMO", logged.get(10, TimeUnit.SECONDS));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void busyBackendRejectsCalls() throws Exception {
+    client.setEnvironment(
+        new MockEnvironment().withProperty("jira.restClient.max-concurrent-calls", "1"));
+    CountDownLatch responding = new CountDownLatch(1);
+    HttpServer server = startServer(200, responding);
+    try {
+      CompletableFuture<String> pending =
+          client.executeAsync(validGetCall().backend("jira").url(urlOf(server)));
+      assertEquals(1, client.utilization().get("jira").concurrentCalls);
+      try {
+        client.execute(validGetCall().backend("jira").url(urlOf(server)));
+        fail("Call should be rejected");
+      } catch (BackendUnavailableException expected) {
+        assertEquals("jira", expected.getBackend());
+      }
+      // other backends are not affected
+      responding.countDown();
+      assertEquals("ok", client.execute(validGetCall().backend("bitbucket").url(urlOf(server))));
+
+      assertEquals("ok", pending.get(10, TimeUnit.SECONDS));
+      assertEquals(0, client.utilization().get("jira").concurrentCalls);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void openCircuitRejectsCalls() throws Exception {
+    // every failed attempt is recorded, the circuit is tested without retries
+    client.maxAttempts = 1;
+    HttpServer server = startServer(502, new CountDownLatch(0));
+    try {
+      RestClientCall failing = validGetCall().backend("jira").url(urlOf(server));
+      for (int i = 0; i < client.failureThreshold; i++) {
+        try {
+          client.execute(validGetCall().backend("jira").url(urlOf(server)));
+          fail("Call should fail");
+        } catch (HttpException expected) {
+          assertEquals(502, expected.getResponseCode());
+        }
+      }
+      assertEquals(
+          "OPEN",
+          client
+              .utilization()
+              .get("jira")
+              .circuits
+              .get("localhost:" + server.getAddress().getPort()));
+      try {
+        client.execute(failing);
+        fail("Call should be rejected");
+      } catch (BackendUnavailableException expected) {
+        Assert.assertTrue(expected.getRetryAfterMillis() > 0);
+      }
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void transientFailureIsRetried() throws Exception {
+    client.initialBackoff = 10;
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = startServer(new CountDownLatch(0), requests, 502, 200);
+    try {
+      assertEquals("ok", client.execute(validGetCall().url(urlOf(server))));
+      assertEquals(2, requests.get());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void postIsRetriedOnlyWhenIdempotent() throws Exception {
+    client.initialBackoff = 10;
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = startServer(new CountDownLatch(0), requests, 503, 200);
+    try {
+      client.execute(RestClientCall.post("{}").url(urlOf(server)).returnType(String.class));
+      fail("Call should fail");
+    } catch (HttpException expected) {
+      assertEquals(503, expected.getResponseCode());
+      assertEquals(1, requests.get());
+    } finally {
+      server.stop(0);
+    }
+
+    requests.set(0);
+    server = startServer(new CountDownLatch(0), requests, 503, 200);
+    try {
+      RestClientCall idempotent =
+          RestClientCall.post("{}").url(urlOf(server)).returnType(String.class).idempotent();
+      assertEquals("ok", client.execute(idempotent));
+      assertEquals(2, requests.get());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void asyncCallIsRetried() throws Exception {
+    client.initialBackoff = 10;
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = startServer(new CountDownLatch(0), requests, 504, 502, 200);
+    try {
+      CompletableFuture<String> response =
+          client.executeAsync(validGetCall().backend("jira").url(urlOf(server)));
+      assertEquals("ok", response.get(10, TimeUnit.SECONDS));
+      assertEquals(3, requests.get());
+      assertEquals(0, client.utilization().get("jira").concurrentCalls);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Server responding with "ok" and the given status, once the latch is counted down */
+  private static HttpServer startServer(int status, CountDownLatch responding) throws IOException {
+    return startServer(responding, new AtomicInteger(), status);
+  }
+
+  /** Server responding with the statuses in turn, repeating the last one */
+  private static HttpServer startServer(
+      CountDownLatch responding, AtomicInteger requests, int... statuses) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          try {
+            responding.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+          int request = requests.getAndIncrement();
+          exchange.sendResponseHeaders(statuses[Math.min(request, statuses.length - 1)], 2);
+          exchange.getResponseBody().write("ok".getBytes(StandardCharsets.UTF_8));
+          exchange.close();
+        });
+    server.start();
+    return server;
+  }
+
+  private static String urlOf(HttpServer server) {
+    return String.format("http://localhost:%d", server.getAddress().getPort());
+  }
+
   public RestClientCall validGetCall() {
     return RestClientCall.get()
         .basicAuthenticated(new CredentialsInfo("testUser", "testUser"))
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendevstack.provision.util.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.opendevstack.provision.util.exception.BackendUnavailableException;
+import org.opendevstack.provision.util.exception.HttpException;
+
+public class RetryPolicyTest {
+
+  private static final long NOW = 1_000_000L;
+
+  private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  @Test
+  public void onlyIdempotentCallsAreRetryable() {
+    assertTrue(RestClientCall.get().isRetryable());
+    assertTrue(RestClientCall.head().isRetryable());
+    assertTrue(RestClientCall.put().isRetryable());
+    assertTrue(RestClientCall.delete().isRetryable());
+    assertFalse(RestClientCall.post().isRetryable());
+    assertTrue(RestClientCall.post().idempotent().isRetryable());
+  }
+
+  @Test
+  public void onlyTransientFailuresAreRetried() {
+    assertTrue(RetryPolicy.isTransient(new ConnectException()));
+    assertTrue(RetryPolicy.isTransient(new SocketTimeoutException()));
+    assertTrue(RetryPolicy.isTransient(new NoRouteToHostException()));
+    assertTrue(RetryPolicy.isTransient(new SocketException("Connection reset")));
+    assertTrue(RetryPolicy.isTransient(new IOException("unexpected end of stream")));
+    for (int code : new int[] {429, 502, 503, 504}) {
+      assertTrue(RetryPolicy.isTransient(new HttpException(code, "")));
+    }
+    for (int code : new int[] {400, 401, 404, 409, 500}) {
+      assertFalse(RetryPolicy.isTransient(new HttpException(code, "")));
+    }
+    assertFalse(RetryPolicy.isTransient(new InterruptedIOException()));
+    assertFalse(RetryPolicy.isTransient(new IOException("Could not authenticate: denied")));
+    assertFalse(RetryPolicy.isTransient(new IOException()));
+    assertFalse(RetryPolicy.isTransient(new UnknownHostException()));
+    assertFalse(RetryPolicy.isTransient(new JsonParseException(null, "invalid")));
+    assertFalse(RetryPolicy.isTransient(new BackendUnavailableException("jira", "open", 1000)));
+  }
+
+  @Test
+  public void backoffIsJitteredAndCapped() {
+    RetryPolicy policy = new RetryPolicy(10, 100, 400);
+    Set<Long> backoffs = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      long first =
+          policy.backoff(RestClientCall.get(), new ConnectException(), 1, NO_DEADLINE, NOW);
+      assertTrue(first >= 0 && first <= 100);
+      long third =
+          policy.backoff(RestClientCall.get(), new ConnectException(), 3, NO_DEADLINE, NOW);
+      assertTrue(third >= 0 && third <= 400);
+      long ninth =
+          policy.backoff(RestClientCall.get(), new ConnectException(), 9, NO_DEADLINE, NOW);
+      assertTrue(ninth >= 0 && ninth <= 400);
+      backoffs.add(third);
+    }
+    assertTrue(backoffs.size() > 1);
+  }
+
+  @Test
+  public void retriesStopAtMaxAttemptsAndDeadline() {
+    RetryPolicy policy = new RetryPolicy(3, 0, 0);
+    RestClientCall call = RestClientCall.get();
+
+    assertEquals(0, policy.backoff(call, new ConnectException(), 2, NO_DEADLINE, NOW));
+    assertEquals(-1, policy.backoff(call, new ConnectException(), 3, NO_DEADLINE, NOW));
+    assertEquals(-1, policy.backoff(call, new ConnectException(), 1, NOW, NOW));
+    assertEquals(
+        -1, policy.backoff(RestClientCall.post(), new ConnectException(), 1, NO_DEADLINE, NOW));
+    assertEquals(-1, policy.backoff(call, new HttpException(400, ""), 1, NO_DEADLINE, NOW));
+  }
+}